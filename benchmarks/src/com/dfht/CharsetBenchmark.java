@@ -0,0 +1,62 @@
+package com.dfht;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Guessing the charset (which happens once per file, so it matters most for lots of small files).
+ * @author Darren
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharsetBenchmark {
+
+	@Param({Corpora.ZIPF, Corpora.VARIOUS, Corpora.CHINESE})
+	public String corpus;
+
+	//The detector only looks at the start of the input, so bigger samples are pointless.
+	@Param({"1024", "65536"})
+	public int bytes;
+
+	private byte[] sample;
+	private String path;
+
+	@Setup
+	public void setup() {
+		sample = Corpora.sample(corpus, bytes);
+		path = Corpora.file(corpus, 1).toString();
+	}
+
+
+	@Benchmark
+	public Charset guessCharsetStream() throws IOException {
+		return CharsetHelper.guessCharset(new BufferedInputStream(new ByteArrayInputStream(sample)));
+	}
+
+	//Including opening the file.
+	@Benchmark
+	public Charset guessCharsetFile() throws IOException {
+		return CharsetHelper.guessCharset(path);
+	}
+}
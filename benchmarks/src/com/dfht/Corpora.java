@@ -0,0 +1,180 @@
+package com.dfht;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The input text for the benchmarks.
+ * ZIPF is generated in the style of the testBasicExpectedResultsForCountAlgorithm test (words separated by 'random'
+ * whitespace), but with a large multi-script vocabulary whose frequencies follow Zipf's law, like real text.
+ * VARIOUS and CHINESE are the test files of the same name repeated up to the size.
+ * Everything is generated from a fixed seed so that runs are comparable, and cached so each fork only makes it once.
+ * @author Darren
+ *
+ */
+public class Corpora {
+
+	public static final String ZIPF = "ZIPF";
+	public static final String VARIOUS = "VARIOUS";
+	public static final String CHINESE = "CHINESE";
+
+	private static final long SEED = 20190523L;
+	private static final int VOCABULARY = 200_000;
+	//The classic Zipf exponent for natural language.
+	private static final double EXPONENT = 1.0;
+	private static final int WORDS_PER_LINE = 12;
+
+	private static final String[] SEPARATORS = {" ", " ", " ", "\t", ", ", ". ", " - ", " (", ") "};
+
+	//Ranges of letters from a few scripts: Latin (twice, as it is most common), Danish, Greek, Cyrillic, Arabic and CJK.
+	private static final int[][] SCRIPTS = {
+			{'a', 'z'}, {'a', 'z'}, {0xE0, 0xFF}, {0x3B1, 0x3C9}, {0x430, 0x44F}, {0x627, 0x64A}, {0x4E00, 0x9FA5}};
+
+	private static final Map<String, byte[]> CACHE = new ConcurrentHashMap<>();
+
+
+	private Corpora() {
+	}
+
+
+	/**
+	 * The corpus as UTF-8, at (roughly) the given size.
+	 * @param corpus
+	 * @param megabytes
+	 * @return
+	 */
+	public static byte[] utf8(String corpus, int megabytes) {
+		return CACHE.computeIfAbsent(corpus + megabytes, key -> make(corpus, megabytes * 1024 * 1024));
+	}
+
+	/**
+	 * The corpus as a list of lines.
+	 * @param corpus
+	 * @param megabytes
+	 * @return
+	 */
+	public static List<String> lines(String corpus, int megabytes) {
+		return Arrays.asList(new String(utf8(corpus, megabytes), StandardCharsets.UTF_8).split("\n"));
+	}
+
+	/**
+	 * The corpus written to a temporary UTF-8 file (deleted when the JVM exits).
+	 * @param corpus
+	 * @param megabytes
+	 * @return
+	 */
+	public static Path file(String corpus, int megabytes) {
+		try {
+			Path file = Files.createTempFile("wordCounter" + corpus + megabytes, ".txt");
+			file.toFile().deleteOnExit();
+			Files.write(file, utf8(corpus, megabytes));
+			return file;
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * A small sample of the start of the corpus (e.g. for charset detection).
+	 * @param corpus
+	 * @param bytes
+	 * @return
+	 */
+	public static byte[] sample(String corpus, int bytes) {
+		byte[] all = utf8(corpus, 1);
+		return Arrays.copyOf(all, Math.min(bytes, all.length));
+	}
+
+
+	private static byte[] make(String corpus, int size) {
+		switch(corpus) {
+		case ZIPF:
+			return zipf(size);
+		case VARIOUS:
+			return repeat("variousUTF8.txt", size);
+		case CHINESE:
+			return repeat("chineseUTF8.txt", size);
+		default:
+			throw new IllegalArgumentException(corpus);
+		}
+	}
+
+
+	private static byte[] zipf(int size) {
+		Random random = new Random(SEED);
+		String[] vocabulary = new String[VOCABULARY];
+		for (int i = 0; i < VOCABULARY; i++)
+			vocabulary[i] = randomWord(random);
+		//The cumulative distribution, so a word can be picked with a binary search.
+		double[] cumulative = new double[VOCABULARY];
+		double total = 0;
+		for (int rank = 0; rank < VOCABULARY; rank++) {
+			total += 1.0 / Math.pow(rank + 1, EXPONENT);
+			cumulative[rank] = total;
+		}
+		StringBuilder line = new StringBuilder();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size + 1024);
+		while(out.size() < size) {
+			line.setLength(0);
+			for (int i = 0; i < WORDS_PER_LINE; i++) {
+				int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+				rank = rank < 0 ? Math.min(-rank - 1, VOCABULARY - 1) : rank;
+				line.append(vocabulary[rank]);
+				line.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+			}
+			line.append('\n');
+			byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+			out.write(bytes, 0, bytes.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static String randomWord(Random random) {
+		int[] script = SCRIPTS[random.nextInt(SCRIPTS.length)];
+		//CJK words are shorter (each character is a syllable).
+		int length = script[0] >= 0x4E00 ? 1 + random.nextInt(3) : 2 + random.nextInt(9);
+		StringBuilder word = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			word.appendCodePoint(script[0] + random.nextInt(script[1] - script[0] + 1));
+		return word.toString();
+	}
+
+
+	private static byte[] repeat(String resource, int size) {
+		byte[] content = resource(resource);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size + content.length);
+		do {
+			out.write(content, 0, content.length);
+			//Make sure the copies don't run words together.
+			out.write('\n');
+		} while(out.size() < size);
+		return out.toByteArray();
+	}
+
+	private static byte[] resource(String name) {
+		try(InputStream stream = Corpora.class.getResourceAsStream("/corpora/" + name)){
+			if(stream == null)
+				throw new IllegalStateException(name);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = stream.read(buffer)) > 0)
+				out.write(buffer, 0, read);
+			return out.toByteArray();
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+}
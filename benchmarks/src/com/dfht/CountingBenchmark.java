@@ -0,0 +1,66 @@
+package com.dfht;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The counting stage: turning the text into a table of words to occurrences.
+ * @author Darren
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CountingBenchmark {
+
+	@Param({Corpora.ZIPF, Corpora.VARIOUS, Corpora.CHINESE})
+	public String corpus;
+
+	@Param({"1", "16", "64"})
+	public int megabytes;
+
+	private List<String> lines;
+	private byte[] utf8;
+
+	@Setup
+	public void setup() {
+		lines = Corpora.lines(corpus, megabytes);
+		utf8 = Corpora.utf8(corpus, megabytes);
+	}
+
+
+	//The public API, which still returns a map.
+	@Benchmark
+	public Map<String, Long> processedCounts() {
+		return WordCounter.processedCounts(lines.stream());
+	}
+
+	@Benchmark
+	public WordCountTable processedTable() {
+		return WordCounter.processedTable(lines.stream());
+	}
+
+	//Straight from the bytes (no decoding).
+	@Benchmark
+	public WordCountTable utf8Table() throws MalformedInputException {
+		return Utf8WordCounter.processedTable(ByteBuffer.wrap(utf8));
+	}
+}
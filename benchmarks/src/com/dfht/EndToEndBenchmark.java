@@ -0,0 +1,89 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole thing, from a file on disk to the report on System.out (which is thrown away here).
+ * @author Darren
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	@Param({Corpora.ZIPF, Corpora.VARIOUS})
+	public String corpus;
+
+	@Param({"1", "16", "64"})
+	public int megabytes;
+
+	@Param({"UTF-8", "UTF-16"})
+	public String encoding;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	//0 is the full report.
+	@Param({"0", "100"})
+	public int top;
+
+	private String path;
+	private Charset charset;
+	private PrintStream systemOut;
+
+	@Setup
+	public void setup() throws IOException {
+		charset = Charset.forName(encoding);
+		byte[] utf8 = Corpora.utf8(corpus, megabytes);
+		Path file = Corpora.file(corpus, megabytes);
+		if(!charset.equals(StandardCharsets.UTF_8))
+			Files.write(file, new String(utf8, StandardCharsets.UTF_8).getBytes(charset));
+		path = file.toString();
+		systemOut = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.setOut(systemOut);
+	}
+
+
+	@Benchmark
+	public void process() throws IOException {
+		Main.process(path, charset, threads, top);
+	}
+}
@@ -0,0 +1,134 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The report stage: ordering the counts and turning them into lines of text.
+ * @author Darren
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+	@Param({Corpora.ZIPF, Corpora.VARIOUS})
+	public String corpus;
+
+	@Param({"1", "16", "64"})
+	public int megabytes;
+
+	@Param({"100"})
+	public int top;
+
+	private WordCountTable table;
+	private Map<String, Long> map;
+	private OrderedCounts ordered;
+
+	@Setup
+	public void setup() {
+		table = WordCounter.processedTable(Corpora.lines(corpus, megabytes).stream());
+		map = table.toMap();
+		ordered = OrderedCounts.of(table);
+	}
+
+
+	@Benchmark
+	public void orderedLinesToPrintMap(Blackhole blackhole) {
+		WordCounter.orderedLinesToPrint(map).forEach(blackhole::consume);
+	}
+
+	@Benchmark
+	public void orderedLinesToPrintTable(Blackhole blackhole) {
+		WordCounter.orderedLinesToPrint(table).forEach(blackhole::consume);
+	}
+
+	@Benchmark
+	public void topLinesToPrint(Blackhole blackhole) {
+		WordCounter.topLinesToPrint(table, top).forEach(blackhole::consume);
+	}
+
+	//Just the ordering (no formatting).
+	@Benchmark
+	public OrderedCounts ordering() {
+		return OrderedCounts.of(table);
+	}
+
+	//Formatting every line with the resource bundle templates.
+	@Benchmark
+	public void formatWordCount(Blackhole blackhole) {
+		for (int i = 0; i < ordered.size(); i++)
+			blackhole.consume(Messages.FormatWordCount(ordered.word(i), ordered.count(i)));
+	}
+
+	//Writing every line as bytes.
+	@Benchmark
+	public void reportWriter() throws IOException {
+		write(ReportFormat.TEXT);
+	}
+
+	@Benchmark
+	public void csvWriter() throws IOException {
+		write(ReportFormat.CSV);
+	}
+
+	@Benchmark
+	public void jsonLinesWriter() throws IOException {
+		write(ReportFormat.JSONL);
+	}
+
+	@Benchmark
+	public void binaryWriter() throws IOException {
+		write(ReportFormat.BIN);
+	}
+
+	private void write(ReportFormat format) throws IOException {
+		ReportWriter writer = new ReportWriter(new NullChannel(), StandardCharsets.UTF_8, format);
+		ordered.writeTo(writer);
+		writer.close();
+	}
+
+
+	/**
+	 * Throws the bytes away (so the benchmark is just the writer itself).
+	 */
+	static class NullChannel implements WritableByteChannel {
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+/**
+ * Approximate counting in a fixed amount of memory, for input with more distinct words than there is room to count.
+ * Half the memory goes on a Count-Min Sketch of all the words and half on following the most frequent words
+ * with Space-Saving.
+ *
+ * Space-Saving keeps a fixed number of words with their counts. A word that isn't one of them replaces the one with
+ * the lowest count, taking over that count (+1). So the counts can only be too high, by at most the lowest count,
+ * and every word that occurs more often than the lowest count is kept.
+ * While there is room for every word the counts are exact.
+ *
+ * The sketch is {@link #DEPTH} rows of counters with each word counted in one counter per row (picked by a hash).
+ * A word's estimate is its smallest counter, which is also only ever too high: by at most e/width of the total number
+ * of words, with a probability of 1 - e^-depth. The counts reported are the lower of the two estimates.
+ *
+ * Not thread safe.
+ * @author Darren
+ *
+ */
+public class ApproximateWordCounter implements WordTokenizer.WordSink {
+
+	//Rows in the sketch (each one makes it e times less likely an estimate is out by more than the bound).
+	static final int DEPTH = 5;
+	private static final int MIN_WIDTH = 256;
+	private static final int MIN_MONITORED = 16;
+	//Roughly what each word followed by Space-Saving costs: its String, the table and heap slots and the counts.
+	private static final int MONITORED_BYTES = 128;
+
+
+	//The sketch, a row at a time.
+	private final long[] sketch;
+	private final int widthMask;
+
+	//The followed words: an open addressing table of the words (and where they are in the heap)...
+	private final String[] keys;
+	private final int[] hashes;
+	private final int[] heapIndexes;
+	//...and a min heap by count (each entry knows its table slot, so the table can find it and it can find the table).
+	private final int[] heapSlots;
+	private final long[] heapCounts;
+	private int size;
+
+	private long words;
+
+
+	/**
+	 * @param memoryBudget - Roughly how many bytes to use.
+	 */
+	public ApproximateWordCounter(long memoryBudget) {
+		long half = memoryBudget / 2;
+		int width = Integer.highestOneBit((int) Math.min(1 << 26, Math.max(MIN_WIDTH, half / (Long.BYTES * DEPTH))));
+		sketch = new long[width * DEPTH];
+		widthMask = width - 1;
+		int monitored = (int) Math.min(1 << 28, Math.max(MIN_MONITORED, half / MONITORED_BYTES));
+		int capacity = Integer.highestOneBit(monitored) << 2;
+		keys = new String[capacity];
+		hashes = new int[capacity];
+		heapIndexes = new int[capacity];
+		heapSlots = new int[monitored];
+		heapCounts = new long[monitored];
+	}
+
+
+	/**
+	 * Count the words in a file (a line at a time).
+	 * @param file
+	 * @param charset - The charset, or null to guess it (via icu4j).
+	 * @throws IOException
+	 */
+	public void count(Path file, Charset charset) throws IOException {
+		FileWordCounter.tokenize(file, charset, this);
+	}
+
+
+	@Override
+	public void word(CharSequence chars, int start, int end) {
+		long hash = hash(chars, start, end);
+		words++;
+		//The counter in each row comes from combining two halves of the hash (which is as good as DEPTH hashes).
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int row = 0; row < DEPTH; row++)
+			sketch[row * (widthMask + 1) + ((h1 + row * h2) & widthMask)]++;
+		follow(chars, start, end, h1 ^ h2);
+	}
+
+	private void follow(CharSequence chars, int start, int end, int hash) {
+		int slot = find(hash, chars, start, end);
+		if(keys[slot] != null) {
+			int index = heapIndexes[slot];
+			heapCounts[index]++;
+			siftDown(index);
+			return;
+		}
+		if(size < heapSlots.length) {
+			insert(slot, chars.subSequence(start, end).toString(), hash, size++, 1);
+			siftUp(size - 1);
+			return;
+		}
+		//Replace the word with the lowest count, taking over its count.
+		long lowest = heapCounts[0];
+		remove(heapSlots[0]);
+		slot = find(hash, chars, start, end);
+		insert(slot, chars.subSequence(start, end).toString(), hash, 0, lowest + 1);
+		siftDown(0);
+	}
+
+
+	/**
+	 * The number of words counted.
+	 * @return
+	 */
+	public long words() {
+		return words;
+	}
+
+	/**
+	 * The most any count can be too high by (0 while every word is being followed, so the counts are exact).
+	 * Every word that occurs more often than this is in the counts.
+	 * @return
+	 */
+	public long errorBound() {
+		return size < heapSlots.length ? 0 : heapCounts[0];
+	}
+
+	/**
+	 * The most a count can be too high by according to the sketch, with the probability {@link #sketchConfidence()}.
+	 * @return
+	 */
+	public long sketchErrorBound() {
+		return (long) Math.ceil(Math.E / (widthMask + 1) * words);
+	}
+
+	public double sketchConfidence() {
+		return 1 - Math.exp(-DEPTH);
+	}
+
+	/**
+	 * The (estimated) counts of the words being followed, for the report.
+	 * @return
+	 */
+	public WordCountTable counts() {
+		WordCountTable counts = new WordCountTable();
+		for (int i = 0; i < size; i++) {
+			String word = keys[heapSlots[i]];
+			counts.add(word, Math.min(heapCounts[i], estimate(word)));
+		}
+		return counts;
+	}
+
+	/**
+	 * The sketch's estimate of the count of a word.
+	 * @param word
+	 * @return
+	 */
+	public long estimate(String word) {
+		long hash = hash(word, 0, word.length());
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++)
+			estimate = Math.min(estimate, sketch[row * (widthMask + 1) + ((h1 + row * h2) & widthMask)]);
+		return estimate;
+	}
+
+
+	//64 bit FNV-1a of the characters, finished with the MurmurHash3 mix so every bit depends on every character.
+	private static long hash(CharSequence chars, int start, int end) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = start; i < end; i++)
+			hash = (hash ^ chars.charAt(i)) * 0x100000001B3L;
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		return hash ^ (hash >>> 33);
+	}
+
+
+	//The table is the same linear probing as WordCountTable (the hash is already well mixed).
+	private int find(int hash, CharSequence chars, int start, int end) {
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		String key;
+		while((key = keys[slot]) != null) {
+			if(hashes[slot] == hash && matches(key, chars, start, end))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static boolean matches(String key, CharSequence chars, int start, int end) {
+		int length = end - start;
+		if(key.length() != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if(key.charAt(i) != chars.charAt(start + i))
+				return false;
+		}
+		return true;
+	}
+
+	private void insert(int slot, String key, int hash, int index, long count) {
+		keys[slot] = key;
+		hashes[slot] = hash;
+		heapIndexes[slot] = index;
+		heapSlots[index] = slot;
+		heapCounts[index] = count;
+	}
+
+	//Empty the slot, moving back later keys in the probe sequence (and telling the heap where they went).
+	private void remove(int slot) {
+		int mask = keys.length - 1;
+		int next = slot;
+		while(keys[next = (next + 1) & mask] != null) {
+			int home = hashes[next] & mask;
+			if(((next - home) & mask) >= ((next - slot) & mask)) {
+				keys[slot] = keys[next];
+				hashes[slot] = hashes[next];
+				heapIndexes[slot] = heapIndexes[next];
+				heapSlots[heapIndexes[slot]] = slot;
+				slot = next;
+			}
+		}
+		keys[slot] = null;
+	}
+
+
+	private void siftUp(int index) {
+		while(index > 0) {
+			int parent = (index - 1) >>> 1;
+			if(heapCounts[parent] <= heapCounts[index])
+				return;
+			swap(index, parent);
+			index = parent;
+		}
+	}
+
+	private void siftDown(int index) {
+		while(true) {
+			int child = 2 * index + 1;
+			if(child >= size)
+				return;
+			if(child + 1 < size && heapCounts[child + 1] < heapCounts[child])
+				child++;
+			if(heapCounts[index] <= heapCounts[child])
+				return;
+			swap(index, child);
+			index = child;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int slot = heapSlots[a];
+		heapSlots[a] = heapSlots[b];
+		heapSlots[b] = slot;
+		heapIndexes[heapSlots[a]] = a;
+		heapIndexes[heapSlots[b]] = b;
+		long count = heapCounts[a];
+		heapCounts[a] = heapCounts[b];
+		heapCounts[b] = count;
+	}
+}
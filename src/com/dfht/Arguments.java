@@ -5,7 +5,10 @@ import static java.util.stream.Collectors.joining;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -23,15 +26,54 @@ public class Arguments{
 	//Not worth bringing in a library for argument processing in such a small example.
 	private static final String FILE_ARG = "file";
 	private static final String ENCODING_ARG = "encoding";
+	private static final String THREADS_ARG = "threads";
+	private static final String TOP_ARG = "top";
 	private static final String HELP_ARG = "help";
+	private static final String PER_FILE_ARG = "perFile";
+	private static final String INCREMENTAL_ARG = "incremental";
+	private static final String INDEX_ARG = "index";
+	private static final String QUERY_ARG = "query";
+	private static final String WORD_ARG = "word";
+	private static final String PREFIX_ARG = "prefix";
+	private static final String STDIN_ARG = "stdin";
+	private static final String FOLLOW_ARG = "follow";
+	private static final String INTERVAL_ARG = "interval";
+	private static final String WINDOW_ARG = "window";
+	private static final String APPROXIMATE_ARG = "approximate";
+	private static final String MEMORY_ARG = "memory";
+	private static final String STATS_ARG = "stats";
+	private static final String SEGMENT_ARG = "segment";
+	private static final String DEFINE_ARG = "define";
+	private static final String NGRAM_ARG = "ngram";
+	private static final String FORMAT_ARG = "format";
+	private static final String PARTIAL_ARG = "partial";
+	private static final String MERGE_ARG = "merge";
+	private static final String SERVE_ARG = "serve";
+	private static final String CONCURRENCY_ARG = "concurrency";
+	private static final String TIMEOUT_ARG = "timeout";
+	
+	private static final int DEFAULT_INTERVAL = 10;
+	private static final int DEFAULT_WINDOW = 60;
+	private static final int DEFAULT_TIMEOUT = 30;
+	private static final int MAX_PORT = 65535;
+	//The longest n-grams that can be counted.
+	private static final int MAX_NGRAM = 10;
+	//The smallest memory budget for approximate counting.
+	private static final long MIN_MEMORY = 64 * 1024;
+	//Memory sizes, e.g. 512k, 64m or 2g.
+	private static final Pattern MEMORY_REGEX = Pattern.compile("(?<number>\\d+)(?<unit>[kKmMgG]?)");
 
 	private static final Pattern ARG_REGEX;
 	private static final Pattern SWITCH_REGEX;
 	
 	
-	private static final String[] SWITCHES = new String[] {HELP_ARG};
+	private static final String[] SWITCHES = new String[] {HELP_ARG, PER_FILE_ARG, INCREMENTAL_ARG, STDIN_ARG, FOLLOW_ARG, STATS_ARG, 
+			SEGMENT_ARG};
 	   
-	private static final String[] ARGS = new String[] {FILE_ARG, ENCODING_ARG,};
+	private static final String[] ARGS = new String[] {FILE_ARG, ENCODING_ARG, THREADS_ARG, TOP_ARG, INDEX_ARG, QUERY_ARG, 
+			WORD_ARG, PREFIX_ARG, INTERVAL_ARG, WINDOW_ARG, APPROXIMATE_ARG, 
+			MEMORY_ARG, SERVE_ARG, CONCURRENCY_ARG, TIMEOUT_ARG, DEFINE_ARG, NGRAM_ARG, FORMAT_ARG, PARTIAL_ARG, 
+			MERGE_ARG,};
     static {
     	//Cache the arguments regex. It captures values in a group.
     	String pattern = '-' + Arrays.stream(ARGS).collect(joining("|", "(?<key>", ")")) + "\\=(?<value>.+)";
@@ -43,35 +85,156 @@ public class Arguments{
     }
 	
 	private boolean doingHelp = false;
-	private String filePath;
+	//Files, directories or glob patterns (-file can be given more than once).
+	private List<String> filePaths = new ArrayList<>();
 	private Charset encoding;
+	//1 means the plain sequential stream of lines.
+	private int threads = 1;
+	//0 means the whole report.
+	private int top = 0;
+	//A report for each file as well as the combined one.
+	private boolean perFile = false;
+	//Carry on from the checkpoint saved by the last run.
+	private boolean incremental = false;
+	//Where to write an index of the counts (as well as the report).
+	private String indexPath;
+	//An index to look words up in (instead of counting files).
+	private String queryPath;
+	private List<String> words = new ArrayList<>();
+	private String prefix;
+	//Streaming: count stdin, or follow the file as it grows, with a snapshot every interval (in seconds).
+	private boolean stdin = false;
+	private boolean follow = false;
+	private int interval = DEFAULT_INTERVAL;
+	private int window = DEFAULT_WINDOW;
+	//Approximate counting in this many bytes (0 means count exactly).
+	private long approximate = 0;
+	//Exact counting spilling to disk beyond this many bytes (0 means all in memory).
+	private long memory = 0;
+	//Where the time went etc. (as JSON to stderr).
+	private boolean stats = false;
+	//Split Chinese, Thai etc. into words with a dictionary.
+	private boolean segment = false;
+	//What a word is made of.
+	private WordDefinition definition = WordDefinition.DEFAULT;
+	//Count runs of this many words instead of words (0 means just words).
+	private int ngram = 0;
+	//What the report is written as.
+	private ReportFormat format = ReportFormat.TEXT;
+	//Where to write the counts (sorted by word) to be merged later, instead of the report.
+	private String partialPath;
+	//Partial counts to merge (and report, or write as one partial), as well as counting any files.
+	private List<String> mergePaths = new ArrayList<>();
+	//Serving requests on this port (0 means not serving), counting this many at once, each within the timeout.
+	private int servePort = 0;
+	private int concurrency = Runtime.getRuntime().availableProcessors();
+	private int timeout = DEFAULT_TIMEOUT;
 	
 	
 	
 	
 	
 	private static void checkFile(String path) throws InputException {
+		//A pattern is checked when it is expanded (when it has to match at least one file).
+		if(InputFiles.isGlob(path))
+			return;
 		//For user experience it is better to check the file before proceeding to ask about character sets etc.!
 		File f = new File(path);
 		if(!f.exists())
 			throw new InputException(Messages.NoSuchFile(path));
-		if(!f.isFile())
+		if(!f.isFile() && !f.isDirectory())
 			throw new InputException(Messages.NotAFile(path));
 	}
 	
 	
 	
 	
+	private static int checkThreads(String value) throws InputException {
+		int threads = positiveInt(value);
+		if(threads <= 0)
+			throw new InputException(Messages.InvalidThreads(value));
+		return threads;
+	}
+	
+	private static int checkSeconds(String value) throws InputException {
+		int seconds = positiveInt(value);
+		if(seconds <= 0)
+			throw new InputException(Messages.InvalidSeconds(value));
+		return seconds;
+	}
+	
+	private static long checkMemory(String value) throws InputException {
+		Matcher matcher = MEMORY_REGEX.matcher(value);
+		long bytes = -1;
+		if(matcher.matches()) {
+			try {
+				String unit = matcher.group("unit").toLowerCase();
+				int shift = unit.isEmpty() ? 0 : unit.equals("k") ? 10 : unit.equals("m") ? 20 : 30;
+				bytes = Long.parseLong(matcher.group("number"));
+				bytes = bytes > Long.MAX_VALUE >> shift ? -1 : bytes << shift;
+			}
+			catch(NumberFormatException ex) {
+				bytes = -1;
+			}
+		}
+		if(bytes < MIN_MEMORY)
+			throw new InputException(Messages.InvalidMemory(value, MIN_MEMORY));
+		return bytes;
+	}
+	
+	private static int checkPort(String value) throws InputException {
+		int port = positiveInt(value);
+		if(port <= 0 || port > MAX_PORT)
+			throw new InputException(Messages.InvalidPort(value));
+		return port;
+	}
+	
+	private static int checkConcurrency(String value) throws InputException {
+		int concurrency = positiveInt(value);
+		if(concurrency <= 0)
+			throw new InputException(Messages.InvalidConcurrency(value));
+		return concurrency;
+	}
+	
+	private static int checkNgram(String value) throws InputException {
+		int n = positiveInt(value);
+		if(n < 2 || n > MAX_NGRAM)
+			throw new InputException(Messages.InvalidNgram(value, MAX_NGRAM));
+		return n;
+	}
+	
+	static int checkTop(String value) throws InputException {
+		int top = positiveInt(value);
+		if(top <= 0)
+			throw new InputException(Messages.InvalidTop(value));
+		return top;
+	}
+	
+	//The value as a positive int, or -1 if it isn't one.
+	private static int positiveInt(String value) {
+		try {
+			int number = Integer.parseInt(value);
+			return number > 0 ? number : -1;
+		}
+		catch(NumberFormatException ex) {
+			return -1;
+		}
+	}
+	
+	
 	static String usageMessage() {
-		return Messages.Usage(Arguments.HELP_ARG, Arguments.FILE_ARG, Arguments.ENCODING_ARG);
+		return Messages.Usage(Arguments.HELP_ARG, Arguments.FILE_ARG, Arguments.ENCODING_ARG, Arguments.THREADS_ARG, Arguments.TOP_ARG, 
+				Arguments.PER_FILE_ARG, Arguments.INCREMENTAL_ARG, Arguments.INDEX_ARG, Arguments.QUERY_ARG, Arguments.WORD_ARG, 
+				Arguments.PREFIX_ARG, Arguments.STDIN_ARG, Arguments.FOLLOW_ARG, Arguments.INTERVAL_ARG, Arguments.WINDOW_ARG, 
+				Arguments.APPROXIMATE_ARG, Arguments.MEMORY_ARG, Arguments.STATS_ARG, Arguments.SERVE_ARG, 
+				Arguments.CONCURRENCY_ARG, Arguments.TIMEOUT_ARG, Arguments.SEGMENT_ARG, 
+				Arguments.DEFINE_ARG, Arguments.NGRAM_ARG, Arguments.FORMAT_ARG, Arguments.PARTIAL_ARG, Arguments.MERGE_ARG);
 			
 	}
 	
-	private Arguments(boolean doHelp, String filePath, Charset encoding) {
+	//The fields are filled in as the arguments are parsed (there are too many for a constructor now).
+	private Arguments() {
 		super();
-		this.doingHelp = doHelp;
-		this.encoding = encoding;
-		this.filePath = filePath;
 	}
 	
 	/**
@@ -94,9 +257,7 @@ public class Arguments{
 	 * @throws InputException
 	 */
 	public static Arguments from(boolean checkFile, String... args) throws InputException {
-		boolean doHelp = false;
-		Charset encoding = null;
-		String filePath = null;	
+		Arguments arguments = new Arguments();
 		//Check the file path and encoding if specified for early as possible failure (better user experience etc.).
 		outerloop:
 		for (String arg: args) {
@@ -106,12 +267,70 @@ public class Arguments{
 				String value = matcher.group("value");
 				switch (key) {
 				case FILE_ARG:
-					filePath = value;
 					if(checkFile)
-						checkFile(filePath);
+						checkFile(value);
+					arguments.filePaths.add(value);
 					break;
 				case ENCODING_ARG:
-					encoding = CharsetHelper.checkCharset(value);
+					arguments.encoding = CharsetHelper.checkCharset(value);
+					break;
+				case THREADS_ARG:
+					arguments.threads = checkThreads(value);
+					break;
+				case TOP_ARG:
+					arguments.top = checkTop(value);
+					break;
+				case INDEX_ARG:
+					arguments.indexPath = value;
+					break;
+				case QUERY_ARG:
+					if(checkFile)
+						checkFile(value);
+					arguments.queryPath = value;
+					break;
+				case WORD_ARG:
+					arguments.words.add(value);
+					break;
+				case PREFIX_ARG:
+					arguments.prefix = value;
+					break;
+				case INTERVAL_ARG:
+					arguments.interval = checkSeconds(value);
+					break;
+				case WINDOW_ARG:
+					arguments.window = checkSeconds(value);
+					break;
+				case APPROXIMATE_ARG:
+					arguments.approximate = checkMemory(value);
+					break;
+				case MEMORY_ARG:
+					arguments.memory = checkMemory(value);
+					break;
+				case SERVE_ARG:
+					arguments.servePort = checkPort(value);
+					break;
+				case CONCURRENCY_ARG:
+					arguments.concurrency = checkConcurrency(value);
+					break;
+				case TIMEOUT_ARG:
+					arguments.timeout = checkSeconds(value);
+					break;
+				case DEFINE_ARG:
+					arguments.definition = WordDefinition.parse(value);
+					break;
+				case NGRAM_ARG:
+					arguments.ngram = checkNgram(value);
+					break;
+				case FORMAT_ARG:
+					arguments.format = ReportFormat.parse(value);
+					break;
+				case PARTIAL_ARG:
+					arguments.partialPath = value;
+					break;
+				case MERGE_ARG:
+					if(checkFile)
+						checkFile(value);
+					arguments.mergePaths.add(value);
 					break;
 				}
 			}
@@ -122,50 +341,232 @@ public class Arguments{
 					String key = matcher.group("key");
 					switch (key) {
 					case HELP_ARG:
-						doHelp = true;
 						//Help short circuits it all here as presence of help argument 
 						//means I don't bother processing the other arguments.
+						arguments = new Arguments();
+						arguments.doingHelp = true;
 						break outerloop;
+					case PER_FILE_ARG:
+						arguments.perFile = true;
+						break;
+					case INCREMENTAL_ARG:
+						arguments.incremental = true;
+						break;
+					case STDIN_ARG:
+						arguments.stdin = true;
+						break;
+					case FOLLOW_ARG:
+						arguments.follow = true;
+						break;
+					case STATS_ARG:
+						arguments.stats = true;
+						break;
+					case SEGMENT_ARG:
+						arguments.segment = true;
+						break;
 					}
 				}
 			}
 		}
-		return new Arguments(doHelp, filePath, encoding);	
+		return arguments;	
 	}
 
 	public boolean isDoingHelp() {
 		return doingHelp;
 	}
 
+	//The first (or only) path.
 	public String getFilePath() {
-		return filePath;
+		return filePaths.isEmpty() ? null : filePaths.get(0);
+	}
+
+	public List<String> getFilePaths() {
+		return Collections.unmodifiableList(filePaths);
 	}
 
 	public Charset getEncoding() {
 		return encoding;
 	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getTop() {
+		return top;
+	}
+
+	public boolean isPerFile() {
+		return perFile;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	public String getIndexPath() {
+		return indexPath;
+	}
+
+	//Null unless looking words up in an index.
+	public String getQueryPath() {
+		return queryPath;
+	}
+
+	public List<String> getWords() {
+		return Collections.unmodifiableList(words);
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public boolean isStdin() {
+		return stdin;
+	}
+
+	public boolean isFollow() {
+		return follow;
+	}
+
+	public boolean isStreaming() {
+		return stdin || follow;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	//The memory budget for approximate counting, or 0 to count exactly.
+	public long getApproximate() {
+		return approximate;
+	}
+
+	//The memory budget for counting exactly (spilling to disk), or 0 to count in memory.
+	public long getMemory() {
+		return memory;
+	}
+
+	public boolean isStats() {
+		return stats;
+	}
+
+	public boolean isSegment() {
+		return segment;
+	}
+
+	public WordDefinition getDefinition() {
+		return definition;
+	}
+
+	//The number of words in each n-gram counted, or 0 to count words.
+	public int getNgram() {
+		return ngram;
+	}
+
+	public ReportFormat getFormat() {
+		return format;
+	}
+
+	//Null unless writing partial counts rather than a report.
+	public String getPartialPath() {
+		return partialPath;
+	}
+
+	public List<String> getMergePaths() {
+		return Collections.unmodifiableList(mergePaths);
+	}
+
+	public boolean isMerging() {
+		return !mergePaths.isEmpty();
+	}
+
+	//The port to serve requests on, or 0 to count the files given.
+	public int getServePort() {
+		return servePort;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	//Seconds each request can take.
+	public int getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Check the arguments don't ask for anything that can't be done together (rather than ignoring some of them).
+	 * @throws InputException - If they do.
+	 */
+	public void checkConflicts() throws InputException {
+		//The counts are never all in memory to be indexed (as for a merge), and approximate counting has its own memory.
+		if(memory > 0 && indexPath != null)
+			throw new InputException(Messages.Conflicting(MEMORY_ARG, INDEX_ARG));
+		if(!mergePaths.isEmpty() && indexPath != null)
+			throw new InputException(Messages.Conflicting(MERGE_ARG, INDEX_ARG));
+		if(memory > 0 && approximate > 0)
+			throw new InputException(Messages.Conflicting(MEMORY_ARG, APPROXIMATE_ARG));
+		//Counting within a memory budget is a line at a time on one thread, into one report (with nothing to save).
+		if(memory > 0) {
+			if(threads > 1)
+				throw new InputException(Messages.Conflicting(MEMORY_ARG, THREADS_ARG));
+			if(perFile)
+				throw new InputException(Messages.Conflicting(MEMORY_ARG, PER_FILE_ARG));
+			if(incremental)
+				throw new InputException(Messages.Conflicting(MEMORY_ARG, INCREMENTAL_ARG));
+		}
+		//Approximate counting is a line at a time on one thread, into one sketch of all the files (with nothing to save).
+		if(approximate > 0) {
+			if(threads > 1)
+				throw new InputException(Messages.Conflicting(APPROXIMATE_ARG, THREADS_ARG));
+			if(perFile)
+				throw new InputException(Messages.Conflicting(APPROXIMATE_ARG, PER_FILE_ARG));
+			if(incremental)
+				throw new InputException(Messages.Conflicting(APPROXIMATE_ARG, INCREMENTAL_ARG));
+		}
+		//N-grams are counted exactly, in memory, on one thread and into one report (which can't be indexed).
+		if(ngram > 0) {
+			if(indexPath != null)
+				throw new InputException(Messages.Conflicting(NGRAM_ARG, INDEX_ARG));
+			if(memory > 0)
+				throw new InputException(Messages.Conflicting(NGRAM_ARG, MEMORY_ARG));
+			if(approximate > 0)
+				throw new InputException(Messages.Conflicting(NGRAM_ARG, APPROXIMATE_ARG));
+			if(threads > 1)
+				throw new InputException(Messages.Conflicting(NGRAM_ARG, THREADS_ARG));
+			if(perFile)
+				throw new InputException(Messages.Conflicting(NGRAM_ARG, PER_FILE_ARG));
+			if(incremental)
+				throw new InputException(Messages.Conflicting(NGRAM_ARG, INCREMENTAL_ARG));
+		}
+	}
 	
 	//Fill in (by command line input) anything not passed in as an argument. Also, check anything that is entered.
 	void complete() throws IOException, InputException{
+		//A query only needs its index, stdin is the input rather than where to ask for a path, a server is sent its input
+		//and a merge has the partial counts.
+		if(queryPath != null || stdin || servePort > 0 || !mergePaths.isEmpty())
+			return;
 		//If a fie path is not provided then ask on the command line.
-		if(filePath == null) {
+		if(filePaths.isEmpty()) {
 			//Try with resources so scanner is closed.
 		    try(Scanner scanner = new Scanner(System.in)) {
 		    	//First ask for the path (if not specified).
-		    	if(filePath ==null) {
+		    	if(filePaths.isEmpty()) {
 			    	
 			    	System.out.print(Messages.EnterPath()); 
 			    	String path = scanner.next();
 			    	checkFile(path);
-			    	this.filePath = path;
+			    	this.filePaths.add(path);
 		    	}
 		    }
 		}
-		//if an encoding isn't provided, guess it from the BOM via icu4j (falling back on platform default).
-		if(encoding == null) {
-	    		//Hmmm, what character set should I use here? I could assume it, or just allow the user to enter it.....	
-		    	//In fact I will just use icu4j to try and guess it from the BOM if its not provided.
-				this.encoding = CharsetHelper.guessCharset(this.filePath);
-	    }
+		//If an encoding isn't provided it is guessed for each file as it is counted (from the first bytes read,
+		//so the file isn't opened an extra time just for that). See CharsetHelper.
 	}
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package com.dfht;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A report written in the binary format (-format=bin, see {@link ReportWriter}), memory mapped so any word and count
+ * can be read straight from it without reading (or parsing) the rest.
+ *
+ * The layout (all big endian) is:
+ * <ul>
+ * <li>A header: magic ("WCRP") and version, as ints.</li>
+ * <li>A record for each word in report order: its count (a long), the length of the word in bytes (an int) and the
+ * word as UTF-8.</li>
+ * <li>From the next multiple of 8 bytes, the index: where each record starts (a long each).</li>
+ * <li>The last 16 bytes: the number of words and where the index starts (longs).</li>
+ * </ul>
+ * The index and its size come last so the report can be written as it goes (e.g. as the runs of an external count
+ * are merged), but any word can still be found from the end of the file in one step.
+ * Not thread safe (each thread should open its own).
+ * @author Darren
+ *
+ */
+public class BinaryReport implements Closeable {
+
+	//"WCRP".
+	static final int MAGIC = 0x57435250;
+	static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int TRAILER_SIZE = 16;
+
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int size;
+	private final int index;
+
+
+	private BinaryReport(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+		this.channel = channel;
+		this.buffer = buffer;
+		int limit = buffer.limit();
+		if(limit < HEADER_SIZE + TRAILER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException(Messages.NotABinaryReport());
+		long words = buffer.getLong(limit - TRAILER_SIZE);
+		long index = buffer.getLong(limit - TRAILER_SIZE + Long.BYTES);
+		if(words < 0 || index < HEADER_SIZE || index + words * Long.BYTES != limit - TRAILER_SIZE)
+			throw new IOException(Messages.NotABinaryReport());
+		this.size = (int) words;
+		this.index = (int) index;
+	}
+
+
+	/**
+	 * Open (memory map) a report written in the binary format.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static BinaryReport open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(Messages.ReportTooLarge(path.toString()));
+			return new BinaryReport(channel, channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+		catch(IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+
+	/**
+	 * The number of words.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The ith word in report order.
+	 * @param i
+	 * @return
+	 */
+	public String word(int i) {
+		int record = record(i);
+		int length = buffer.getInt(record + Long.BYTES);
+		ByteBuffer word = buffer.duplicate();
+		word.position(record + Long.BYTES + Integer.BYTES).limit(record + Long.BYTES + Integer.BYTES + length);
+		return StandardCharsets.UTF_8.decode(word).toString();
+	}
+
+	/**
+	 * The count of the ith word in report order.
+	 * @param i
+	 * @return
+	 */
+	public long count(int i) {
+		return buffer.getLong(record(i));
+	}
+
+	private int record(int i) {
+		if(i < 0 || i >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(i));
+		return (int) buffer.getLong(index + i * Long.BYTES);
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -3,49 +3,198 @@
  */
 package com.dfht;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import com.ibm.icu.text.CharsetDetector;
 import com.ibm.icu.text.CharsetMatch;
 
 /**
+ * Guessing the charset of the input from its first bytes.
+ * A BOM, or bytes that are valid UTF-8 (which includes plain ASCII), are recognised straight away.
+ * Only anything else goes to icu4j's CharsetDetector, which is much slower (and takes a while to load).
  * @author Darren
  *
  */
 public class CharsetHelper {
 	
+	//How much of the start of the input is looked at.
+	public static final int SAMPLE_SIZE = 64 * 1024;
+	//How much of the sample icu4j looks at (what it reads of a stream itself).
+	private static final int ICU_SAMPLE_SIZE = 8000;
 	
+	
+	//A compressed file's charset is that of its decompressed content.
 	static Charset guessCharset(String path) throws IOException {
-		
-		 try( FileInputStream input = new FileInputStream(path);
-			  //Needs to be BufferedInputStream so markSupported is true.
-		      BufferedInputStream bis = new BufferedInputStream(input); 
-				 ){
-			 return guessCharset(bis);  
-		 }
+		byte[] sample = new byte[SAMPLE_SIZE];
+		int length;
+		try(InputStream input = Files.newInputStream(Paths.get(path))){
+			length = readFully(input, sample);
+		}
+		if(CompressedInput.isCompressed(ByteBuffer.wrap(sample, 0, length))) {
+			try(InputStream input = CompressedInput.open(Files.newInputStream(Paths.get(path)), 1)){
+				length = readFully(input, sample);
+			}
+		}
+		return guessCharset(ByteBuffer.wrap(sample, 0, length), length < SAMPLE_SIZE);
 	}
 	
 	//Public so the tests can use it.
+	//The stream must support mark (e.g. a BufferedInputStream), as it is reset to where it was after the guess.
 	public static Charset guessCharset(InputStream stream) throws IOException {
-		  CharsetDetector cd = new CharsetDetector();
-		  cd.setText(stream);
-		  CharsetMatch cm = cd.detect();
-		  Charset charSet = null;
-		  if (cm != null) {
-			  try {
-				  charSet = Charset.forName(cm.getName());
-			  }
-			 catch(IllegalArgumentException ex) {
-				 //Just fall back on the default platform charset. 
-			 }
-		  }
-		  if(charSet == null)
-			  charSet = Charset.defaultCharset();
-		  return charSet;
+		byte[] sample = new byte[SAMPLE_SIZE];
+		stream.mark(SAMPLE_SIZE);
+		int length = readFully(stream, sample);
+		stream.reset();
+		return guessCharset(ByteBuffer.wrap(sample, 0, length), length < SAMPLE_SIZE);
+	}
+	
+	/**
+	 * Guess the charset from the bytes at the start of the input (between the buffer's position and limit).
+	 * @param sample
+	 * @param whole - Whether the sample is all of the input (if not it may end part way through a character).
+	 * @return
+	 */
+	static Charset guessCharset(ByteBuffer sample, boolean whole) {
+		Charset charset = bomCharset(sample);
+		if(charset == null && isUtf8(sample, whole))
+			charset = StandardCharsets.UTF_8;
+		if(charset == null)
+			charset = Icu.guessCharset(sample);
+		if(charset == null)
+			charset = Charset.defaultCharset();
+		return charset;
+	}
+	
+	
+	//The charset given by a byte order mark (the names are the ones icu4j gives them).
+	private static Charset bomCharset(ByteBuffer sample) {
+		int start = sample.position();
+		int remaining = sample.remaining();
+		int b0 = remaining > 0 ? sample.get(start) & 0xFF : -1;
+		int b1 = remaining > 1 ? sample.get(start + 1) & 0xFF : -1;
+		int b2 = remaining > 2 ? sample.get(start + 2) & 0xFF : -1;
+		int b3 = remaining > 3 ? sample.get(start + 3) & 0xFF : -1;
+		if(b0 == 0xEF && b1 == 0xBB && b2 == 0xBF)
+			return StandardCharsets.UTF_8;
+		if(b0 == 0x00 && b1 == 0x00 && b2 == 0xFE && b3 == 0xFF)
+			return Charset.forName("UTF-32BE");
+		if(b0 == 0xFF && b1 == 0xFE && b2 == 0x00 && b3 == 0x00)
+			return Charset.forName("UTF-32LE");
+		if(b0 == 0xFE && b1 == 0xFF)
+			return StandardCharsets.UTF_16BE;
+		if(b0 == 0xFF && b1 == 0xFE)
+			return StandardCharsets.UTF_16LE;
+		return null;
+	}
+	
+	//Whether the bytes are all well formed UTF-8. A NUL means it is more likely to be UTF-16 or binary, so that's a no.
+	private static boolean isUtf8(ByteBuffer sample, boolean whole) {
+		int i = sample.position();
+		int end = sample.limit();
+		while(i < end) {
+			int b = sample.get(i) & 0xFF;
+			if(b >= 0x01 && b < 0x80) {
+				i++;
+				continue;
+			}
+			int length;
+			int min;
+			if(b >= 0xC2 && b <= 0xDF) {
+				length = 2;
+				min = 0x80;
+			}
+			else if(b >= 0xE0 && b <= 0xEF) {
+				length = 3;
+				min = 0x800;
+			}
+			else if(b >= 0xF0 && b <= 0xF4) {
+				length = 4;
+				min = 0x10000;
+			}
+			else {
+				//NUL, a continuation byte with nothing before it, or a byte never used in UTF-8.
+				return false;
+			}
+			if(i + length > end)
+				//Cut off at the end of the sample is fine (but not at the end of the input).
+				return !whole && continuations(sample, i + 1, end);
+			if(!continuations(sample, i + 1, i + length))
+				return false;
+			int codePoint = b & (0xFF >> (length + 1));
+			for (int j = 1; j < length; j++)
+				codePoint = (codePoint << 6) | (sample.get(i + j) & 0x3F);
+			//Overlong, a surrogate or beyond Unicode.
+			if(codePoint < min || (codePoint >= 0xD800 && codePoint <= 0xDFFF) || codePoint > 0x10FFFF)
+				return false;
+			i += length;
+		}
+		return true;
+	}
+	
+	private static boolean continuations(ByteBuffer sample, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if((sample.get(i) & 0xC0) != 0x80)
+				return false;
+		}
+		return true;
+	}
+	
+	//Read until the array is full or the end of the stream, returning how many bytes were read.
+	private static int readFully(InputStream input, byte[] bytes) throws IOException {
+		int length = 0;
+		int read;
+		while(length < bytes.length && (read = input.read(bytes, length, bytes.length - length)) > 0)
+			length += read;
+		return length;
+	}
+	
+	
+	//Kept apart so that icu4j's classes are only loaded if it is actually needed.
+	private static class Icu {
+		
+		static Charset guessCharset(ByteBuffer sample) {
+			byte[] bytes = new byte[Math.min(sample.remaining(), ICU_SAMPLE_SIZE)];
+			sample.duplicate().get(bytes);
+			CharsetDetector cd = new CharsetDetector();
+			cd.setText(bytes);
+			CharsetMatch cm = cd.detect();
+			if (cm != null) {
+				try {
+					return Charset.forName(cm.getName());
+				}
+				catch(IllegalArgumentException ex) {
+					//Just fall back on the default platform charset. 
+				}
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * The charset System.out encodes with (so output written as bytes comes out the same as if it were printed).
+	 * That is stdout.encoding (newer JDKs) or sun.stdout.encoding (older ones, set for a Windows console),
+	 * and otherwise the platform default.
+	 * @return
+	 */
+	static Charset consoleCharset() {
+		for (String property : new String[] {"stdout.encoding", "sun.stdout.encoding"}) {
+			String name = System.getProperty(property);
+			if(name != null) {
+				try {
+					return Charset.forName(name);
+				}
+				catch(IllegalArgumentException ex) {
+					//Try the next one.
+				}
+			}
+		}
+		return Charset.defaultCharset();
 	}
 	
 	static Charset checkCharset(String name) throws InputException{
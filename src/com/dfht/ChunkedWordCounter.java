@@ -0,0 +1,286 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel counting for large files.
+ * The file is memory mapped and split into chunks at line boundaries. Each chunk is decoded and
+ * counted on a fork-join worker into its own {@link WordCountTable} and the tables are merged as the tasks join.
+ * The words are found by the same {@link WordTokenizer} as in {@link WordCounter#processedCounts(java.util.stream.Stream)},
+ * so the final report is identical to the sequential one.
+ * UTF-8 chunks aren't decoded at all, but counted by the {@link Utf8WordCounter}.
+ * @author Darren
+ *
+ */
+public class ChunkedWordCounter {
+
+	//Below this there is no point splitting the file up (the fork-join overhead would dominate).
+	public static final int DEFAULT_MIN_CHUNK_SIZE = 1 << 20;
+
+	//A mapped region can't be larger than this, so a chunk can't be either.
+	private static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE - 8;
+
+	//I aim for a few chunks per thread so that a slow chunk doesn't leave the other threads idle at the end.
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	//How much I read at a time when looking for the end of a line.
+	private static final int BOUNDARY_SEARCH_SIZE = 8 * 1024;
+
+	private static final byte LINE_FEED = '\n';
+
+
+	/**
+	 * I can only split the raw bytes at a '\n' byte if that byte can never be part of another character.
+	 * This is true for UTF-8 (all the bytes of a multi-byte sequence have the top bit set) and for
+	 * single byte character sets where '\n' is encoded as itself. It isn't true for UTF-16 etc.
+	 * @param charset
+	 * @return
+	 */
+	public static boolean canSplit(Charset charset) {
+		if(StandardCharsets.UTF_8.equals(charset))
+			return true;
+		if(!charset.canEncode())
+			return false;
+		CharsetEncoder encoder = charset.newEncoder();
+		if(encoder.maxBytesPerChar() != 1.0f)
+			return false;
+		try {
+			ByteBuffer encoded = encoder.encode(CharBuffer.wrap("\n"));
+			return encoded.remaining() == 1 && encoded.get(0) == LINE_FEED;
+		}
+		catch(CharacterCodingException ex) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Count the words in the file using the given number of threads.
+	 * @param path
+	 * @param charset - Must be a charset that {@link #canSplit(Charset)}.
+	 * @param threads
+	 * @return The table of words to the number of occurrences.
+	 * @throws IOException
+	 */
+	public static WordCountTable processedCounts(Path path, Charset charset, int threads) throws IOException {
+		return processedCounts(path, charset, threads, DEFAULT_MIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * As {@link #processedCounts(Path, Charset, int)}, but with control over the smallest chunk
+	 * (useful for the tests so that small files are still split).
+	 * @param path
+	 * @param charset
+	 * @param threads
+	 * @param minChunkSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordCountTable processedCounts(Path path, Charset charset, int threads, int minChunkSize) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return processedCounts(channel, charset, threads, minChunkSize, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Count the words in a file that has been opened with its start already read.
+	 * The complete lines in the start are counted from the bytes already read, and only the rest is read from the file.
+	 * @param input
+	 * @param threads
+	 * @return
+	 * @throws IOException
+	 */
+	static WordCountTable processedCounts(SampledFile input, int threads) throws IOException {
+		ByteBuffer sample = input.sample();
+		if(sample.limit() == input.size())
+			return count(sample, input.charset());
+		int lineEnd = sample.limit();
+		while(lineEnd > 0 && sample.get(lineEnd - 1) != LINE_FEED)
+			lineEnd--;
+		sample.limit(lineEnd);
+		WordCountTable start = count(sample, input.charset());
+		WordCountTable rest = processedCounts(input.channel(), input.charset(), threads, DEFAULT_MIN_CHUNK_SIZE, lineEnd, input.size());
+		return WordCountTable.merge(start, rest);
+	}
+
+	/**
+	 * Count the words in just the bytes [from, to) of an open file.
+	 * The range must start at the start of a line (or the file) and end at the end of one (or the file).
+	 * @param channel
+	 * @param charset - Must be a charset that {@link #canSplit(Charset)}.
+	 * @param threads
+	 * @param minChunkSize
+	 * @param from
+	 * @param to
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordCountTable processedCounts(FileChannel channel, Charset charset, int threads, int minChunkSize, 
+			long from, long to) throws IOException {
+		if(!canSplit(charset))
+			throw new IllegalArgumentException(charset.name());
+		List<Long> boundaries = chunkBoundaries(channel, threads, minChunkSize, from, to);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.invoke(new ChunkTask(channel, charset, boundaries, 0, boundaries.size() - 1));
+		}
+		catch(UncheckedIOException ex) {
+			//Put the original exception back (the tasks can't throw checked exceptions).
+			throw ex.getCause();
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+
+
+	//Count the words in some whole lines of bytes.
+	private static WordCountTable count(ByteBuffer bytes, Charset charset) throws CharacterCodingException {
+		//UTF-8 is counted straight from the bytes.
+		if(Utf8WordCounter.handles(charset))
+			return Utf8WordCounter.processedTable(bytes);
+		//A decoder isn't thread safe so each chunk gets its own.
+		//The default for a new decoder is to report malformed input, which is what Files.lines does too.
+		CharsetDecoder decoder = charset.newDecoder();
+		CharBuffer chars = decoder.decode(bytes);
+		//Each chunk ends with a line, so no word is split between chunks.
+		WordCountTable table = new WordCountTable();
+		WordTokenizer.tokenize(chars, table);
+		RunStats.lines(chars);
+		return table;
+	}
+
+
+	//Work out where each chunk starts, with each one (except possibly the last) ending just after a '\n'.
+	//The returned list starts with from and ends with to, so chunk i is [boundaries[i], boundaries[i + 1]).
+	private static List<Long> chunkBoundaries(FileChannel channel, int threads, int minChunkSize, long from, long to) throws IOException {
+		long chunkSize = Math.max(minChunkSize, (to - from) / ((long) threads * CHUNKS_PER_THREAD));
+		chunkSize = Math.max(1, Math.min(chunkSize, MAX_CHUNK_SIZE));
+		List<Long> boundaries = new ArrayList<>();
+		boundaries.add(from);
+		long start = from;
+		while(start < to) {
+			long end = start + chunkSize >= to ? to : nextLineStart(channel, start + chunkSize, to);
+			//If a single line is enormous the chunk might get too big to map, but there is no safe place to split it.
+			if(end - start > MAX_CHUNK_SIZE)
+				throw new IOException(Messages.LineTooLong(start));
+			boundaries.add(end);
+			start = end;
+		}
+		return boundaries;
+	}
+
+
+	/**
+	 * The position just after the last '\n' in [from, to), or from if there isn't one.
+	 * (i.e. the end of the last complete line).
+	 * @param channel
+	 * @param from
+	 * @param to
+	 * @return
+	 * @throws IOException
+	 */
+	static long lastLineEnd(FileChannel channel, long from, long to) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SEARCH_SIZE);
+		long end = to;
+		while(end > from) {
+			long position = Math.max(from, end - BOUNDARY_SEARCH_SIZE);
+			buffer.clear();
+			buffer.limit((int) (end - position));
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException(Messages.FileChanged(position));
+			}
+			for (int i = buffer.limit() - 1; i >= 0; i--) {
+				if(buffer.get(i) == LINE_FEED)
+					return position + i + 1;
+			}
+			end = position;
+		}
+		return from;
+	}
+
+
+	//The position just after the first '\n' at or after from (or the end of the file).
+	private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SEARCH_SIZE);
+		long position = from;
+		while(position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if(read <= 0)
+				break;
+			for (int i = 0; i < read; i++) {
+				if(buffer.get(i) == LINE_FEED)
+					return position + i + 1;
+			}
+			position += read;
+		}
+		return size;
+	}
+
+
+
+	/**
+	 * Counts a contiguous run of chunks.
+	 * Splits in half until there is a single chunk, which is counted into a table of its own.
+	 * The tables are merged as the tasks join.
+	 */
+	private static class ChunkTask extends RecursiveTask<WordCountTable> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final Charset charset;
+		private final List<Long> boundaries;
+		private final int from;
+		private final int to;
+
+		ChunkTask(FileChannel channel, Charset charset, List<Long> boundaries, int from, int to) {
+			this.channel = channel;
+			this.charset = charset;
+			this.boundaries = boundaries;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected WordCountTable compute() {
+			if(to - from <= 1)
+				return from == to ? new WordCountTable() : countChunk(boundaries.get(from), boundaries.get(to));
+			int middle = (from + to) >>> 1;
+			ChunkTask left = new ChunkTask(channel, charset, boundaries, from, middle);
+			left.fork();
+			WordCountTable right = new ChunkTask(channel, charset, boundaries, middle, to).compute();
+			return WordCountTable.merge(left.join(), right);
+		}
+
+		private WordCountTable countChunk(long start, long end) {
+			try {
+				MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, start, end - start);
+				return count(mapped, charset);
+			}
+			catch(IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+}
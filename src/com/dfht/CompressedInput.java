@@ -0,0 +1,309 @@
+package com.dfht;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The decompressed bytes of gzip or zlib (deflate) input, which is recognised by its first bytes.
+ * The decompression is done on a thread of its own, which hands the decompressed blocks over through a bounded queue,
+ * so it carries on while the blocks already decompressed are counted (and can't get more than the queue ahead).
+ *
+ * A gzip file can be several members (gzip files concatenated). If they say how long they are, as
+ * BGZF (blocked gzip, as written by bgzip) members do in their extra field, they are decompressed in parallel:
+ * the thread just reads each member's bytes and queues a task to decompress it on a pool of threads.
+ * The blocks are queued (and so read) in the order of the members whichever finishes first.
+ * Other gzip is decompressed a member after another (there is no knowing where a member ends without decompressing it).
+ * @author Darren
+ *
+ */
+class CompressedInput extends InputStream {
+
+	private static final int GZIP_MAGIC = 0x8B1F;
+	private static final int DEFLATE = 8;
+	private static final int FEXTRA = 4;
+	//gzip header up to the extra field's length.
+	private static final int HEADER_SIZE = 12;
+	//With the BGZF extra field.
+	private static final int BGZF_HEADER_SIZE = HEADER_SIZE + 6;
+	//CRC32 and ISIZE.
+	private static final int TRAILER_SIZE = 8;
+	//The BGZF extra subfield: "BC" with 2 bytes of BSIZE (the member's size - 1).
+	private static final int BGZF_ID = 'B' | 'C' << 8;
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	//Decompressed blocks waiting to be read (per thread).
+	private static final int QUEUED_BLOCKS = 4;
+	//How much of the start is decompressed to make sure zlib input really is.
+	private static final int CHECK_SIZE = 1024;
+
+	//Queued after the last block.
+	private static final Future<byte[]> END = CompletableFuture.completedFuture(null);
+
+
+	private final PushbackInputStream raw;
+	private final BlockingQueue<Future<byte[]>> blocks;
+	private final ExecutorService pool;
+	private final Thread decompressor;
+	private byte[] block = new byte[0];
+	private int position;
+	private boolean ended;
+
+
+	private CompressedInput(PushbackInputStream raw, boolean gzip, int threads) {
+		this.raw = raw;
+		blocks = new ArrayBlockingQueue<>(QUEUED_BLOCKS * Math.max(1, threads));
+		pool = gzip ? Executors.newFixedThreadPool(Math.max(1, threads), runnable -> daemon(runnable, "WordCounter inflater")) : null;
+		decompressor = daemon(() -> decompress(gzip), "WordCounter decompressor");
+		decompressor.start();
+	}
+
+	private static Thread daemon(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+
+	/**
+	 * Whether the input starting with these bytes is gzip or zlib.
+	 * zlib only has a 2 byte header (which could be text, e.g. "x^"), so the start of it is decompressed to check.
+	 * @param sample - The start of the input (between its position and limit).
+	 * @return
+	 */
+	static boolean isCompressed(ByteBuffer sample) {
+		if(sample.remaining() < 3)
+			return false;
+		int first = sample.get(sample.position()) & 0xFF;
+		int second = sample.get(sample.position() + 1) & 0xFF;
+		if((first | second << 8) == GZIP_MAGIC)
+			return sample.get(sample.position() + 2) == DEFLATE;
+		//zlib: deflate with a 32K window, no preset dictionary and the header check.
+		if(first != 0x78 || (second & 0x20) != 0 || (first << 8 | second) % 31 != 0)
+			return false;
+		Inflater inflater = new Inflater();
+		try {
+			byte[] start = new byte[sample.remaining()];
+			sample.duplicate().get(start);
+			inflater.setInput(start);
+			inflater.inflate(new byte[CHECK_SIZE]);
+			return true;
+		}
+		catch(DataFormatException ex) {
+			return false;
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Start decompressing the input.
+	 * @param raw - The compressed input, from the start (which must be {@link #isCompressed(ByteBuffer)}).
+	 * @param threads - How many members can be decompressed at once (if they are BGZF).
+	 * @return The decompressed input, which must be closed (which closes the raw input too).
+	 */
+	static CompressedInput open(InputStream raw, int threads) throws IOException {
+		//GZIPInputStream relies on available() to tell whether another member follows, which this keeps right.
+		PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(raw, BLOCK_SIZE), BGZF_HEADER_SIZE);
+		byte[] magic = new byte[2];
+		int read = readFully(in, magic, 0, magic.length);
+		in.unread(magic, 0, read);
+		return new CompressedInput(in, read == magic.length && shortAt(magic, 0) == GZIP_MAGIC, threads);
+	}
+
+
+	//On the decompressor thread.
+	private void decompress(boolean gzip) {
+		try {
+			InputStream in = gzip ? parallel() : raw;
+			if(in != null)
+				sequential(gzip ? new GZIPInputStream(in, BLOCK_SIZE) : new InflaterInputStream(in, new Inflater(), BLOCK_SIZE));
+			blocks.put(END);
+		}
+		catch(InterruptedException | InterruptedIOException ex) {
+			//Closed.
+		}
+		catch(IOException | RuntimeException ex) {
+			CompletableFuture<byte[]> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			try {
+				blocks.put(failed);
+			}
+			catch(InterruptedException closed) {
+				//Closed.
+			}
+		}
+	}
+
+	private void sequential(InputStream in) throws IOException, InterruptedException {
+		while(true) {
+			byte[] decompressed = new byte[BLOCK_SIZE];
+			int length = readFully(in, decompressed, 0, decompressed.length);
+			if(length > 0)
+				blocks.put(CompletableFuture.completedFuture(length < decompressed.length ? copy(decompressed, length) : decompressed));
+			if(length < decompressed.length)
+				return;
+		}
+	}
+
+	private static byte[] copy(byte[] bytes, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, 0, copy, 0, length);
+		return copy;
+	}
+
+	//Queue the members for the pool while they are BGZF.
+	//Returns the rest of the input (from the first member that isn't) to decompress sequentially, or null at the end.
+	private InputStream parallel() throws IOException, InterruptedException {
+		byte[] header = new byte[BGZF_HEADER_SIZE];
+		while(true) {
+			int read = readFully(raw, header, 0, header.length);
+			if(read == 0)
+				return null;
+			int size = read == header.length ? memberSize(header) : -1;
+			if(size < 0) {
+				raw.unread(header, 0, read);
+				return raw;
+			}
+			byte[] member = new byte[size];
+			System.arraycopy(header, 0, member, 0, header.length);
+			if(readFully(raw, member, header.length, size - header.length) < size - header.length)
+				throw new EOFException();
+			blocks.put(pool.submit(() -> inflate(member)));
+		}
+	}
+
+	//The BGZF member's size (from the start of its extra field), or -1 if it isn't BGZF.
+	private static int memberSize(byte[] header) {
+		if(shortAt(header, 0) != GZIP_MAGIC || header[2] != DEFLATE || header[3] != FEXTRA)
+			return -1;
+		int extraLength = shortAt(header, 10);
+		//bgzip always writes the BSIZE subfield first.
+		if(extraLength < 6 || shortAt(header, 12) != BGZF_ID || shortAt(header, 14) != 2)
+			return -1;
+		int size = shortAt(header, 16) + 1;
+		return size >= HEADER_SIZE + extraLength + TRAILER_SIZE ? size : -1;
+	}
+
+	private static int shortAt(byte[] bytes, int index) {
+		return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8;
+	}
+
+	private static int intAt(byte[] bytes, int index) {
+		return shortAt(bytes, index) | shortAt(bytes, index + 2) << 16;
+	}
+
+	//On the pool: a whole member, header to trailer.
+	private static byte[] inflate(byte[] member) throws IOException {
+		int data = HEADER_SIZE + shortAt(member, 10);
+		int trailer = member.length - TRAILER_SIZE;
+		int size = intAt(member, trailer + 4);
+		//A member that says it is larger than the most deflate can get out of its bytes is corrupt.
+		if(size < 0 || size / 1032 > trailer - data + 1)
+			throw new IOException(Messages.CorruptCompressedInput());
+		byte[] decompressed = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(member, data, trailer - data);
+			int length = 0;
+			while(length < size && !inflater.finished() && !inflater.needsInput())
+				length += inflater.inflate(decompressed, length, size - length);
+			if(length < size || !inflater.finished() && inflater.inflate(new byte[1]) > 0)
+				throw new IOException(Messages.CorruptCompressedInput());
+		}
+		catch(DataFormatException ex) {
+			throw new IOException(Messages.CorruptCompressedInput(), ex);
+		}
+		finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(decompressed, 0, size);
+		if((int) crc.getValue() != intAt(member, trailer))
+			throw new IOException(Messages.CorruptCompressedInput());
+		return decompressed;
+	}
+
+	private static int readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+		int total = 0;
+		while(total < length) {
+			int read = in.read(bytes, offset + total, length - total);
+			if(read < 0)
+				break;
+			total += read;
+		}
+		return total;
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if(length == 0)
+			return 0;
+		while(position == block.length) {
+			if(ended || !nextBlock())
+				return -1;
+		}
+		int read = Math.min(length, block.length - position);
+		System.arraycopy(block, position, bytes, offset, read);
+		position += read;
+		return read;
+	}
+
+	private boolean nextBlock() throws IOException {
+		try {
+			Future<byte[]> next = blocks.take();
+			if(next == END) {
+				ended = true;
+				return false;
+			}
+			block = next.get();
+			position = 0;
+			return true;
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		decompressor.interrupt();
+		if(pool != null)
+			pool.shutdownNow();
+		raw.close();
+	}
+}
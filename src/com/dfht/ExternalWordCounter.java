@@ -0,0 +1,337 @@
+package com.dfht;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Exact counting with more distinct words than fit in memory.
+ * The words are counted into a {@link WordCountTable} until it reaches the memory budget, when it is sorted and
+ * written out to a temporary {@link RunFile} (a spill) and a new table started. At the end the runs are merged
+ * (a k-way merge, a word at a time) adding up each word's counts.
+ * Each run being merged has a reader open (a file and its buffer), so only as many as the budget has room for (and
+ * never more than a few hundred files) are merged at once. With more runs than that they are merged in passes, each
+ * merging that many at a time into a new run, until the last pass can merge what is left.
+ *
+ * The report has the same problem: the words have to be sorted by count, and there may be too many of them.
+ * For the top words the merged counts just go through the usual bounded heap. For the whole report they are
+ * sorted in budget sized batches that are spilled as runs in report order and then merged as they are written out.
+ *
+ * When nothing is spilled it is just the usual in memory counting and report.
+ *
+ * The merged counts can also be written out as they are (sorted by word) instead of reported: partial counts, e.g. of
+ * one shard of a corpus, which are merged with the partial counts of the other shards (another process's, or another
+ * machine's) just as if they had been spilled here (see {@link #merge(Path)}). So nothing is counted twice, and the
+ * memory of the merge is the same budget, however many words (and partial counts) there are in all.
+ *
+ * The counts can only be read (merged or reported) once. Not thread safe.
+ * @author Darren
+ *
+ */
+public class ExternalWordCounter implements WordTokenizer.WordSink, Closeable {
+
+	//Roughly what each word costs in a table: the slots (16 bytes each, for the key, hash and count) are up to 4 per
+	//word, or 6 while the table grows, and what is left is for its header and characters in the arena (a byte each if
+	//they are Latin-1, otherwise two), so about 30 Latin-1 characters.
+	public static final int ENTRY_BYTES = 128;
+	private static final int MIN_WORDS = 16;
+	//The fewest and most runs merged at once (the most keeps well within the usual limit on open files).
+	private static final int MIN_FAN_IN = 2;
+	private static final int MAX_FAN_IN = 256;
+
+	private static final Comparator<RunFile.Reader> WORD_ORDER = (a, b) -> a.word().compareTo(b.word());
+	private static final Comparator<RunFile.Reader> REPORT_ORDER =
+			(a, b) -> WordCounter.compare(a.word(), a.count(), b.word(), b.count());
+
+
+	private final int maxWords;
+	private final int fanIn;
+	private final Path directory;
+	private WordCountTable table = new WordCountTable();
+	//Spilled counts (sorted by word).
+	private final List<Path> runs = new ArrayList<>();
+	//Partial counts to merge in (sorted by word, but not ours to delete).
+	private final List<Path> partials = new ArrayList<>();
+	private int files;
+
+
+	/**
+	 * @param memoryBudget - Roughly how many bytes the words in memory can take up.
+	 * @throws IOException - If the temporary directory for the runs can't be made.
+	 */
+	public ExternalWordCounter(long memoryBudget) throws IOException {
+		maxWords = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_WORDS, memoryBudget / ENTRY_BYTES));
+		//The words are all spilled before the merge, so the budget goes on the readers' buffers instead.
+		fanIn = (int) Math.min(MAX_FAN_IN, Math.max(MIN_FAN_IN, memoryBudget / RunFile.BUFFER_SIZE));
+		directory = Files.createTempDirectory("wordCounter");
+	}
+
+
+	/**
+	 * Count the words in a file (a line at a time).
+	 * @param file
+	 * @param charset - The charset, or null to guess it (via icu4j).
+	 * @throws IOException
+	 */
+	public void count(Path file, Charset charset) throws IOException {
+		try {
+			FileWordCounter.tokenize(file, charset, this);
+		}
+		catch(UncheckedIOException ex) {
+			//From a spill.
+			throw ex.getCause();
+		}
+	}
+
+	@Override
+	public void word(CharSequence chars, int start, int end) {
+		table.word(chars, start, end);
+		if(table.size() >= maxWords) {
+			try {
+				spill();
+			}
+			catch(IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+
+	/**
+	 * Add the partial counts in a file (see {@link #writePartial(Path)}) to the counts.
+	 * They are merged with the rest a word at a time (when the counts are read), rather than read into memory.
+	 * @param partial
+	 */
+	public void merge(Path partial) {
+		partials.add(partial);
+	}
+
+
+	/**
+	 * The number of times the counts have been spilled to disk so far.
+	 * @return
+	 */
+	public int spills() {
+		return runs.size();
+	}
+
+	//Write the table out, and start a new one.
+	private void spill() throws IOException {
+		WordCountTable full = table;
+		table = new WordCountTable();
+		writePartial(full, newRun(runs));
+	}
+
+	/**
+	 * Write the counts as partial counts: a {@link RunFile} sorted by word (String.compareTo), which can be merged with
+	 * others (see {@link #merge(Path)}).
+	 * @param table
+	 * @param file
+	 * @return The number of words written.
+	 * @throws IOException
+	 */
+	public static int writePartial(WordCountTable table, Path file) throws IOException {
+		//The words are sorted where they are in the table's arena, and made into Strings one at a time as they are written.
+		int[] words = new int[table.size()];
+		long[] counts = new long[table.size()];
+		table.copyTo(words, counts);
+		WordArena arena = table.words();
+		int[] order = OrderedCounts.sortedIndices(words.length, (a, b) -> arena.compare(words[a], words[b]));
+		try(RunFile.Writer writer = new RunFile.Writer(file)) {
+			for (int i : order)
+				writer.write(arena.word(words[i]), counts[i]);
+		}
+		return words.length;
+	}
+
+	/**
+	 * Write the counts so far (merged with any partial counts) as partial counts, instead of reporting them.
+	 * @param file
+	 * @return The number of words written.
+	 * @throws IOException
+	 */
+	public long writePartial(Path file) throws IOException {
+		if(runs.isEmpty() && partials.isEmpty())
+			return writePartial(table, file);
+		long[] words = new long[1];
+		try(RunFile.Writer writer = new RunFile.Writer(file)) {
+			mergeRuns((word, count) -> {
+				writer.write(word, count);
+				words[0]++;
+			});
+		}
+		return words[0];
+	}
+
+	private Path newRun(List<Path> into) {
+		Path run = directory.resolve("run" + files++);
+		into.add(run);
+		return run;
+	}
+
+
+	/**
+	 * Pass each word and its total count to the action, in word order (String.compareTo).
+	 * @param action
+	 * @throws IOException
+	 */
+	public void merged(ObjLongConsumer<String> action) throws IOException {
+		mergeRuns(action::accept);
+	}
+
+	private void mergeRuns(WordAction action) throws IOException {
+		if(table.size() > 0 || runs.isEmpty())
+			spill();
+		List<Path> all = new ArrayList<>(runs);
+		all.addAll(partials);
+		merge(all, WORD_ORDER, true, action);
+	}
+
+	/**
+	 * Write the report (or just the top words if top &gt; 0).
+	 * @param writer
+	 * @param top
+	 * @throws IOException
+	 */
+	public void writeReport(ReportWriter writer, int top) throws IOException {
+		//Everything fitted, so it is just the usual report.
+		if(runs.isEmpty() && partials.isEmpty()) {
+			(top > 0 ? OrderedCounts.top(table, top) : OrderedCounts.of(table)).writeTo(writer);
+			return;
+		}
+		if(top > 0) {
+			TopWords words = new TopWords(top, top);
+			mergeRuns(words::offer);
+			OrderedCounts.of(words).writeTo(writer);
+			return;
+		}
+		//Sort batches of the merged counts into report order, spilling them, then merge those.
+		List<Path> reportRuns = new ArrayList<>();
+		Batch batch = new Batch();
+		mergeRuns((word, count) -> {
+			batch.words[batch.size] = word;
+			batch.counts[batch.size++] = count;
+			if(batch.size == maxWords)
+				batch.spill(reportRuns);
+		});
+		batch.spill(reportRuns);
+		merge(reportRuns, REPORT_ORDER, false, writer::write);
+	}
+
+
+	//Words waiting to be sorted into report order.
+	private class Batch {
+		final String[] words = new String[maxWords];
+		final long[] counts = new long[maxWords];
+		int size;
+
+		void spill(List<Path> into) throws IOException {
+			if(size == 0)
+				return;
+			OrderedCounts ordered = OrderedCounts.of(Arrays.copyOf(words, size), Arrays.copyOf(counts, size));
+			try(RunFile.Writer writer = new RunFile.Writer(newRun(into))) {
+				for (int i = 0; i < ordered.size(); i++)
+					writer.write(ordered.word(i), ordered.count(i));
+			}
+			Arrays.fill(words, 0, size, null);
+			size = 0;
+		}
+	}
+
+	//What to do with each word as the runs are merged (which, unlike an ObjLongConsumer, can write to a file).
+	@FunctionalInterface
+	private interface WordAction {
+		void accept(String word, long count) throws IOException;
+	}
+
+
+	//Merge the runs (each in the given order), in passes of at most fanIn runs at a time into new runs until there are
+	//few enough for the last pass. Runs of ours are deleted once merged (partial counts aren't ours to delete).
+	private void merge(List<Path> runs, Comparator<RunFile.Reader> order, boolean sum, WordAction action)
+			throws IOException {
+		while(runs.size() > fanIn) {
+			List<Path> merged = new ArrayList<>();
+			for (int i = 0; i < runs.size(); i += fanIn) {
+				List<Path> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+				if(group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				try(RunFile.Writer writer = new RunFile.Writer(newRun(merged))) {
+					mergeOnce(group, order, sum, writer::write);
+				}
+				for (Path run : group) {
+					if(run.startsWith(directory))
+						Files.delete(run);
+				}
+			}
+			runs = merged;
+		}
+		mergeOnce(runs, order, sum, action);
+	}
+
+	//A k-way merge of the runs (each in the given order), optionally adding up the counts of the same word (when they
+	//are in word order, which is checked as partial counts might come from anywhere).
+	private static void mergeOnce(List<Path> runs, Comparator<RunFile.Reader> order, boolean sum, WordAction action)
+			throws IOException {
+		PriorityQueue<RunFile.Reader> queue = new PriorityQueue<>(Math.max(1, runs.size()), order);
+		List<RunFile.Reader> readers = new ArrayList<>(runs.size());
+		try {
+			for (Path run : runs) {
+				RunFile.Reader reader = new RunFile.Reader(run);
+				readers.add(reader);
+				if(reader.next())
+					queue.add(reader);
+			}
+			while(!queue.isEmpty()) {
+				RunFile.Reader reader = queue.poll();
+				String word = reader.word();
+				long count = reader.count();
+				next(reader, queue, sum);
+				while(sum && !queue.isEmpty() && queue.peek().word().equals(word)) {
+					RunFile.Reader same = queue.poll();
+					count += same.count();
+					next(same, queue, sum);
+				}
+				action.accept(word, count);
+			}
+		}
+		finally {
+			for (RunFile.Reader reader : readers)
+				reader.close();
+		}
+	}
+
+	//Back into the queue with its next word (if it has one).
+	private static void next(RunFile.Reader reader, PriorityQueue<RunFile.Reader> queue, boolean wordOrder) throws IOException {
+		String last = reader.word();
+		if(!reader.next())
+			return;
+		if(wordOrder && reader.word().compareTo(last) < 0)
+			throw new IOException(Messages.RunNotSorted(reader.file().toString()));
+		queue.add(reader);
+	}
+
+
+	/**
+	 * Delete the runs.
+	 */
+	@Override
+	public void close() throws IOException {
+		try(Stream<Path> paths = Files.list(directory)){
+			for (Path path : (Iterable<Path>) paths::iterator)
+				Files.delete(path);
+		}
+		Files.delete(directory);
+	}
+}
@@ -0,0 +1,177 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Counting files on disk, picking the best way for each file's charset.
+ * Each file is opened once: the charset is guessed (if need be) from the first bytes read, and the counting
+ * starts with those same bytes (see {@link SampledFile}).
+ * Several files are counted concurrently on a pool of threads (one file per thread at a time)
+ * and the counts merged into one table.
+ * @author Darren
+ *
+ */
+public class FileWordCounter {
+
+	private FileWordCounter() {
+	}
+
+
+	/**
+	 * Count the words in a file.
+	 * @param file
+	 * @param charset - The charset, or null to guess it (via icu4j).
+	 * @param threads - For splitting the file into chunks (if the charset allows it), or else counting it as it is read
+	 * (see {@link PipelinedWordCounter}).
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordCountTable processedCounts(Path file, Charset charset, int threads) throws IOException {
+		return processedCounts(file, charset, threads, false);
+	}
+
+	/**
+	 * As {@link #processedCounts(Path, Charset, int)}, optionally carrying on from where the last run got to
+	 * (see {@link IncrementalWordCounter}).
+	 * @param file
+	 * @param charset
+	 * @param threads
+	 * @param incremental
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordCountTable processedCounts(Path file, Charset charset, int threads, boolean incremental) throws IOException {
+		try(SampledFile input = SampledFile.open(file, charset, threads)){
+			RunStats.Timer timer = RunStats.time(RunStats.Phase.COUNT);
+			try {
+				charset = input.charset();
+				//A compressed file can only be read from the start, a block at a time (as it is decompressed).
+				if(input.isCompressed()) {
+					if(incremental)
+						throw new IOException(Messages.CompressedIncremental());
+					//It can't be split, but the counting can still be spread over the threads as it is read.
+					if(threads > 1)
+						return PipelinedWordCounter.processedTable(input.content(), charset, threads);
+					if(Utf8WordCounter.handles(charset))
+						return Utf8WordCounter.processedTable(input.content());
+				}
+				else {
+					if(incremental)
+						return IncrementalWordCounter.processedCounts(input.channel(), IncrementalWordCounter.checkpointFor(file), 
+								charset, threads, ChunkedWordCounter.DEFAULT_MIN_CHUNK_SIZE);
+					//For more than one thread split the file itself into chunks (if the charset allows it).
+					//UTF-8 always goes this way (even for one thread) as it is then counted straight from the bytes.
+					if(Utf8WordCounter.handles(charset) || (threads > 1 && ChunkedWordCounter.canSplit(charset)))
+						return ChunkedWordCounter.processedCounts(input, threads);
+					//Otherwise (e.g. UTF-16) it is decoded as it is read, and the counting spread over the threads.
+					if(threads > 1)
+						return PipelinedWordCounter.processedTable(input.content(), charset, threads);
+				}
+			     //Try with resources to close the stream.
+			     //It doesn't matter what order I process the lines.
+				try(Stream<String> stream = input.lines()){
+					return WordCounter.processedTable(stream);
+				}
+			}
+			finally {
+				timer.close();
+			}
+		}
+		catch(UncheckedIOException ex) {
+			//The lines stream wraps the problems it finds while reading (e.g. malformed input).
+			throw ex.getCause();
+		}
+	}
+
+
+	/**
+	 * Pass every word in the file to the sink, a line at a time on this thread.
+	 * For counting that isn't into a {@link WordCountTable} (so can't use the faster ways of counting a file).
+	 * @param file
+	 * @param charset - The charset, or null to guess it (via icu4j).
+	 * @param sink
+	 * @throws IOException
+	 */
+	public static void tokenize(Path file, Charset charset, WordTokenizer.WordSink sink) throws IOException {
+		long[] read = new long[1];
+		try(SampledFile input = SampledFile.open(file, charset)){
+			RunStats.Timer timer = RunStats.time(RunStats.Phase.COUNT);
+			try(Stream<String> lines = input.lines()){
+				lines.forEach(line -> {
+					WordTokenizer.tokenize(line, sink);
+					read[0]++;
+				});
+			}
+			finally {
+				timer.close();
+			}
+		}
+		catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+		finally {
+			RunStats.lines(read[0]);
+		}
+	}
+
+
+	/**
+	 * Count the words in all the files.
+	 * The files are counted concurrently (each on a single thread) and the counts merged in the order of the files.
+	 * @param files
+	 * @param charset - The charset of all the files, or null to guess it for each one.
+	 * @param threads - The number of files counted at once.
+	 * @param incremental - Whether to carry on from where the last run got to in each file.
+	 * @param perFile - If not null, passed each file's own counts (in the order of the files) before they are merged.
+	 * @return The merged counts of all the files.
+	 * @throws IOException
+	 */
+	public static WordCountTable processedCounts(List<Path> files, Charset charset, int threads, boolean incremental,
+			BiConsumer<Path, WordCountTable> perFile) throws IOException {
+		if(files.size() == 1 && perFile == null)
+			return processedCounts(files.get(0), charset, threads, incremental);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+		try {
+			List<Future<WordCountTable>> futures = new ArrayList<>(files.size());
+			for (Path file : files)
+				futures.add(pool.submit(() -> processedCounts(file, charset, 1, incremental)));
+			WordCountTable total = new WordCountTable();
+			//Merging in order (rather than as they finish) keeps the per-file output in a predictable order.
+			//Each file's table can go as soon as it is merged.
+			for (int i = 0; i < futures.size(); i++) {
+				WordCountTable counts = futures.get(i).get();
+				futures.set(i, null);
+				if(perFile != null)
+					perFile.accept(files.get(i), counts);
+				total = WordCountTable.merge(total, counts);
+			}
+			return total;
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+		catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reading a file that is still being written to, like tail -f (but from the start of the file).
+ * At the end of the file it waits for more to be appended rather than ending, so it never ends.
+ * If the file gets shorter (truncated, e.g. by log rotation that copies and truncates) it starts again from the start.
+ * @author Darren
+ *
+ */
+class FollowedFile extends InputStream {
+
+	//How often to look for more at the end of the file.
+	static final long POLL_MILLIS = 250;
+
+	private final FileChannel channel;
+	private long position;
+
+
+	FollowedFile(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if(length == 0)
+			return 0;
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+		while(true) {
+			int read = channel.read(buffer, position);
+			if(read > 0) {
+				position += read;
+				return read;
+			}
+			if(channel.size() < position)
+				position = 0;
+			else
+				waitForMore();
+		}
+	}
+
+	private static void waitForMore() throws InterruptedIOException {
+		try {
+			Thread.sleep(POLL_MILLIS);
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,258 @@
+package com.dfht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Counting for files that only ever grow (e.g. logs), without recounting what was counted last time.
+ * After each run the counts are saved to a checkpoint file next to the file (file.wordcount), along with how far
+ * through the file they go and a fingerprint of that part of the file. The next run checks the fingerprint and
+ * only counts what has been appended since, adding it to the saved counts.
+ *
+ * The counts are only saved up to the end of the last complete line, as the last line may still be being written.
+ * It is counted for the report though, so the report is always the same as counting the whole file.
+ *
+ * The fingerprint is a CRC of the start of the file and of the bytes just before the saved position (so checking it
+ * doesn't mean reading the whole file again). That catches a file that has been truncated, rotated or replaced.
+ * The checkpoint also has the word definition its counts were made with (and whether the words were segmented), as
+ * counts made another way can't be added to.
+ * If the checkpoint doesn't match (or can't be read) the whole file is counted again.
+ * @author Darren
+ *
+ */
+public class IncrementalWordCounter {
+
+	public static final String CHECKPOINT_SUFFIX = ".wordcount";
+	//A checkpoint while it is being written.
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	//"WCCP" followed by the version of the format.
+	private static final int MAGIC = 0x57434350;
+	private static final int VERSION = 3;
+
+	//How much of the start of the file, and how much before the saved position, goes into the fingerprint.
+	private static final int FINGERPRINT_WINDOW = 64 * 1024;
+
+
+	private IncrementalWordCounter() {
+	}
+
+
+	/**
+	 * The checkpoint file used for a file.
+	 * @param file
+	 * @return
+	 */
+	public static Path checkpointFor(Path file) {
+		return file.resolveSibling(file.getFileName() + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * Whether the file is a checkpoint (or one being written), which sits next to the file it is for and so would be
+	 * picked up with it from a directory or pattern.
+	 * @param file
+	 * @return
+	 */
+	public static boolean isCheckpoint(Path file) {
+		String name = file.getFileName().toString();
+		return name.endsWith(CHECKPOINT_SUFFIX) || name.endsWith(CHECKPOINT_SUFFIX + TEMPORARY_SUFFIX);
+	}
+
+
+	/**
+	 * Count the words in the file, starting from its checkpoint if there is a valid one (and then updating it).
+	 * @param file
+	 * @param charset - Must be a charset that {@link ChunkedWordCounter#canSplit(Charset)}.
+	 * @param threads
+	 * @return The counts for the whole file.
+	 * @throws IOException
+	 */
+	public static WordCountTable processedCounts(Path file, Charset charset, int threads) throws IOException {
+		return processedCounts(file, checkpointFor(file), charset, threads, ChunkedWordCounter.DEFAULT_MIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * As {@link #processedCounts(Path, Charset, int)}, but with the checkpoint somewhere else and control
+	 * over the chunk size (for the tests).
+	 * @param file
+	 * @param checkpoint
+	 * @param charset
+	 * @param threads
+	 * @param minChunkSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordCountTable processedCounts(Path file, Path checkpoint, Charset charset, int threads, int minChunkSize) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return processedCounts(channel, checkpoint, charset, threads, minChunkSize);
+		}
+	}
+
+	/**
+	 * As {@link #processedCounts(Path, Path, Charset, int, int)}, but for a file that is already open.
+	 * @param channel
+	 * @param checkpoint
+	 * @param charset
+	 * @param threads
+	 * @param minChunkSize
+	 * @return
+	 * @throws IOException
+	 */
+	static WordCountTable processedCounts(FileChannel channel, Path checkpoint, Charset charset, int threads, int minChunkSize) throws IOException {
+		//The saved position has to be at the start of a line, which means being able to find '\n' in the bytes.
+		if(!ChunkedWordCounter.canSplit(charset))
+			throw new IOException(Messages.IncrementalNotSupported(charset.name()));
+		long size = channel.size();
+		WordCountTable counts = null;
+		long from = 0;
+		if(Files.exists(checkpoint)) {
+			Saved saved = load(checkpoint, channel, charset, size);
+			if(saved != null) {
+				counts = saved.counts;
+				from = saved.offset;
+			}
+		}
+		boolean save = counts == null;
+		if(counts == null)
+			counts = new WordCountTable();
+		long complete = ChunkedWordCounter.lastLineEnd(channel, from, size);
+		if(complete > from) {
+			WordCountTable appended = ChunkedWordCounter.processedCounts(channel, charset, threads, minChunkSize, from, complete);
+			counts = WordCountTable.merge(counts, appended);
+			save = true;
+		}
+		if(save)
+			save(checkpoint, channel, charset, complete, counts);
+		//The unfinished last line is counted for the report, but not saved.
+		if(complete < size) {
+			WordCountTable unfinished = ChunkedWordCounter.processedCounts(channel, charset, threads, minChunkSize, complete, size);
+			counts = WordCountTable.merge(counts, unfinished);
+		}
+		return counts;
+	}
+
+
+
+	//What was read back from a checkpoint.
+	private static class Saved {
+		final long offset;
+		final WordCountTable counts;
+
+		Saved(long offset, WordCountTable counts) {
+			this.offset = offset;
+			this.counts = counts;
+		}
+	}
+
+
+	//The saved counts, or null if the checkpoint doesn't match the file.
+	private static Saved load(Path checkpoint, FileChannel channel, Charset charset, long size) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint)))){
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if(!charset.name().equals(in.readUTF()))
+				return null;
+			if(!WordTokenizer.getDefinition().toString().equals(in.readUTF()) || WordTokenizer.isSegmenting() != in.readBoolean())
+				return null;
+			long offset = in.readLong();
+			long fingerprint = in.readLong();
+			if(offset > size || fingerprint != fingerprint(channel, offset))
+				return null;
+			return new Saved(offset, readCounts(in));
+		}
+		catch(IOException ex) {
+			//A damaged checkpoint just means counting everything again.
+			return null;
+		}
+	}
+
+	//Write to a temporary file and then move it into place, so a failure part way through can't leave a bad checkpoint.
+	private static void save(Path checkpoint, FileChannel channel, Charset charset, long offset, WordCountTable counts) throws IOException {
+		Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + TEMPORARY_SUFFIX);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(charset.name());
+			out.writeUTF(WordTokenizer.getDefinition().toString());
+			out.writeBoolean(WordTokenizer.isSegmenting());
+			out.writeLong(offset);
+			out.writeLong(fingerprint(channel, offset));
+			writeCounts(out, counts);
+		}
+		try {
+			Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(AtomicMoveNotSupportedException ex) {
+			Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+
+	//A CRC of the start of the file and of the bytes just before offset (each window is at most FINGERPRINT_WINDOW).
+	private static long fingerprint(FileChannel channel, long offset) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_WINDOW);
+		update(crc, channel, buffer, 0, Math.min(FINGERPRINT_WINDOW, offset));
+		long tail = Math.max(0, offset - FINGERPRINT_WINDOW);
+		update(crc, channel, buffer, tail, offset - tail);
+		return crc.getValue();
+	}
+
+	private static void update(CRC32 crc, FileChannel channel, ByteBuffer buffer, long position, long length) throws IOException {
+		buffer.clear();
+		buffer.limit((int) length);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException(Messages.FileChanged(position + buffer.position()));
+		}
+		buffer.flip();
+		crc.update(buffer.array(), 0, buffer.limit());
+	}
+
+
+	//The counts as the number of words, then each word (as a length and UTF-8 bytes) and its count.
+	private static void writeCounts(DataOutputStream out, WordCountTable counts) throws IOException {
+		out.writeInt(counts.size());
+		try {
+			counts.forEach((word, count) -> {
+				try {
+					byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+					out.writeLong(count);
+				}
+				catch(IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			});
+		}
+		catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private static WordCountTable readCounts(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		WordCountTable counts = new WordCountTable();
+		for (int i = 0; i < size; i++) {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			counts.add(new String(bytes, StandardCharsets.UTF_8), in.readLong());
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,93 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Turns the -file arguments into the list of files to count.
+ * Each one can be a file, a directory (every file under it, recursively) or a glob pattern
+ * such as logs/*.txt or data/**.csv (see {@link java.nio.file.FileSystem#getPathMatcher(String)}).
+ * The checkpoints of -incremental (see {@link IncrementalWordCounter}) are left out of directories and patterns.
+ * @author Darren
+ *
+ */
+public class InputFiles {
+
+	private static final String GLOB_CHARACTERS = "*?[{";
+
+	private InputFiles() {
+	}
+
+
+	static boolean isGlob(String path) {
+		for (int i = 0; i < path.length(); i++) {
+			if(GLOB_CHARACTERS.indexOf(path.charAt(i)) >= 0)
+				return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Expand the paths into files.
+	 * The files come in the order of the paths, with those from a directory or pattern sorted, and each file only once.
+	 * @param paths
+	 * @return
+	 * @throws IOException
+	 * @throws InputException - If a path doesn't exist or a pattern matches nothing.
+	 */
+	public static List<Path> expand(List<String> paths) throws IOException, InputException {
+		Set<Path> files = new LinkedHashSet<>();
+		for (String path : paths) {
+			if(isGlob(path)) {
+				List<Path> matches = glob(path);
+				if(matches.isEmpty())
+					throw new InputException(Messages.NoMatchingFiles(path));
+				files.addAll(matches);
+				continue;
+			}
+			Path file = Paths.get(path);
+			if(Files.isDirectory(file))
+				files.addAll(walk(file, candidate -> true));
+			else if(Files.isRegularFile(file))
+				files.add(file);
+			else
+				throw new InputException(Messages.NoSuchFile(path));
+		}
+		return new ArrayList<>(files);
+	}
+
+
+	//Walk from the part of the path before the first glob character, matching the rest of the path as a glob.
+	private static List<Path> glob(String pattern) throws IOException {
+		String separators = "/" + FileSystems.getDefault().getSeparator();
+		int firstGlob = 0;
+		while(GLOB_CHARACTERS.indexOf(pattern.charAt(firstGlob)) < 0)
+			firstGlob++;
+		int baseEnd = firstGlob;
+		while(baseEnd > 0 && separators.indexOf(pattern.charAt(baseEnd - 1)) < 0)
+			baseEnd--;
+		Path base = Paths.get(baseEnd == 0 ? "." : pattern.substring(0, baseEnd));
+		if(!Files.isDirectory(base))
+			return new ArrayList<>();
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(baseEnd));
+		return walk(base, file -> matcher.matches(base.relativize(file)));
+	}
+
+	private static List<Path> walk(Path directory, PathMatcher matcher) throws IOException {
+		try(Stream<Path> paths = Files.walk(directory)){
+			return paths.filter(Files::isRegularFile).filter(file -> !IncrementalWordCounter.isCheckpoint(file))
+					.filter(matcher::matches).sorted().collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.dfht;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JDK Flight Recorder events for the phases of a run (see {@link RunStats}).
+ * This is the only class that uses jdk.jfr, and it is only loaded (by name) on a JVM that has it.
+ * @author Darren
+ *
+ */
+class JfrEvents implements RunStats.Events {
+
+	@Override
+	public Object begin(String phase) {
+		PhaseEvent event = new PhaseEvent();
+		if(!event.isEnabled())
+			return null;
+		event.phase = phase;
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void end(Object event) {
+		((PhaseEvent) event).commit();
+	}
+
+
+	@Name("com.dfht.Phase")
+	@Label("WordCounter Phase")
+	@Category("WordCounter")
+	@Description("A phase of counting words: detect (the charset), count, order or write (the report)")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+	}
+}
@@ -1,11 +1,16 @@
 package com.dfht;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.stream.Stream;
 
 /**
  * 
@@ -17,7 +22,7 @@ public class Main {
 	
 	
 	 public static void main(String[] args) {
-			
+			RunStats stats = null;
 			try {
 				Arguments arguments = Arguments.from(args);
 	    		//If its just help then output the usage message.
@@ -27,11 +32,76 @@ public class Main {
 				}
 				else {
 					//Fill in anything not specified by engaging with the user.
+					arguments.checkConflicts();
 					arguments.complete();
-					//Proceed to process the file.
-					String path = arguments.getFilePath();
+					if(arguments.isStats())
+						stats = RunStats.start();
+					WordTokenizer.setSegmenting(arguments.isSegment());
+					WordTokenizer.setDefinition(arguments.getDefinition());
+					ReportFormat format = arguments.getFormat();
+					//Another program can't tell where one report ends and the next starts.
+					if(format != ReportFormat.TEXT && (arguments.isPerFile() || arguments.isStreaming()))
+						throw new InputException(Messages.FormatOneReport(format));
+					if(arguments.getServePort() > 0) {
+						serve(arguments);
+						return;
+					}
+					if(arguments.getQueryPath() != null) {
+						query(arguments);
+						return;
+					}
+					if(arguments.isStreaming()) {
+						stream(arguments);
+						return;
+					}
+					//Partial counts are only of words, to be merged exactly.
+					Path partial = arguments.getPartialPath() == null ? null : Paths.get(arguments.getPartialPath());
+					if((partial != null || arguments.isMerging()) 
+							&& (arguments.getNgram() > 0 || arguments.getApproximate() > 0 || arguments.isPerFile()))
+						throw new InputException(Messages.PartialExactWords());
+					//Proceed to process the file(s).
+					List<Path> files = arguments.getFilePaths().isEmpty() && arguments.isMerging() ? Collections.emptyList() 
+							: InputFiles.expand(arguments.getFilePaths());
 					Charset charset = arguments.getEncoding();	;
-					process(path, charset);
+					WordCountTable counts;
+					if(arguments.isMerging()) {
+						List<Path> partials = InputFiles.expand(arguments.getMergePaths());
+						long memory = arguments.getMemory() > 0 ? arguments.getMemory() : Runtime.getRuntime().maxMemory() / 4;
+						external(files, partials, charset, memory, arguments.getTop(), format, partial);
+						return;
+					}
+					if(arguments.getNgram() > 0) {
+						ngrams(files, charset, arguments.getNgram(), arguments.getTop(), format);
+						return;
+					}
+					if(arguments.getMemory() > 0) {
+						external(files, Collections.emptyList(), charset, arguments.getMemory(), arguments.getTop(), format, partial);
+						return;
+					}
+					if(arguments.getApproximate() > 0) {
+						counts = approximate(files, charset, arguments.getApproximate(), arguments.getTop(), format);
+					}
+					else if(partial != null) {
+						counts = FileWordCounter.processedCounts(files, charset, arguments.getThreads(), arguments.isIncremental(), null);
+						RunStats.counted(counts);
+						RunStats.Timer timer = RunStats.time(RunStats.Phase.WRITE);
+						try {
+							int words = ExternalWordCounter.writePartial(counts, partial);
+							info(format).println(Messages.PartialWritten(words, partial.toString()));
+						}
+						finally {
+							timer.close();
+						}
+					}
+					else {
+						counts = process(files, charset, arguments.getThreads(), arguments.getTop(), arguments.isPerFile(), 
+								arguments.isIncremental(), format);
+						RunStats.counted(counts);
+					}
+					if(arguments.getIndexPath() != null) {
+						WordIndex.write(counts, Paths.get(arguments.getIndexPath()));
+						info(format).println(Messages.IndexWritten(counts.size(), arguments.getIndexPath()));
+					}
 				}	
 			}
 		    catch ( IllegalArgumentException | NoSuchElementException | IllegalStateException | IOException | InputException ex) {
@@ -39,16 +109,171 @@ public class Main {
 		    	errorMessage = errorMessage == null ? ex.getClass().getSimpleName() : errorMessage;
 		    	String messageToDisplay = Messages.ProblemEncountered(errorMessage);
 		    	System.out.print(messageToDisplay); 	
-			}	    
+			}
+			finally {
+				//After everything else, on stderr, so the report on stdout is the same with or without it.
+				if(stats != null)
+					System.err.println(stats.stop().toJson());
+			}
 	}
 	 
 	 
-	 private static void process(String path, Charset charset) throws IOException{		
-	     //Try with resources to close the stream. 
-	     //It doesn't matter what order I process the lines.
-	      try(Stream<String> stream = Files.lines(Paths.get(path), charset)){  	  
-	    	  WordCounter.wordCountReportToSystemOut(stream);
-	     }
+	 //Package private so the benchmarks can run it end to end.
+	 static void process(String path, Charset charset, int threads, int top) throws IOException{		
+		 WordCountTable counts = FileWordCounter.processedCounts(Paths.get(path), charset, threads);
+		 report(counts, top, ReportFormat.TEXT);
 	}
+	 
+	 
+	 //The (combined) counts, having reported them.
+	 private static WordCountTable process(List<Path> files, Charset charset, int threads, int top, boolean perFile, 
+			 boolean incremental, ReportFormat format) throws IOException{
+		 if(!perFile) {
+			 WordCountTable counts = FileWordCounter.processedCounts(files, charset, threads, incremental, null);
+			 report(counts, top, format);
+			 return counts;
+		 }
+		 //Each file's report as it is merged, then the combined one.
+		 WordCountTable counts = FileWordCounter.processedCounts(files, charset, threads, incremental, (file, fileCounts) -> {
+			 System.out.println(Messages.FileReport(file.toString()));
+			 report(fileCounts, top, format);
+		 });
+		 System.out.println(Messages.CombinedReport(files.size()));
+		 report(counts, top, format);
+		 return counts;
+	 }
+	 
+	 
+	 //Count the files approximately in (roughly) the given memory, reporting the error bounds before the counts.
+	 private static WordCountTable approximate(List<Path> files, Charset charset, long memory, int top, ReportFormat format) 
+			 throws IOException{
+		 ApproximateWordCounter counter = new ApproximateWordCounter(memory);
+		 for (Path file : files)
+			 counter.count(file, charset);
+		 //The counts are only of the words followed, so how many distinct words there were isn't known.
+		 RunStats.counted(counter.words(), -1);
+		 info(format).println(Messages.ApproximateReport(counter.words(), counter.errorBound(), counter.sketchErrorBound(), 
+				 counter.sketchConfidence()));
+		 WordCountTable counts = counter.counts();
+		 report(counts, top, format);
+		 return counts;
+	 }
+	 
+	 
+	 //Count the runs of n words in the files (none going from one file to the next) and report them.
+	 private static void ngrams(List<Path> files, Charset charset, int n, int top, ReportFormat format) throws IOException{
+		 NgramTable ngrams = new NgramTable(n);
+		 for (Path file : files) {
+			 FileWordCounter.tokenize(file, charset, ngrams);
+			 ngrams.reset();
+		 }
+		 RunStats.counted(ngrams.total(), ngrams.size());
+		 WordCounter.toSystemOut(top > 0 ? ngrams.top(top) : ngrams.ordered(), format);
+	 }
+	 
+	 
+	 //Count the files exactly in (roughly) the given memory, spilling to disk if need be, and merge in the partial counts.
+	 //Then report them, or write them as partial counts themselves (if partial isn't null).
+	 private static void external(List<Path> files, List<Path> partials, Charset charset, long memory, int top, 
+			 ReportFormat format, Path partial) throws IOException{
+		 try(ExternalWordCounter counter = new ExternalWordCounter(memory)){
+			 for (Path file : files)
+				 counter.count(file, charset);
+			 for (Path file : partials)
+				 counter.merge(file);
+			 RunStats.Timer timer = RunStats.time(RunStats.Phase.WRITE);
+			 try {
+				 if(partial != null) {
+					 long words = counter.writePartial(partial);
+					 info(format).println(Messages.PartialWritten(words, partial.toString()));
+					 return;
+				 }
+				 ReportWriter writer = new ReportWriter(System.out, format);
+				 counter.writeReport(writer, top);
+				 writer.close();
+			 }
+			 finally {
+				 timer.close();
+			 }
+		 }
+	 }
+	 
+	 
+	 //Count stdin (or a file as it grows), with a snapshot of the top words every interval.
+	 private static void stream(Arguments arguments) throws IOException, InputException{
+		 Charset charset = arguments.getEncoding();
+		 InputStream in;
+		 if(arguments.isStdin()) {
+			 in = System.in;
+		 }
+		 else {
+			 List<Path> files = InputFiles.expand(arguments.getFilePaths());
+			 if(files.size() != 1)
+				 throw new InputException(Messages.FollowOneFile());
+			 in = new FollowedFile(files.get(0));
+		 }
+		 if(charset == null)
+			 charset = Charset.defaultCharset();
+		 int top = arguments.getTop() > 0 ? arguments.getTop() : StreamingWordCounter.DEFAULT_TOP;
+		 int interval = arguments.getInterval();
+		 //The window is a whole number of intervals (at least one).
+		 int buckets = Math.max(1, (arguments.getWindow() + interval - 1) / interval);
+		 StreamingWordCounter counter = new StreamingWordCounter(buckets);
+		 try(BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset))){
+			 counter.count(reader, interval * 1000L, () -> {
+				 System.out.println(Messages.StreamSnapshot(counter.lines()));
+				 report(counter.total(), top, ReportFormat.TEXT);
+				 System.out.println(Messages.WindowSnapshot(buckets * interval));
+				 report(counter.window(), top, ReportFormat.TEXT);
+			 });
+		 }
+	 }
+	 
+	 
+	 //Serve requests until the JVM is stopped.
+	 private static void serve(Arguments arguments) throws IOException{
+		 WordCountServer server = WordCountServer.start(arguments.getServePort(), arguments.getConcurrency(), arguments.getTimeout());
+		 Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+		 System.out.println(Messages.Serving("http://localhost:" + server.port() + WordCountServer.PATH, 
+				 arguments.getConcurrency(), arguments.getTimeout()));
+		 //The server's threads do the rest.
+		 try {
+			 Thread.currentThread().join();
+		 }
+		 catch(InterruptedException ex) {
+			 server.close();
+		 }
+	 }
+	 
+	 
+	 //Look words up in an index, rather than counting.
+	 private static void query(Arguments arguments) throws IOException{
+		 try(WordIndex index = WordIndex.open(Paths.get(arguments.getQueryPath()))){
+			 for (String word : arguments.getWords()) {
+				 long count = index.count(word);
+				 System.out.println(count > 0 ? Messages.FormatWordCount(word, count) : Messages.WordNotFound(word));
+			 }
+			 //The words with the prefix are reported like any other counts.
+			 if(arguments.getPrefix() != null) {
+				 WordCountTable counts = new WordCountTable();
+				 index.prefix(arguments.getPrefix(), counts::add);
+				 report(counts, arguments.getTop(), arguments.getFormat());
+			 }
+			 if(arguments.getWords().isEmpty() && arguments.getPrefix() == null)
+				 System.out.println(Messages.IndexSize(arguments.getQueryPath(), index.size()));
+		 }
+	 }
+	 
+	 
+	 private static void report(WordCountTable counts, int top, ReportFormat format) {
+		 //Only the top words if that's all that is wanted (which saves sorting and formatting the rest).
+		 WordCounter.toSystemOut(top > 0 ? OrderedCounts.top(counts, top) : OrderedCounts.of(counts), format);
+	 }
+	 
+	 //Where to say anything other than the report: stderr unless it is text, so a report for another program
+	 //is all there is on stdout.
+	 private static PrintStream info(ReportFormat format) {
+		 return format == ReportFormat.TEXT ? System.out : System.err;
+	 }
 
 }
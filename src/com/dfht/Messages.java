@@ -16,8 +16,48 @@ public class Messages {
 	private static final String EnterPath = "EnterPath";
 	private static final String NotAFile = "NotAFile";
 	private static final String NoSuchFile = "NoSuchFile";	
+	private static final String NoMatchingFiles = "NoMatchingFiles";
+	private static final String FileReport = "FileReport";
+	private static final String CombinedReport = "CombinedReport";
 	private static final String InvalidEncoding = "InvalidEncoding";
+	private static final String InvalidThreads = "InvalidThreads";
+	private static final String InvalidTop = "InvalidTop";
+	private static final String InvalidSeconds = "InvalidSeconds";
+	private static final String InvalidMemory = "InvalidMemory";
+	private static final String InvalidPort = "InvalidPort";
+	private static final String InvalidConcurrency = "InvalidConcurrency";
+	private static final String InvalidFormat = "InvalidFormat";
+	private static final String InvalidDefinition = "InvalidDefinition";
+	private static final String InvalidNgram = "InvalidNgram";
+	private static final String InvalidReportFormat = "InvalidReportFormat";
+	private static final String FormatOneReport = "FormatOneReport";
+	private static final String Conflicting = "Conflicting";
+	private static final String NotABinaryReport = "NotABinaryReport";
+	private static final String ReportTooLarge = "ReportTooLarge";
+	private static final String ApproximateReport = "ApproximateReport";
+	private static final String FollowOneFile = "FollowOneFile";
+	private static final String StreamSnapshot = "StreamSnapshot";
+	private static final String WindowSnapshot = "WindowSnapshot";
+	private static final String LineTooLong = "LineTooLong";
+	private static final String TableFull = "TableFull";
+	private static final String WordsFull = "WordsFull";
+	private static final String IncrementalNotSupported = "IncrementalNotSupported";
+	private static final String FileChanged = "FileChanged";
+	private static final String NotAnIndex = "NotAnIndex";
+	private static final String NotARunFile = "NotARunFile";
+	private static final String RunNotSorted = "RunNotSorted";
+	private static final String PartialExactWords = "PartialExactWords";
+	private static final String CorruptCompressedInput = "CorruptCompressedInput";
+	private static final String CompressedIncremental = "CompressedIncremental";
+	private static final String IndexTooLarge = "IndexTooLarge";
+	private static final String IndexWritten = "IndexWritten";
+	private static final String PartialWritten = "PartialWritten";
+	private static final String IndexSize = "IndexSize";
+	private static final String WordNotFound = "WordNotFound";
 	private static final String ProblemEncountered = "ProblemEncountered";
+	private static final String Serving = "Serving";
+	private static final String ServerBusy = "ServerBusy";
+	private static final String RequestTimedOut = "RequestTimedOut";
 	
 	private static final String FormatWordCountSingle = "FormatWordCountSingle";
 	private static final String FormatWordCountPlural = "FormatWordCountPlural";
@@ -37,12 +77,135 @@ public class Messages {
 		return formattedMessage((NoSuchFile), path);
 	}
 
+	static final String NoMatchingFiles(String pattern) {
+		return formattedMessage(NoMatchingFiles, pattern);
+	}
+	
+	static final String FileReport(String path) {
+		return formattedMessage(FileReport, path);
+	}
+	
+	static final String CombinedReport(int files) {
+		return formattedMessage(CombinedReport, files);
+	}
+
 	static final String InvalidEncoding(String encoding) {
 		return formattedMessage(InvalidEncoding, encoding);		
 	}
+	static final String InvalidThreads(String threads) {
+		return formattedMessage(InvalidThreads, threads);		
+	}
+	static final String InvalidTop(String top) {
+		return formattedMessage(InvalidTop, top);		
+	}
+	static final String InvalidSeconds(String seconds) {
+		return formattedMessage(InvalidSeconds, seconds);		
+	}
+	static final String InvalidMemory(String memory, long minimum) {
+		return formattedMessage(InvalidMemory, memory, minimum);		
+	}
+	static final String InvalidPort(String port) {
+		return formattedMessage(InvalidPort, port);		
+	}
+	static final String InvalidConcurrency(String concurrency) {
+		return formattedMessage(InvalidConcurrency, concurrency);		
+	}
+	static final String InvalidFormat(String format) {
+		return formattedMessage(InvalidFormat, format);		
+	}
+	static final String InvalidDefinition(String definition) {
+		return formattedMessage(InvalidDefinition, definition);		
+	}
+	static final String InvalidNgram(String n, int maximum) {
+		return formattedMessage(InvalidNgram, n, maximum);		
+	}
+	static final String InvalidReportFormat(String format) {
+		return formattedMessage(InvalidReportFormat, format);		
+	}
+	static final String FormatOneReport(ReportFormat format) {
+		return formattedMessage(FormatOneReport, format);		
+	}
+	static final String Conflicting(String argument, String other) {
+		return formattedMessage(Conflicting, argument, other);		
+	}
+	static final String NotABinaryReport() {
+		return getString(NotABinaryReport);		
+	}
+	static final String ReportTooLarge(String path) {
+		return formattedMessage(ReportTooLarge, path);		
+	}
+	static final String ApproximateReport(long words, long bound, long sketchBound, double confidence) {
+		return formattedMessage(ApproximateReport, words, bound, sketchBound, confidence * 100, bound);		
+	}
+	static final String FollowOneFile() {
+		return getString(FollowOneFile);		
+	}
+	static final String StreamSnapshot(long lines) {
+		return formattedMessage(StreamSnapshot, lines);		
+	}
+	static final String WindowSnapshot(int seconds) {
+		return formattedMessage(WindowSnapshot, seconds);		
+	}
+	static final String LineTooLong(long position) {
+		return formattedMessage(LineTooLong, position);		
+	}
+	static final String TableFull(int size) {
+		return formattedMessage(TableFull, size);		
+	}
+	static final String WordsFull(int bytes) {
+		return formattedMessage(WordsFull, bytes);		
+	}
+	static final String IncrementalNotSupported(String encoding) {
+		return formattedMessage(IncrementalNotSupported, encoding);		
+	}
+	static final String FileChanged(long position) {
+		return formattedMessage(FileChanged, position);		
+	}
+	static final String NotAnIndex() {
+		return getString(NotAnIndex);		
+	}
+	static final String NotARunFile(String path) {
+		return formattedMessage(NotARunFile, path);		
+	}
+	static final String RunNotSorted(String path) {
+		return formattedMessage(RunNotSorted, path);		
+	}
+	static final String PartialExactWords() {
+		return getString(PartialExactWords);		
+	}
+	static final String CorruptCompressedInput() {
+		return getString(CorruptCompressedInput);		
+	}
+	static final String CompressedIncremental() {
+		return getString(CompressedIncremental);		
+	}
+	static final String IndexTooLarge(String path) {
+		return formattedMessage(IndexTooLarge, path);		
+	}
+	static final String IndexWritten(long words, String path) {
+		return formattedMessage(IndexWritten, words, path);		
+	}
+	static final String PartialWritten(long words, String path) {
+		return formattedMessage(PartialWritten, words, path);		
+	}
+	static final String IndexSize(String path, long words) {
+		return formattedMessage(IndexSize, path, words);		
+	}
+	static final String WordNotFound(String word) {
+		return formattedMessage(WordNotFound, word);		
+	}
 	static final String ProblemEncountered(String message) {
 		return formattedMessage(ProblemEncountered, message);
 	}
+	static final String Serving(String url, int concurrency, int seconds) {
+		return formattedMessage(Serving, url, concurrency, seconds);
+	}
+	static final String ServerBusy() {
+		return getString(ServerBusy);
+	}
+	static final String RequestTimedOut(long seconds) {
+		return formattedMessage(RequestTimedOut, seconds);
+	}
 	
 	private static final String formattedMessage(String key, Object... parameters) {
 		return String.format(getString(key), parameters);		
@@ -50,13 +213,27 @@ public class Messages {
 	
 	
 	static final String FormatWordCount(Entry<String, Long> entry) {
-		long l = entry.getValue();
-		String key = l > 1 ? FormatWordCountPlural  : FormatWordCountSingle;
-		return formattedMessage(key, entry.getKey(), entry.getValue());
+		return FormatWordCount(entry.getKey(), entry.getValue());
+	}
+	
+	static final String FormatWordCount(String word, long count) {
+		String key = count > 1 ? FormatWordCountPlural  : FormatWordCountSingle;
+		return formattedMessage(key, word, count);
+	}
+	
+	//The unformatted template, for the ReportWriter to parse once.
+	static final String FormatWordCountTemplate(boolean plural) {
+		return getString(plural ? FormatWordCountPlural  : FormatWordCountSingle);
 	}
 	
-	static final String Usage(String help, String file ,String encoding) {
-		return formattedMessage(Usage, help, file ,encoding);
+	static final String Usage(String help, String file ,String encoding, String threads, String top, String perFile, 
+			String incremental, String index, String query, String word, String prefix, String stdin, String follow, 
+			String interval, String window, String approximate, String memory, String stats, String serve, 
+			String concurrency, String timeout, String segment, String define, String ngram, String format, String partial, 
+			String merge) {
+		return formattedMessage(Usage, help, file ,encoding, threads, top, perFile, incremental, index, query, word, prefix, 
+				stdin, follow, interval, window, approximate, memory, stats, serve, concurrency, timeout, segment, define, ngram, format, 
+				partial, merge);
 	}
 	
 	
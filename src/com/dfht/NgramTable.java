@@ -0,0 +1,250 @@
+package com.dfht;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A table of n-grams (runs of n consecutive words, e.g. pairs for n = 2) to the number of times they occurred.
+ * Counting them as Strings of the words joined together would make a String for every n-gram in the input (and keep
+ * one for every distinct one), and there are far more distinct n-grams than words.
+ * Instead each word is looked up once, in a {@link WordCountTable} of the words, and stands for its offset in that
+ * table's arena from then on. The last n of those are kept as the words go by, and an n-gram's key is just its n
+ * offsets, packed into an int[] with the keys of all the n-grams (n ints a slot) next to their hashes and counts.
+ * Only the n-grams that are reported are made into text (the words joined by spaces), and they are reported in the
+ * same order as the words are (see {@link WordCounter#compare(String, long, String, long)}) by that text.
+ *
+ * It is open addressing with linear probing, as for the {@link WordCountTable}.
+ * Not thread safe.
+ * @author Darren
+ *
+ */
+public class NgramTable implements WordTokenizer.WordSink {
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	private final int n;
+	//The words, which give each one its offset (and which get counted too, as it costs nothing more).
+	private final WordCountTable words = new WordCountTable();
+	//The offsets of the last n words (a ring, the next one going in at next).
+	private final int[] window;
+	private int next;
+	//How many words there have been since the start (or the last break), up to n.
+	private int seen;
+	//The n offsets of each slot's n-gram (WordArena.NONE first for an empty slot).
+	private int[] keys;
+	private int[] hashes;
+	private long[] counts;
+	private int capacity;
+	private int size;
+	private int threshold;
+
+
+	public NgramTable(int n) {
+		this.n = n;
+		this.window = new int[n];
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		if((long) capacity * n > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException(Messages.TableFull(size));
+		this.capacity = capacity;
+		keys = new int[capacity * n];
+		hashes = new int[capacity];
+		counts = new long[capacity];
+		threshold = capacity >>> 1;
+	}
+
+
+	@Override
+	public void word(CharSequence chars, int start, int end) {
+		window[next] = words.offset(chars, start, end);
+		next = next + 1 == n ? 0 : next + 1;
+		if(seen < n)
+			seen++;
+		if(seen == n)
+			add();
+	}
+
+	/**
+	 * Start again, so no n-gram spans the break (e.g. between one file and the next).
+	 */
+	public void reset() {
+		seen = 0;
+		next = 0;
+	}
+
+
+	//Count the n-gram in the window (whose first word is at next).
+	private void add() {
+		int hash = 0;
+		for (int i = 0; i < n; i++)
+			hash = 31 * hash + window[(next + i) % n];
+		int mask = capacity - 1;
+		int index = spread(hash) & mask;
+		while(keys[index * n] != WordArena.NONE) {
+			if(hashes[index] == hash && matches(index)) {
+				counts[index]++;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+		for (int i = 0; i < n; i++)
+			keys[index * n + i] = window[(next + i) % n];
+		hashes[index] = hash;
+		counts[index] = 1;
+		if(++size >= threshold)
+			resize();
+	}
+
+	private boolean matches(int index) {
+		int key = index * n;
+		for (int i = 0; i < n; i++) {
+			if(keys[key + i] != window[(next + i) % n])
+				return false;
+		}
+		return true;
+	}
+
+	//The same as the WordCountTable's (the offsets are just as badly spread in the low bits).
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private void resize() {
+		RunStats.tableSize(size);
+		if(capacity == MAXIMUM_CAPACITY) {
+			if(size < MAXIMUM_CAPACITY - 1) {
+				threshold = MAXIMUM_CAPACITY - 1;
+				return;
+			}
+			throw new IllegalStateException(Messages.TableFull(size));
+		}
+		int oldCapacity = capacity;
+		int[] oldKeys = keys;
+		int[] oldHashes = hashes;
+		long[] oldCounts = counts;
+		allocate(oldCapacity << 1);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldCapacity; i++) {
+			if(oldKeys[i * n] == WordArena.NONE)
+				continue;
+			int index = spread(oldHashes[i]) & mask;
+			while(keys[index * n] != WordArena.NONE)
+				index = (index + 1) & mask;
+			System.arraycopy(oldKeys, i * n, keys, index * n, n);
+			hashes[index] = oldHashes[i];
+			counts[index] = oldCounts[i];
+		}
+	}
+
+
+	/**
+	 * The number of distinct n-grams.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The number of n-grams counted (the total of the counts).
+	 * @return
+	 */
+	public long total() {
+		long total = 0;
+		for (int i = 0; i < capacity; i++)
+			total += counts[i];
+		return total;
+	}
+
+	/**
+	 * The number of times the n-gram occurred (0 if it isn't in the table).
+	 * This looks through the whole table, so is just for checking a few n-grams.
+	 * @param ngram - The words (n of them).
+	 * @return
+	 */
+	public long get(String... ngram) {
+		WordArena arena = words.words();
+		for (int i = 0; i < capacity; i++) {
+			if(keys[i * n] != WordArena.NONE && matches(arena, i, ngram))
+				return counts[i];
+		}
+		return 0;
+	}
+
+	private boolean matches(WordArena arena, int index, String[] ngram) {
+		if(ngram.length != n)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if(!arena.matches(keys[index * n + i], ngram[i], 0, ngram[i].length()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Pass each n-gram with at least the given count to the action, as its text (in no particular order).
+	 * @param minCount
+	 * @param action
+	 */
+	void forEach(long minCount, ObjLongConsumer<String> action) {
+		WordArena arena = words.words();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < capacity; i++) {
+			if(keys[i * n] != WordArena.NONE && counts[i] >= minCount)
+				action.accept(text(arena, i, text), counts[i]);
+		}
+	}
+
+	//The words of the n-gram in the slot, separated by spaces.
+	private String text(WordArena arena, int index, StringBuilder text) {
+		text.setLength(0);
+		for (int i = 0; i < n; i++) {
+			if(i > 0)
+				text.append(' ');
+			text.append(arena.word(keys[index * n + i]));
+		}
+		return text.toString();
+	}
+
+
+	/**
+	 * All the n-grams in report order.
+	 * @return
+	 */
+	public OrderedCounts ordered() {
+		RunStats.Timer timer = RunStats.time(RunStats.Phase.ORDER);
+		try {
+			String[] ngrams = new String[size];
+			long[] occurrences = new long[size];
+			int[] added = new int[1];
+			forEach(Long.MIN_VALUE, (ngram, count) -> {
+				ngrams[added[0]] = ngram;
+				occurrences[added[0]++] = count;
+			});
+			return OrderedCounts.of(ngrams, occurrences);
+		}
+		finally {
+			timer.close();
+		}
+	}
+
+	/**
+	 * Just the first k n-grams in report order (only those with at least the kth highest count are made into text).
+	 * @param k
+	 * @return
+	 */
+	public OrderedCounts top(int k) {
+		RunStats.Timer timer = RunStats.time(RunStats.Phase.ORDER);
+		try {
+			TopWords top = new TopWords(k, size);
+			forEach(WordCountTable.highestCount(keys, n, counts, size, k), top);
+			return OrderedCounts.of(top);
+		}
+		finally {
+			timer.close();
+		}
+	}
+}
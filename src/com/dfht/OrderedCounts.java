@@ -0,0 +1,352 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The words and their counts in report order (most frequent first, then alphabetical), as two dense arrays.
+ * This is what the report is made from, whether it is formatted into Strings or written by a {@link ReportWriter}.
+ * The words of a {@link WordCountTable} are sorted where they are (in its {@link WordArena}) and only made into Strings
+ * as each one is asked for.
+ *
+ * The whole report isn't put in order with one comparison sort. Counts are Zipf distributed, so nearly every word
+ * occurs only a handful of times, and most of them once. So the words are first put into a bucket for each count
+ * (a counting sort, which is linear), and only the words within a bucket need sorting, by word alone. Only the few
+ * words with a count too high for a bucket of its own are sorted by count and word. The largest buckets (the words
+ * occurring once or twice) are sorted in parallel.
+ * @author Darren
+ *
+ */
+public class OrderedCounts {
+
+	//Each count up to this has a bucket (a higher one is a word that occurs so often there are few like it).
+	private static final int BUCKETS = 1 << 12;
+	//Ranges of words at least this long are sorted in parallel (smaller ones aren't worth the handing over).
+	private static final int PARALLEL_SIZE = 1 << 13;
+
+	//The words, or null if they are still in the arena.
+	private final String[] words;
+	private final WordArena arena;
+	private final int[] offsets;
+	private final long[] counts;
+
+	private OrderedCounts(String[] words, long[] counts) {
+		this.words = words;
+		this.arena = null;
+		this.offsets = null;
+		this.counts = counts;
+	}
+
+	private OrderedCounts(WordArena arena, int[] offsets, long[] counts) {
+		this.words = null;
+		this.arena = arena;
+		this.offsets = offsets;
+		this.counts = counts;
+	}
+
+
+	/**
+	 * All the words in the table in report order.
+	 * @param table
+	 * @return
+	 */
+	public static OrderedCounts of(WordCountTable table) {
+		RunStats.Timer timer = RunStats.time(RunStats.Phase.ORDER);
+		try {
+			return sorted(table);
+		}
+		finally {
+			timer.close();
+		}
+	}
+
+	private static OrderedCounts sorted(WordCountTable table) {
+		int size = table.size();
+		int[] words = new int[size];
+		long[] counts = new long[size];
+		table.copyTo(words, counts);
+		WordArena arena = table.words();
+		long[] prefixes = new long[size];
+		for (int i = 0; i < size; i++)
+			prefixes[i] = arena.prefix(words[i]);
+		int[] order = order(counts, prefixes, (a, b) -> arena.compare(words[a], words[b]));
+		int[] orderedWords = new int[size];
+		long[] orderedCounts = new long[size];
+		for (int i = 0; i < size; i++) {
+			orderedWords[i] = words[order[i]];
+			orderedCounts[i] = counts[order[i]];
+		}
+		return new OrderedCounts(arena, orderedWords, orderedCounts);
+	}
+
+	/**
+	 * The words (with their counts in the parallel array) in report order.
+	 * @param words
+	 * @param counts
+	 * @return
+	 */
+	static OrderedCounts of(String[] words, long[] counts) {
+		int size = words.length;
+		long[] prefixes = new long[size];
+		for (int i = 0; i < size; i++)
+			prefixes[i] = prefix(words[i]);
+		int[] order = order(counts, prefixes, (a, b) -> words[a].compareTo(words[b]));
+		String[] orderedWords = new String[size];
+		long[] orderedCounts = new long[size];
+		for (int i = 0; i < size; i++) {
+			orderedWords[i] = words[order[i]];
+			orderedCounts[i] = counts[order[i]];
+		}
+		return new OrderedCounts(orderedWords, orderedCounts);
+	}
+
+	/**
+	 * Just the first k words of the table in report order.
+	 * The words go through a bounded heap of size k (O(n log k)) rather than all being sorted.
+	 * Only the words with at least the kth highest count can be in it, so only they are made into Strings for it.
+	 * @param table
+	 * @param k
+	 * @return
+	 */
+	public static OrderedCounts top(WordCountTable table, int k) {
+		RunStats.Timer timer = RunStats.time(RunStats.Phase.ORDER);
+		try {
+			TopWords top = new TopWords(k, table.size());
+			table.forEach(table.highestCount(k), top);
+			return of(top);
+		}
+		finally {
+			timer.close();
+		}
+	}
+
+	/**
+	 * As {@link #top(WordCountTable, int)}, but for a map.
+	 * @param counts
+	 * @param k
+	 * @return
+	 */
+	public static OrderedCounts top(Map<String, Long> counts, int k) {
+		RunStats.Timer timer = RunStats.time(RunStats.Phase.ORDER);
+		try {
+			TopWords top = new TopWords(k, counts.size());
+			counts.forEach(top::offer);
+			return of(top);
+		}
+		finally {
+			timer.close();
+		}
+	}
+
+	/**
+	 * The words kept by the top words heap (which is emptied).
+	 * @param top
+	 * @return
+	 */
+	static OrderedCounts of(TopWords top) {
+		String[] words = new String[top.size()];
+		long[] counts = new long[top.size()];
+		top.drainTo(words, counts);
+		return new OrderedCounts(words, counts);
+	}
+
+
+	public int size() {
+		return counts.length;
+	}
+
+	public String word(int i) {
+		return words != null ? words[i] : arena.word(offsets[i]);
+	}
+
+	public long count(int i) {
+		return counts[i];
+	}
+
+
+	/**
+	 * The lines of the report (formatted by the messages resource bundle).
+	 * @return
+	 */
+	public Stream<String> lines() {
+		return IntStream.range(0, counts.length).mapToObj(i -> Messages.FormatWordCount(word(i), counts[i]));
+	}
+
+	/**
+	 * Write the lines of the report.
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeTo(ReportWriter writer) throws IOException {
+		for (int i = 0; i < counts.length; i++)
+			writer.write(word(i), counts[i]);
+	}
+
+
+
+	//The first four characters of the word, as WordArena.prefix.
+	private static long prefix(String word) {
+		long prefix = 0;
+		for (int i = 0; i < Math.min(word.length(), 4); i++)
+			prefix |= (long) word.charAt(i) << (48 - 16 * i);
+		return prefix;
+	}
+
+	//The indices of the counts in report order (the same as WordCounter.compare), where compareWords compares the words
+	//of two indices. The words with counts from 1 to the number of buckets are put in the buckets (the higher counts
+	//first), and those with any other count go before or after them and are sorted by count as well.
+	//The words are compared by the prefixes (their first few characters, in an array of their own) first, so the words
+	//themselves (wherever they are) are only looked at when those are the same.
+	private static int[] order(long[] counts, long[] prefixes, IntBinaryOperator compareWords) {
+		int size = counts.length;
+		//No more buckets than words (or they would take longer to go through than the words).
+		int buckets = Math.min(BUCKETS, size);
+		//The number of words with each count, and then where the next one goes.
+		int[] next = new int[buckets + 1];
+		int higher = 0;
+		int lower = 0;
+		for (long count : counts) {
+			if(count > buckets)
+				higher++;
+			else if(count < 1)
+				lower++;
+			else
+				next[(int) count]++;
+		}
+		//The ranges are in order from the highest count down.
+		int[] starts = new int[buckets + 2];
+		int position = higher;
+		for (int count = buckets; count >= 1; count--) {
+			starts[count] = position;
+			position += next[count];
+			next[count] = starts[count];
+		}
+		int lowerStart = position;
+		int nextHigher = 0;
+		int nextLower = lowerStart;
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			long count = counts[i];
+			if(count > buckets)
+				order[nextHigher++] = i;
+			else if(count < 1)
+				order[nextLower++] = i;
+			else
+				order[next[(int) count]++] = i;
+		}
+		int[] spare = new int[size];
+		IntBinaryOperator byWord = (a, b) -> {
+			int anInt = Long.compareUnsigned(prefixes[a], prefixes[b]);
+			return anInt != 0 ? anInt : compareWords.applyAsInt(a, b);
+		};
+		IntBinaryOperator compare = (a, b) -> {
+			int anInt = Long.compare(counts[b], counts[a]);
+			return anInt != 0 ? anInt : byWord.applyAsInt(a, b);
+		};
+		sort(order, spare, 0, higher, compare);
+		sort(order, spare, lowerStart, size, compare);
+		for (int count = buckets; count >= 1; count--) {
+			//The bucket for the next lower count starts where this one ends.
+			int end = count > 1 ? starts[count - 1] : lowerStart;
+			sort(order, spare, starts[count], end, byWord);
+		}
+		return order;
+	}
+
+	/**
+	 * The indices 0 to size - 1 in the order of the comparison (of two indices), e.g. to sort words where they are
+	 * without an Integer for each one as Arrays.sort would need.
+	 * @param size
+	 * @param compare
+	 * @return
+	 */
+	static int[] sortedIndices(int size, IntBinaryOperator compare) {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		sort(order, new int[size], 0, size, compare);
+		return order;
+	}
+
+	//Sort order[from, to) (in parallel if it is large).
+	private static void sort(int[] order, int[] spare, int from, int to, IntBinaryOperator compare) {
+		if(to - from < PARALLEL_SIZE)
+			mergeSort(order, spare, from, to, compare);
+		else
+			ForkJoinPool.commonPool().invoke(new ParallelSort(order, spare, from, to, compare));
+	}
+
+	//A merge sort of the indices order[from, to) (using spare as the scratch space).
+	//There is no sort of an int[] with a comparator in the JDK.
+	private static void mergeSort(int[] order, int[] spare, int from, int to, IntBinaryOperator compare) {
+		if(to - from < 16) {
+			//Insertion sort for the small ranges.
+			for (int i = from + 1; i < to; i++) {
+				int index = order[i];
+				int j = i - 1;
+				while(j >= from && compare.applyAsInt(order[j], index) > 0) {
+					order[j + 1] = order[j];
+					j--;
+				}
+				order[j + 1] = index;
+			}
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(order, spare, from, middle, compare);
+		mergeSort(order, spare, middle, to, compare);
+		merge(order, spare, from, middle, to, compare);
+	}
+
+	//Merge the sorted order[from, middle) and order[middle, to).
+	private static void merge(int[] order, int[] spare, int from, int middle, int to, IntBinaryOperator compare) {
+		System.arraycopy(order, from, spare, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if(right >= to || (left < middle && compare.applyAsInt(spare[left], spare[right]) <= 0))
+				order[i] = spare[left++];
+			else
+				order[i] = spare[right++];
+		}
+	}
+
+
+	/**
+	 * A merge sort of a large range that sorts its two halves at the same time (and so on down to a range
+	 * small enough to just sort).
+	 */
+	private static class ParallelSort extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] order;
+		private final int[] spare;
+		private final int from;
+		private final int to;
+		private final IntBinaryOperator compare;
+
+		ParallelSort(int[] order, int[] spare, int from, int to, IntBinaryOperator compare) {
+			this.order = order;
+			this.spare = spare;
+			this.from = from;
+			this.to = to;
+			this.compare = compare;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from < PARALLEL_SIZE) {
+				mergeSort(order, spare, from, to, compare);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ParallelSort(order, spare, from, middle, compare), new ParallelSort(order, spare, middle, to, compare));
+			merge(order, spare, from, middle, to, compare);
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel counting for input that can only be read from start to end: a pipe, a socket or a file as it is
+ * decompressed. The {@link ChunkedWordCounter} needs to map and split a file, so without this all such input is read,
+ * decoded and counted on one thread.
+ *
+ * Here the reading is a stage of its own, on the calling thread. It reads the input into chunks and hands each one on
+ * to a number of workers, which each count the chunks they get into a table of their own (merged at the end).
+ * The chunks are made once and go round and round: from a pool to the reader, which fills one, to a queue that the
+ * workers take them from, and back to the pool once counted. So when the workers fall behind, the reader waits for a
+ * chunk to come back rather than reading on, and the memory used is just the chunks, however big the input is.
+ *
+ * Each chunk ends at the end of a line, and what is read after that goes to the start of the next chunk, so no word is
+ * ever split between two chunks (and a line longer than a chunk makes the chunk bigger). For UTF-8 and single byte
+ * charsets the chunks are of bytes, and the workers count UTF-8 straight from the bytes and decode anything else
+ * themselves. For other charsets (e.g. UTF-16, where a '\n' byte can be half of another character) the reader has
+ * to decode the input, and the chunks are of chars.
+ * @author Darren
+ *
+ */
+public class PipelinedWordCounter {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	//Enough chunks that each worker can have one while there are more waiting for them.
+	private static final int CHUNKS_PER_WORKER = 3;
+
+	//The most a chunk can grow to for a long line (as for the ChunkedWordCounter, the most an array can hold).
+	private static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE - 8;
+
+	//Passed to each worker when there are no more chunks.
+	private static final Chunk END = new Chunk(false, 0);
+
+
+	private PipelinedWordCounter() {
+	}
+
+
+	/**
+	 * Count the words in the input using the given number of workers (as well as the calling thread, which reads it).
+	 * @param in
+	 * @param charset
+	 * @param threads
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordCountTable processedTable(InputStream in, Charset charset, int threads) throws IOException {
+		return processedTable(in, charset, threads, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * As {@link #processedTable(InputStream, Charset, int)}, but with control over the size of the chunks
+	 * (useful for the tests so that small input is still split).
+	 * @param in
+	 * @param charset
+	 * @param threads
+	 * @param chunkSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordCountTable processedTable(InputStream in, Charset charset, int threads, int chunkSize) throws IOException {
+		boolean bytes = ChunkedWordCounter.canSplit(charset);
+		int chunks = threads * CHUNKS_PER_WORKER;
+		BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(chunks);
+		for (int i = 0; i < chunks; i++)
+			free.add(new Chunk(bytes, chunkSize));
+		//Room for every chunk and every worker's END, so handing a chunk over never waits (the reader waits for a free one).
+		BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(chunks + threads);
+		Pipeline pipeline = new Pipeline(free, filled);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<WordCountTable>> workers = new ArrayList<>(threads);
+			for (int i = 0; i < threads; i++)
+				workers.add(pool.submit(new Worker(pipeline, charset)));
+			try {
+				if(bytes)
+					pipeline.read(in, null);
+				else
+					pipeline.read(null, new InputStreamReader(in, charset.newDecoder()));
+			}
+			finally {
+				for (int i = 0; i < threads; i++)
+					filled.add(END);
+			}
+			WordCountTable total = new WordCountTable();
+			//The first problem a worker had is the one reported.
+			for (Future<WordCountTable> worker : workers)
+				total = WordCountTable.merge(total, worker.get());
+			return total;
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+		catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+
+	/**
+	 * Where the chunks go round, and whether a worker has had a problem (so the reader can stop).
+	 */
+	private static class Pipeline {
+		private final BlockingQueue<Chunk> free;
+		private final BlockingQueue<Chunk> filled;
+		private volatile boolean failed;
+
+		Pipeline(BlockingQueue<Chunk> free, BlockingQueue<Chunk> filled) {
+			this.free = free;
+			this.filled = filled;
+		}
+
+		//The reader stage: fill chunks (from the stream or the reader) and hand them on.
+		void read(InputStream in, Reader reader) throws IOException, InterruptedException {
+			Chunk chunk = free.take();
+			chunk.length = 0;
+			//Where the chunk starts in the input (in bytes, or chars for chunks of chars).
+			long start = 0;
+			boolean end = false;
+			while(!end && !failed) {
+				while(chunk.length < chunk.capacity()) {
+					int read = chunk.read(in, reader);
+					if(read < 0) {
+						end = true;
+						break;
+					}
+					chunk.length += read;
+				}
+				int lineEnd = end ? chunk.length : chunk.lastLineEnd();
+				//Not even one whole line.
+				if(lineEnd == 0 && !end) {
+					if(chunk.capacity() == MAX_CHUNK_SIZE)
+						throw new IOException(Messages.LineTooLong(start));
+					chunk.grow();
+					continue;
+				}
+				Chunk next = null;
+				if(!end) {
+					next = free.take();
+					chunk.moveTail(lineEnd, next);
+					start += lineEnd;
+				}
+				if(chunk.length > 0)
+					filled.add(chunk);
+				else
+					free.add(chunk);
+				chunk = next;
+			}
+			if(chunk != null)
+				free.add(chunk);
+		}
+	}
+
+
+	/**
+	 * A counting stage: counts the chunks it is handed into its own table until it gets the END.
+	 * After a problem it carries on taking the chunks (and giving them back) without counting them, so the reader
+	 * never waits for a chunk that won't come back.
+	 */
+	private static class Worker implements Callable<WordCountTable> {
+		private final Pipeline pipeline;
+		private final Charset charset;
+		private final boolean utf8;
+		private final Utf8WordCountTable utf8Table;
+		private final WordCountTable table;
+		//For decoding chunks of bytes in a charset other than UTF-8.
+		private final CharsetDecoder decoder;
+		private CharBuffer decoded;
+
+		Worker(Pipeline pipeline, Charset charset) {
+			this.pipeline = pipeline;
+			this.charset = charset;
+			this.utf8 = Utf8WordCounter.handles(charset);
+			this.utf8Table = utf8 ? new Utf8WordCountTable() : null;
+			this.table = utf8 ? null : new WordCountTable();
+			this.decoder = utf8 ? null : charset.newDecoder();
+		}
+
+		@Override
+		public WordCountTable call() throws Exception {
+			Exception failure = null;
+			while(true) {
+				Chunk chunk = pipeline.filled.take();
+				if(chunk == END)
+					break;
+				try {
+					if(failure == null)
+						count(chunk);
+				}
+				catch(IOException | RuntimeException ex) {
+					failure = ex;
+					pipeline.failed = true;
+				}
+				finally {
+					pipeline.free.add(chunk);
+				}
+			}
+			if(failure != null)
+				throw failure;
+			return utf8 ? utf8Table.toWordCountTable() : table;
+		}
+
+		private void count(Chunk chunk) throws IOException {
+			if(chunk.chars != null) {
+				CharBuffer chars = CharBuffer.wrap(chunk.chars, 0, chunk.length);
+				WordTokenizer.tokenize(chars, table);
+				RunStats.lines(chars);
+				return;
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(chunk.bytes, 0, chunk.length);
+			if(utf8) {
+				Utf8WordCounter.count(bytes, utf8Table);
+				return;
+			}
+			//A single byte charset, so a char for each byte.
+			if(decoded == null || decoded.capacity() < chunk.length)
+				decoded = CharBuffer.allocate(chunk.bytes.length);
+			decoded.clear();
+			decoder.reset();
+			CoderResult result = decoder.decode(bytes, decoded, true);
+			if(result.isError() || result.isOverflow())
+				result.throwException();
+			decoder.flush(decoded);
+			decoded.flip();
+			WordTokenizer.tokenize(decoded, table);
+			RunStats.lines(decoded);
+		}
+
+		@Override
+		public String toString() {
+			return "Counting " + charset;
+		}
+	}
+
+
+	/**
+	 * Some whole lines of the input (except at its end), as bytes or chars.
+	 */
+	private static class Chunk {
+		private byte[] bytes;
+		private char[] chars;
+		private int length;
+
+		Chunk(boolean bytes, int size) {
+			if(bytes)
+				this.bytes = new byte[size];
+			else
+				this.chars = new char[size];
+		}
+
+		int capacity() {
+			return bytes != null ? bytes.length : chars.length;
+		}
+
+		int read(InputStream in, Reader reader) throws IOException {
+			if(bytes != null)
+				return in.read(bytes, length, bytes.length - length);
+			return reader.read(chars, length, chars.length - length);
+		}
+
+		//Just after the last '\n' (or 0 if there isn't one).
+		int lastLineEnd() {
+			int i = length;
+			if(bytes != null) {
+				while(i > 0 && bytes[i - 1] != '\n')
+					i--;
+			}
+			else {
+				while(i > 0 && chars[i - 1] != '\n')
+					i--;
+			}
+			return i;
+		}
+
+		//Room for a longer line (which the chunk keeps, as there may be more of them).
+		void grow() {
+			int size = (int) Math.min(MAX_CHUNK_SIZE, 2L * Math.max(1, capacity()));
+			if(bytes != null)
+				bytes = Arrays.copyOf(bytes, size);
+			else
+				chars = Arrays.copyOf(chars, size);
+		}
+
+		//Move what is after from (the start of a line) to the start of the next chunk, which is empty.
+		void moveTail(int from, Chunk next) {
+			int tail = length - from;
+			while(next.capacity() < tail)
+				next.grow();
+			if(bytes != null)
+				System.arraycopy(bytes, from, next.bytes, 0, tail);
+			else
+				System.arraycopy(chars, from, next.chars, 0, tail);
+			next.length = tail;
+			length = from;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.dfht;
+
+import java.util.Locale;
+
+/**
+ * What the report is written as (see {@link ReportWriter}).
+ * The text is for people, and the rest for other programs: they are always UTF-8 (whatever the console uses), and a
+ * word is written exactly as it is, whatever characters it has (which the text can't promise, with its quotes).
+ * @author Darren
+ *
+ */
+public enum ReportFormat {
+	/**
+	 * A sentence for each word ("The word 'x' occurred n times.") in the charset of the console.
+	 */
+	TEXT,
+	/**
+	 * A header line (word,count) and then a line for each word (RFC 4180, so a word with a comma, quote or line break
+	 * is quoted and its quotes doubled).
+	 */
+	CSV,
+	/**
+	 * A JSON object for each word on a line of its own ({"word":"x","count":n}).
+	 */
+	JSONL,
+	/**
+	 * Binary, which can be read (memory mapped) without parsing it (see {@link BinaryReport} for the layout).
+	 */
+	BIN;
+
+
+	/**
+	 * The format with the (lower case) name.
+	 * @param name
+	 * @return
+	 * @throws InputException - If there isn't one.
+	 */
+	public static ReportFormat parse(String name) throws InputException {
+		for (ReportFormat format : values()) {
+			if(format.toString().equals(name))
+				return format;
+		}
+		throw new InputException(Messages.InvalidReportFormat(name));
+	}
+
+	@Override
+	public String toString() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+}
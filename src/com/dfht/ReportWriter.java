@@ -0,0 +1,499 @@
+package com.dfht;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the lines of the report ("The word 'x' occurred n times.") straight to an output channel.
+ * Printing each line with System.out.println meant a String.format (and a resource bundle lookup) per word,
+ * plus a lock and a flush per line. Here the singular and plural templates are parsed once into segments,
+ * the words and counts are copied into a char buffer, and that is encoded into a large byte buffer which is
+ * only written out when it is full. There is no String made per line.
+ *
+ * The report can be written in other formats for other programs to read (see {@link ReportFormat}). Those are
+ * always UTF-8, so the words are encoded (and escaped as the format needs) a character at a time straight into the
+ * byte buffer, and the counts written as digits (or for the binary, as they are) into it too.
+ * Not thread safe.
+ * @author Darren
+ *
+ */
+public class ReportWriter implements Flushable, Closeable {
+
+	private static final int CHAR_BUFFER_SIZE = 8 * 1024;
+	private static final int BYTE_BUFFER_SIZE = 64 * 1024;
+	//The record positions of the binary kept in memory (8K of them) before they go to a temporary file.
+	private static final int RECORDS_BUFFER_SIZE = 64 * 1024;
+	//Enough for any long.
+	private static final int MAX_DIGITS = 20;
+	//The most bytes a character of a word can be written as (a \\uXXXX escape).
+	private static final int MAX_CHARACTER_BYTES = 6;
+	private static final byte[] CSV_HEADER = "word,count\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] JSON_WORD = "{\"word\":\"".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] JSON_COUNT = "\",\"count\":".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private final WritableByteChannel channel;
+	private final ReportFormat format;
+	private final CharsetEncoder encoder;
+	private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+	private final ByteBuffer bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+	private final char[] digits = new char[MAX_DIGITS];
+	private final char[] lineSeparator = System.lineSeparator().toCharArray();
+
+	private final Template single;
+	private final Template plural;
+
+	//The bytes written out so far (for the binary's record positions).
+	private long written;
+	//Where each record of the binary starts (only kept for that): a buffer's worth, and once that is full the rest in
+	//a temporary file, so the memory doesn't grow with the number of words (e.g. for a report of an external count).
+	private ByteBuffer records;
+	private FileChannel recordsFile;
+	private long size;
+
+
+	/**
+	 * Write to the stream in the charset System.out uses (so it can replace printing to System.out).
+	 * Closing the writer doesn't close the stream.
+	 * @param out
+	 */
+	public ReportWriter(OutputStream out) {
+		this(out, ReportFormat.TEXT);
+	}
+
+	/**
+	 * As {@link #ReportWriter(OutputStream)}, in the given format.
+	 * @param out
+	 * @param format
+	 */
+	public ReportWriter(OutputStream out, ReportFormat format) {
+		this(Channels.newChannel(out), CharsetHelper.consoleCharset(), format);
+	}
+
+	/**
+	 * @param channel
+	 * @param charset
+	 */
+	public ReportWriter(WritableByteChannel channel, Charset charset) {
+		this(channel, charset, ReportFormat.TEXT);
+	}
+
+	/**
+	 * @param channel
+	 * @param charset - The charset of the text (the other formats are always UTF-8).
+	 * @param format
+	 */
+	public ReportWriter(WritableByteChannel channel, Charset charset, ReportFormat format) {
+		this.channel = channel;
+		this.format = format;
+		//Characters the charset can't encode become '?' (or whatever it uses), the same as PrintStream does.
+		this.encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.single = Template.parse(Messages.FormatWordCountTemplate(false));
+		this.plural = Template.parse(Messages.FormatWordCountTemplate(true));
+		if(format == ReportFormat.CSV)
+			bytes.put(CSV_HEADER);
+		else if(format == ReportFormat.BIN) {
+			bytes.putInt(BinaryReport.MAGIC).putInt(BinaryReport.VERSION);
+			records = ByteBuffer.allocate(RECORDS_BUFFER_SIZE);
+		}
+	}
+
+
+	/**
+	 * Write the line of the report for a word (followed by the line separator).
+	 * @param word
+	 * @param count
+	 * @throws IOException
+	 */
+	public void write(String word, long count) throws IOException {
+		switch(format) {
+		case CSV:
+			writeCsv(word, count);
+			return;
+		case JSONL:
+			writeJson(word, count);
+			return;
+		case BIN:
+			writeBinary(word, count);
+			return;
+		default:
+			break;
+		}
+		Template template = count > 1 ? plural : single;
+		if(template == null) {
+			//A template I couldn't parse, so leave it to String.format.
+			append(Messages.FormatWordCount(word, count));
+		}
+		else {
+			for (Object segment : template.segments) {
+				if(segment == Template.WORD)
+					append(word);
+				else if(segment == Template.COUNT)
+					append(count);
+				else
+					append((char[]) segment);
+			}
+		}
+		append(lineSeparator);
+	}
+
+
+	private void append(String text) throws IOException {
+		int length = text.length();
+		int from = 0;
+		while(from < length) {
+			if(!chars.hasRemaining())
+				encodeChars();
+			int n = Math.min(length - from, chars.remaining());
+			//Copy straight into the buffer's array (no intermediate array).
+			int position = chars.position();
+			text.getChars(from, from + n, chars.array(), position);
+			chars.position(position + n);
+			from += n;
+		}
+	}
+
+	private void append(char[] text) throws IOException {
+		int from = 0;
+		while(from < text.length) {
+			if(!chars.hasRemaining())
+				encodeChars();
+			int n = Math.min(text.length - from, chars.remaining());
+			chars.put(text, from, n);
+			from += n;
+		}
+	}
+
+	//Long.toString without the String.
+	private void append(long count) throws IOException {
+		int i = MAX_DIGITS;
+		long value = count;
+		boolean negative = value < 0;
+		do {
+			//The remainder is negated for negative values, so Long.MIN_VALUE works too.
+			int digit = (int) (value % 10);
+			digits[--i] = (char) ('0' + (negative ? -digit : digit));
+			value /= 10;
+		} while(value != 0);
+		if(negative)
+			digits[--i] = '-';
+		if(chars.remaining() < MAX_DIGITS - i)
+			encodeChars();
+		chars.put(digits, i, MAX_DIGITS - i);
+	}
+
+
+	//word,count (with the word quoted if it has to be).
+	private void writeCsv(String word, long count) throws IOException {
+		boolean quoted = false;
+		for (int i = 0; i < word.length() && !quoted; i++) {
+			char c = word.charAt(i);
+			quoted = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if(quoted)
+			put((byte) '"');
+		putWord(word);
+		if(quoted)
+			put((byte) '"');
+		put((byte) ',');
+		putDigits(count);
+		put((byte) '\n');
+	}
+
+	//{"word":"x","count":n}
+	private void writeJson(String word, long count) throws IOException {
+		put(JSON_WORD);
+		putWord(word);
+		put(JSON_COUNT);
+		putDigits(count);
+		put((byte) '}');
+		put((byte) '\n');
+	}
+
+	//The count, the length of the word (in bytes) and its UTF-8, remembering where it starts for the index at the end.
+	private void writeBinary(String word, long count) throws IOException {
+		if(!records.hasRemaining())
+			spillRecords();
+		if(bytes.remaining() < Long.BYTES + Integer.BYTES)
+			writeBytes();
+		records.putLong(written + bytes.position());
+		size++;
+		bytes.putLong(count).putInt(utf8Length(word));
+		putWord(word);
+	}
+
+	//The number of bytes putWord writes for the word in the binary (which doesn't escape anything).
+	private static int utf8Length(String word) {
+		int length = 0;
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if(c < 0x80)
+				length++;
+			else if(c < 0x800)
+				length += 2;
+			else if(Character.isHighSurrogate(c) && i + 1 < word.length() && Character.isLowSurrogate(word.charAt(i + 1))) {
+				length += 4;
+				i++;
+			}
+			else
+				length += Character.isSurrogate(c) ? 1 : 3;
+		}
+		return length;
+	}
+
+	//The word as UTF-8, escaped as the format needs: quotes doubled for CSV, and for JSON quotes, backslashes and
+	//control characters escaped. An unpaired surrogate (which UTF-8 can't have) is a '?', or for JSON escaped.
+	private void putWord(String word) throws IOException {
+		boolean json = format == ReportFormat.JSONL;
+		boolean csv = format == ReportFormat.CSV;
+		int length = word.length();
+		for (int i = 0; i < length; i++) {
+			if(bytes.remaining() < MAX_CHARACTER_BYTES)
+				writeBytes();
+			char c = word.charAt(i);
+			if(c < 0x80) {
+				if(json && (c == '"' || c == '\\'))
+					bytes.put((byte) '\\');
+				else if(json && c < 0x20) {
+					putEscape(c);
+					continue;
+				}
+				else if(csv && c == '"')
+					bytes.put((byte) '"');
+				bytes.put((byte) c);
+			}
+			else if(c < 0x800) {
+				bytes.put((byte) (0xC0 | c >>> 6));
+				bytes.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(word.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, word.charAt(++i));
+				bytes.put((byte) (0xF0 | codePoint >>> 18));
+				bytes.put((byte) (0x80 | (codePoint >>> 12 & 0x3F)));
+				bytes.put((byte) (0x80 | (codePoint >>> 6 & 0x3F)));
+				bytes.put((byte) (0x80 | (codePoint & 0x3F)));
+			}
+			else if(Character.isSurrogate(c)) {
+				if(json)
+					putEscape(c);
+				else
+					bytes.put((byte) '?');
+			}
+			else {
+				bytes.put((byte) (0xE0 | c >>> 12));
+				bytes.put((byte) (0x80 | (c >>> 6 & 0x3F)));
+				bytes.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	//The JSON escape of the character (\\uXXXX), which there is room for.
+	private void putEscape(char c) {
+		bytes.put((byte) '\\').put((byte) 'u');
+		for (int shift = 12; shift >= 0; shift -= 4)
+			bytes.put(HEX[c >>> shift & 0xF]);
+	}
+
+	//As append(long), but straight into the bytes.
+	private void putDigits(long count) throws IOException {
+		int i = MAX_DIGITS;
+		long value = count;
+		boolean negative = value < 0;
+		do {
+			int digit = (int) (value % 10);
+			digits[--i] = (char) ('0' + (negative ? -digit : digit));
+			value /= 10;
+		} while(value != 0);
+		if(negative)
+			digits[--i] = '-';
+		if(bytes.remaining() < MAX_DIGITS - i)
+			writeBytes();
+		for (; i < MAX_DIGITS; i++)
+			bytes.put((byte) digits[i]);
+	}
+
+	private void put(byte b) throws IOException {
+		if(!bytes.hasRemaining())
+			writeBytes();
+		bytes.put(b);
+	}
+
+	private void put(byte[] b) throws IOException {
+		if(bytes.remaining() < b.length)
+			writeBytes();
+		bytes.put(b);
+	}
+
+
+	//Encode what's in the char buffer into the byte buffer, writing the bytes out as it fills.
+	//A surrogate pair split at the end of the char buffer is left for next time.
+	private void encodeChars() throws IOException {
+		chars.flip();
+		while(true) {
+			CoderResult result = encoder.encode(chars, bytes, false);
+			if(result.isOverflow())
+				writeBytes();
+			else
+				break;
+		}
+		chars.compact();
+	}
+
+	private void writeBytes() throws IOException {
+		bytes.flip();
+		written += bytes.remaining();
+		while(bytes.hasRemaining())
+			channel.write(bytes);
+		bytes.clear();
+	}
+
+	//Add the record positions in memory to the temporary file (made the first time), and empty the buffer.
+	private void spillRecords() throws IOException {
+		if(recordsFile == null) {
+			Path file = Files.createTempFile("wordCounter", ".records");
+			recordsFile = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, 
+					StandardOpenOption.DELETE_ON_CLOSE);
+		}
+		records.flip();
+		while(records.hasRemaining())
+			recordsFile.write(records);
+		records.clear();
+	}
+
+	//The end of the binary: (aligned to 8 bytes) where each record starts, then how many there are and where that starts.
+	private void writeIndex() throws IOException {
+		while((written + bytes.position()) % Long.BYTES != 0)
+			put((byte) 0);
+		long index = written + bytes.position();
+		//Those in the temporary file (copied as they are), then the rest.
+		if(recordsFile != null) {
+			try(FileChannel file = recordsFile) {
+				file.position(0);
+				do {
+					if(!bytes.hasRemaining())
+						writeBytes();
+				} while(file.read(bytes) >= 0);
+			}
+		}
+		records.flip();
+		while(records.hasRemaining()) {
+			if(bytes.remaining() < Long.BYTES)
+				writeBytes();
+			bytes.putLong(records.getLong());
+		}
+		if(bytes.remaining() < 2 * Long.BYTES)
+			writeBytes();
+		bytes.putLong(size).putLong(index);
+		records = null;
+		recordsFile = null;
+	}
+
+
+	/**
+	 * Encode and write out everything so far.
+	 */
+	@Override
+	public void flush() throws IOException {
+		encodeChars();
+		writeBytes();
+	}
+
+	/**
+	 * Flush, finishing off the encoding (the writer can't be used after this).
+	 * The underlying stream or channel is left open.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(format == ReportFormat.BIN && records != null)
+			writeIndex();
+		chars.flip();
+		while(encoder.encode(chars, bytes, true).isOverflow())
+			writeBytes();
+		while(encoder.flush(bytes).isOverflow())
+			writeBytes();
+		chars.clear();
+		writeBytes();
+	}
+
+
+
+	/**
+	 * A report line template parsed into its segments: literal text (as a char[]), the word or the count.
+	 * Only %s, %d, %% and %n are understood (which is all the messages use). Anything else means the
+	 * template is left to String.format.
+	 */
+	private static class Template {
+
+		static final Object WORD = new Object();
+		static final Object COUNT = new Object();
+
+		final Object[] segments;
+
+		private Template(Object[] segments) {
+			this.segments = segments;
+		}
+
+		//Null if it isn't a template I understand.
+		static Template parse(String format) {
+			List<Object> segments = new ArrayList<>();
+			StringBuilder literal = new StringBuilder();
+			int words = 0;
+			int counts = 0;
+			for (int i = 0; i < format.length(); i++) {
+				char c = format.charAt(i);
+				if(c != '%') {
+					literal.append(c);
+					continue;
+				}
+				if(++i == format.length())
+					return null;
+				switch(format.charAt(i)) {
+				case '%':
+					literal.append('%');
+					break;
+				case 'n':
+					literal.append(System.lineSeparator());
+					break;
+				case 's':
+				case 'd':
+					if(literal.length() > 0) {
+						segments.add(literal.toString().toCharArray());
+						literal.setLength(0);
+					}
+					//The word is the first argument and the count the second.
+					if(format.charAt(i) == 's' && words++ == 0 && counts == 0)
+						segments.add(WORD);
+					else if(format.charAt(i) == 'd' && counts++ == 0 && words == 1)
+						segments.add(COUNT);
+					else
+						return null;
+					break;
+				default:
+					return null;
+				}
+			}
+			if(literal.length() > 0)
+				segments.add(literal.toString().toCharArray());
+			return new Template(segments.toArray());
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.dfht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A file of words and their counts, in whatever order they were written (e.g. sorted, so that files can be merged
+ * a word at a time). It is the words as UTF-8 with their lengths and counts as varints, after a small header.
+ * They are written and read a word at a time, so no more of a file than the buffer is ever in memory.
+ * @author Darren
+ *
+ */
+public class RunFile {
+
+	//"WCRN".
+	private static final int MAGIC = 0x5743524E;
+	private static final int VERSION = 1;
+	//The buffer of each reader and writer (so what each one open costs).
+	static final int BUFFER_SIZE = 64 * 1024;
+
+
+	private RunFile() {
+	}
+
+
+	/**
+	 * Writes a run file.
+	 */
+	public static class Writer implements Closeable {
+		private final DataOutputStream out;
+		private byte[] bytes = new byte[64];
+
+		public Writer(Path file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		public void write(String word, long count) throws IOException {
+			//Encoding by hand saves a byte[] per word (the words are almost always ASCII).
+			int length = 0;
+			for (int i = 0; i < word.length(); i++) {
+				if(word.charAt(i) >= 0x80) {
+					length = -1;
+					break;
+				}
+				if(length == bytes.length)
+					bytes = Arrays.copyOf(bytes, length * 2);
+				bytes[length++] = (byte) word.charAt(i);
+			}
+			byte[] encoded = bytes;
+			if(length < 0) {
+				encoded = word.getBytes(StandardCharsets.UTF_8);
+				length = encoded.length;
+			}
+			writeVarint(length);
+			out.write(encoded, 0, length);
+			writeVarint(count);
+		}
+
+		private void writeVarint(long value) throws IOException {
+			while((value & ~0x7FL) != 0) {
+				out.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+
+	/**
+	 * Reads a run file a word at a time: {@link #next()} moves on to the next word, which is then
+	 * {@link #word()} and {@link #count()}.
+	 */
+	public static class Reader implements Closeable {
+		private final Path file;
+		private final DataInputStream in;
+		private byte[] bytes = new byte[64];
+		private String word;
+		private long count;
+
+		public Reader(Path file) throws IOException {
+			this.file = file;
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION)
+					throw new IOException(Messages.NotARunFile(file.toString()));
+			}
+			catch(IOException ex) {
+				in.close();
+				throw ex instanceof EOFException ? new IOException(Messages.NotARunFile(file.toString())) : ex;
+			}
+		}
+
+		/**
+		 * Move on to the next word.
+		 * @return False at the end of the file.
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			int first = in.read();
+			if(first < 0) {
+				word = null;
+				return false;
+			}
+			int length = (int) readVarint(first);
+			if(length > bytes.length)
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			in.readFully(bytes, 0, length);
+			word = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			count = readVarint(in.readUnsignedByte());
+			return true;
+		}
+
+		private long readVarint(int b) throws IOException {
+			long value = b & 0x7F;
+			int shift = 7;
+			while((b & 0x80) != 0) {
+				b = in.readUnsignedByte();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			}
+			return value;
+		}
+
+		public Path file() {
+			return file;
+		}
+
+		public String word() {
+			return word;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
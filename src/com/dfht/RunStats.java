@@ -0,0 +1,227 @@
+package com.dfht;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time of a run went (charset detection, counting, ordering and writing the report), and how much it got
+ * through: the bytes, lines, words (tokens) and distinct words counted, the largest table and the time spent in GC.
+ *
+ * The phases are timed wherever they happen, and each one is also a JDK Flight Recorder event (see
+ * {@link JfrEvents}), so a recording of a production run shows them too. The rest is only gathered while a run is
+ * being measured ({@link #start()}), e.g. for -stats. Phases that happen on several threads at once (files counted
+ * concurrently) add up, so they can come to more than the elapsed time.
+ * @author Darren
+ *
+ */
+public class RunStats {
+
+	/**
+	 * The phases of a run.
+	 */
+	public enum Phase {
+		DETECT, COUNT, ORDER, WRITE;
+
+		final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	//The JFR events, or null on a JVM without JFR (Java 8).
+	private static final Events EVENTS = loadEvents();
+	//The run being measured (if any).
+	private static volatile RunStats current;
+
+
+	private final long startNanos = System.nanoTime();
+	private final long startGcMillis = gcMillis();
+	private final long startGcCount = gcCount();
+	private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder lines = new LongAdder();
+	private final LongAccumulator peakTableSize = new LongAccumulator(Math::max, 0);
+	//Only known once there are final counts (-1 until then).
+	private long tokens = -1;
+	private long distinctWords = -1;
+	private long elapsedNanos = -1;
+	private long gcMillis;
+	private long gcCount;
+
+	private RunStats() {
+		for (int i = 0; i < phaseNanos.length; i++)
+			phaseNanos[i] = new LongAdder();
+	}
+
+
+	/**
+	 * Start measuring a run (replacing any run already being measured).
+	 * @return
+	 */
+	public static RunStats start() {
+		RunStats stats = new RunStats();
+		current = stats;
+		return stats;
+	}
+
+	/**
+	 * Stop measuring the run.
+	 * @return This.
+	 */
+	public RunStats stop() {
+		if(current == this)
+			current = null;
+		elapsedNanos = System.nanoTime() - startNanos;
+		gcMillis = gcMillis() - startGcMillis;
+		gcCount = gcCount() - startGcCount;
+		return this;
+	}
+
+	/**
+	 * Start timing a phase (which ends when the timer is closed).
+	 * Close it in a finally block: as a try with resources it would be a resource never used in the block, which
+	 * javac warns about.
+	 * @param phase
+	 * @return
+	 */
+	static Timer time(Phase phase) {
+		return new Timer(phase, EVENTS == null ? null : EVENTS.begin(phase.label));
+	}
+
+	static void bytes(long count) {
+		RunStats stats = current;
+		if(stats != null)
+			stats.bytes.add(count);
+	}
+
+	static void lines(long count) {
+		RunStats stats = current;
+		if(stats != null)
+			stats.lines.add(count);
+	}
+
+	//The lines in some whole lines of text (the last of which needn't end with a '\n').
+	//Only counted while measuring, as it is an extra pass over the text.
+	static void lines(CharSequence chars) {
+		RunStats stats = current;
+		if(stats == null || chars.length() == 0)
+			return;
+		long count = chars.charAt(chars.length() - 1) == '\n' ? 0 : 1;
+		for (int i = 0; i < chars.length(); i++) {
+			if(chars.charAt(i) == '\n')
+				count++;
+		}
+		stats.lines.add(count);
+	}
+
+	//Called as a table grows (which isn't often, so it costs nothing much).
+	static void tableSize(int size) {
+		RunStats stats = current;
+		if(stats != null)
+			stats.peakTableSize.accumulate(size);
+	}
+
+	//The final counts of the run.
+	static void counted(WordCountTable counts) {
+		if(current != null)
+			counted(counts.total(), counts.size());
+	}
+
+	//The final number of words and distinct words (-1 if that isn't known), where there is no table of them all.
+	static void counted(long tokens, long distinctWords) {
+		RunStats stats = current;
+		if(stats == null)
+			return;
+		stats.tokens = tokens;
+		stats.distinctWords = distinctWords;
+		stats.peakTableSize.accumulate(distinctWords);
+	}
+
+
+	/**
+	 * The stats as a JSON object (on one line).
+	 * @return
+	 */
+	public String toJson() {
+		long elapsed = elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - startNanos;
+		StringBuilder json = new StringBuilder("{\"phases\":{");
+		for (Phase phase : Phase.values()) {
+			if(phase.ordinal() > 0)
+				json.append(',');
+			json.append('"').append(phase.label).append("\":").append(millis(phaseNanos[phase.ordinal()].sum()));
+		}
+		json.append("},\"elapsedMs\":").append(millis(elapsed));
+		json.append(",\"bytes\":").append(bytes.sum());
+		json.append(",\"bytesPerSecond\":").append(elapsed == 0 ? 0 : (long) (bytes.sum() * 1e9 / elapsed));
+		json.append(",\"lines\":").append(lines.sum());
+		json.append(",\"tokens\":").append(tokens);
+		json.append(",\"distinctWords\":").append(distinctWords);
+		json.append(",\"peakTableSize\":").append(peakTableSize.get());
+		json.append(",\"gcMs\":").append(gcMillis);
+		json.append(",\"gcCount\":").append(gcCount);
+		return json.append('}').toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, bean.getCollectionTime());
+		return total;
+	}
+
+	private static long gcCount() {
+		long total = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, bean.getCollectionCount());
+		return total;
+	}
+
+
+	/**
+	 * The timing of a phase (from when it was made to when it is closed).
+	 */
+	static class Timer implements AutoCloseable {
+		private final Phase phase;
+		private final Object event;
+		private final long start = System.nanoTime();
+
+		private Timer(Phase phase, Object event) {
+			this.phase = phase;
+			this.event = event;
+		}
+
+		@Override
+		public void close() {
+			RunStats stats = current;
+			if(stats != null)
+				stats.phaseNanos[phase.ordinal()].add(System.nanoTime() - start);
+			if(event != null)
+				EVENTS.end(event);
+		}
+	}
+
+
+	//The flight recorder events (kept behind an interface, see loadEvents).
+	interface Events {
+		//The event, or null if it isn't being recorded.
+		Object begin(String phase);
+
+		void end(Object event);
+	}
+
+	//JFR is only in Java 11 on (and the jar is built for 8), so the class with the events is only loaded
+	//(by name, so nothing else refers to it) if the JVM has it.
+	private static Events loadEvents() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (Events) Class.forName("com.dfht.JfrEvents").getDeclaredConstructor().newInstance();
+		}
+		catch(ReflectiveOperationException | LinkageError ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.dfht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+/**
+ * A file opened (once) for counting, with the start of it already read.
+ * The charset is guessed from those bytes if it isn't given, and then the counting starts with them and carries on
+ * from the same channel, so nothing is opened or read twice. For a small file the sample is the whole thing.
+ * A compressed file (see {@link CompressedInput}) is decompressed as it is read, and the charset guessed from the start
+ * of the decompressed bytes instead.
+ * @author Darren
+ *
+ */
+class SampledFile implements Closeable {
+
+	private final FileChannel channel;
+	private final long size;
+	//The bytes [0, sample.limit()) of the file.
+	private final ByteBuffer sample;
+	private final Charset charset;
+	//The decompressed content of a compressed file (or null).
+	private final InputStream decompressed;
+
+
+	private SampledFile(FileChannel channel, long size, ByteBuffer sample, Charset charset, InputStream decompressed) {
+		this.channel = channel;
+		this.size = size;
+		this.sample = sample;
+		this.charset = charset;
+		this.decompressed = decompressed;
+	}
+
+
+	/**
+	 * Open the file and read its start.
+	 * @param file
+	 * @param charset - The charset, or null to guess it from the start of the file.
+	 * @return
+	 * @throws IOException
+	 */
+	static SampledFile open(Path file, Charset charset) throws IOException {
+		return open(file, charset, 1);
+	}
+
+	/**
+	 * As {@link #open(Path, Charset)}.
+	 * @param file
+	 * @param charset
+	 * @param threads - How many threads can decompress the file (if it is compressed in a way that allows it).
+	 * @return
+	 * @throws IOException
+	 */
+	static SampledFile open(Path file, Charset charset, int threads) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		InputStream decompressed = null;
+		try {
+			long size = channel.size();
+			ByteBuffer sample = ByteBuffer.allocate((int) Math.min(size, CharsetHelper.SAMPLE_SIZE));
+			while(sample.hasRemaining()) {
+				if(channel.read(sample, sample.position()) < 0)
+					throw new IOException(Messages.FileChanged(sample.position()));
+			}
+			sample.flip();
+			RunStats.bytes(size);
+			boolean compressed = CompressedInput.isCompressed(sample);
+			//The decompression needs the file from the start (it is only a few more bytes to read).
+			if(compressed)
+				decompressed = new BufferedInputStream(CompressedInput.open(Channels.newInputStream(channel.position(0)), threads));
+			if(charset == null) {
+				RunStats.Timer timer = RunStats.time(RunStats.Phase.DETECT);
+				try {
+					charset = compressed ? CharsetHelper.guessCharset(decompressed) : CharsetHelper.guessCharset(sample, sample.limit() == size);
+				}
+				finally {
+					timer.close();
+				}
+			}
+			return new SampledFile(channel, size, sample, charset, decompressed);
+		}
+		catch(IOException | RuntimeException ex) {
+			if(decompressed != null)
+				decompressed.close();
+			channel.close();
+			throw ex;
+		}
+	}
+
+
+	FileChannel channel() {
+		return channel;
+	}
+
+	long size() {
+		return size;
+	}
+
+	Charset charset() {
+		return charset;
+	}
+
+	boolean isCompressed() {
+		return decompressed != null;
+	}
+
+	/**
+	 * The bytes at the start of the file as it is on disk (a buffer of its own, so its position etc. can be changed).
+	 * @return
+	 */
+	ByteBuffer sample() {
+		return sample.duplicate();
+	}
+
+	/**
+	 * The bytes of the whole file (decompressed if need be): the sample then the rest of the channel.
+	 * @return
+	 * @throws IOException
+	 */
+	InputStream content() throws IOException {
+		if(decompressed != null)
+			return decompressed;
+		channel.position(sample.limit());
+		ByteArrayInputStream start = new ByteArrayInputStream(sample.array(), sample.arrayOffset(), sample.limit());
+		return new SequenceInputStream(start, Channels.newInputStream(channel));
+	}
+
+	/**
+	 * The lines of the whole file (see {@link #content()}).
+	 * Malformed input is reported (as an UncheckedIOException from the stream), as with Files.lines.
+	 * @return
+	 */
+	Stream<String> lines() throws IOException {
+		return new BufferedReader(new InputStreamReader(content(), charset.newDecoder())).lines();
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		//Closing the decompression stops its threads.
+		if(decompressed != null)
+			decompressed.close();
+		channel.close();
+	}
+}
@@ -0,0 +1,148 @@
+package com.dfht;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting a stream that doesn't end (or not for a long time), e.g. a log piped to stdin or a file being followed.
+ * Every interval it takes a snapshot: the counts for the whole stream so far and for a sliding window of the
+ * last few intervals.
+ *
+ * The words are counted into a table for the current interval (a bucket). At the end of each interval the bucket is
+ * added to the total and the window, and the oldest bucket that has dropped out of the window is subtracted from it.
+ * So each interval costs the same however long the stream runs, and the window only holds the words in it.
+ * The window moves in whole intervals (it is exact as of each snapshot).
+ *
+ * Lines can be counted from one thread while the snapshots are taken on another.
+ * @author Darren
+ *
+ */
+public class StreamingWordCounter {
+
+	//How many words each snapshot shows if not told otherwise.
+	public static final int DEFAULT_TOP = 10;
+
+
+	//The lines are counted into the current bucket under this lock, so the bucket can be swapped for a new one.
+	private final Object lock = new Object();
+	private WordCountTable current = new WordCountTable();
+	private long lines;
+
+	//Only touched by tick (and read by the snapshots, which come after it on the same thread).
+	private final WordCountTable total = new WordCountTable();
+	private final WordCountTable window = new WordCountTable();
+	private final ArrayDeque<WordCountTable> buckets = new ArrayDeque<>();
+	private final int windowBuckets;
+	private long linesTicked;
+
+
+	/**
+	 * @param windowBuckets - The length of the window, in intervals.
+	 */
+	public StreamingWordCounter(int windowBuckets) {
+		if(windowBuckets <= 0)
+			throw new IllegalArgumentException(Integer.toString(windowBuckets));
+		this.windowBuckets = windowBuckets;
+	}
+
+
+	/**
+	 * Count the words in a line (into the current interval).
+	 * @param line
+	 */
+	public void line(CharSequence line) {
+		synchronized(lock) {
+			WordTokenizer.tokenize(line, current);
+			lines++;
+		}
+	}
+
+	/**
+	 * End the current interval: add it to the total and the window, and take the interval that has dropped out of
+	 * the window away from it.
+	 */
+	public synchronized void tick() {
+		WordCountTable closed;
+		synchronized(lock) {
+			closed = current;
+			current = new WordCountTable();
+			linesTicked = lines;
+		}
+		total.merge(closed);
+		window.merge(closed);
+		buckets.addLast(closed);
+		if(buckets.size() > windowBuckets)
+			window.subtract(buckets.removeFirst());
+	}
+
+
+	/**
+	 * The counts for the whole stream, as of the last tick.
+	 * Only to be used on the thread that ticks.
+	 * @return
+	 */
+	public WordCountTable total() {
+		return total;
+	}
+
+	/**
+	 * The counts for the window, as of the last tick.
+	 * Only to be used on the thread that ticks.
+	 * @return
+	 */
+	public WordCountTable window() {
+		return window;
+	}
+
+	/**
+	 * The number of lines counted, as of the last tick.
+	 * @return
+	 */
+	public synchronized long lines() {
+		return linesTicked;
+	}
+
+
+	/**
+	 * Count the lines from the reader until it ends, ticking and then taking a snapshot every interval
+	 * (and once more at the end).
+	 * @param reader
+	 * @param intervalMillis
+	 * @param snapshot - Run after each tick (on the thread that ticks).
+	 * @throws IOException
+	 */
+	public void count(BufferedReader reader, long intervalMillis, Runnable snapshot) throws IOException {
+		ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "WordCounter ticker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			ticker.scheduleAtFixedRate(() -> {
+				tick();
+				snapshot.run();
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+			String line;
+			while((line = reader.readLine()) != null)
+				line(line);
+		}
+		finally {
+			//Stops the ticks (but lets one that is under way finish).
+			ticker.shutdown();
+		}
+		try {
+			//Wait for a snapshot that is under way, so the last one is the last to be output.
+			ticker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		tick();
+		snapshot.run();
+	}
+}
@@ -0,0 +1,111 @@
+package com.dfht;
+
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Keeps the first k words in report order (most frequent first, then alphabetical) out of everything offered.
+ * It is a bounded heap with the 'worst' of the kept words at the root, so each word offered costs
+ * at most O(log k) and the whole thing is O(n log k) rather than the O(n log n) of sorting everything.
+ * Only the k kept words ever get formatted for the report.
+ * @author Darren
+ *
+ */
+class TopWords implements ObjLongConsumer<String> {
+
+	private final int k;
+	private String[] words;
+	private long[] counts;
+	private int size;
+
+	TopWords(int k, int expectedSize) {
+		this.k = k;
+		//No point allocating room for k if there are fewer words than that (it grows if need be).
+		int capacity = Math.max(0, Math.min(k, expectedSize));
+		words = new String[capacity];
+		counts = new long[capacity];
+	}
+
+
+	@Override
+	public void accept(String word, long count) {
+		offer(word, count);
+	}
+
+	void offer(String word, long count) {
+		if(size < k) {
+			if(size == words.length) {
+				int capacity = (int) Math.min(k, 2L * size + 1);
+				words = Arrays.copyOf(words, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+			}
+			//Add at the bottom and sift up towards the root.
+			int i = size++;
+			while(i > 0) {
+				int parent = (i - 1) >>> 1;
+				if(!after(word, count, words[parent], counts[parent]))
+					break;
+				words[i] = words[parent];
+				counts[i] = counts[parent];
+				i = parent;
+			}
+			words[i] = word;
+			counts[i] = count;
+		}
+		else if(size > 0 && after(words[0], counts[0], word, count)) {
+			//Better than the worst word kept, so it replaces it.
+			siftDown(word, count);
+		}
+	}
+
+	//Whether a comes after b in the report.
+	private static boolean after(String a, long countA, String b, long countB) {
+		return WordCounter.compare(a, countA, b, countB) > 0;
+	}
+
+	//Put the word in at the root and sift it down to its place.
+	private void siftDown(String word, long count) {
+		int i = 0;
+		int half = size >>> 1;
+		while(i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if(right < size && after(words[right], counts[right], words[child], counts[child]))
+				child = right;
+			if(!after(words[child], counts[child], word, count))
+				break;
+			words[i] = words[child];
+			counts[i] = counts[child];
+			i = child;
+		}
+		words[i] = word;
+		counts[i] = count;
+	}
+
+
+	/**
+	 * Empty the heap into the arrays in report order.
+	 * @param orderedWords
+	 * @param orderedCounts
+	 * @return The number of words.
+	 */
+	int drainTo(String[] orderedWords, long[] orderedCounts) {
+		int n = size;
+		//The root is always the last of what's left, so fill in from the end.
+		while(size > 0) {
+			orderedWords[size - 1] = words[0];
+			orderedCounts[size - 1] = counts[0];
+			size--;
+			String word = words[size];
+			long count = counts[size];
+			words[size] = null;
+			if(size > 0)
+				siftDown(word, count);
+		}
+		return n;
+	}
+
+	int size() {
+		return size;
+	}
+}
@@ -0,0 +1,125 @@
+package com.dfht;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The UTF-8 equivalent of the {@link WordCountTable}.
+ * It is looked up by a range of the raw (undecoded) bytes, and the key is kept as a copy of those bytes
+ * (in a {@link WordArena}). The words are only decoded when the counts are handed on.
+ * UTF-8 is a unique encoding (each string has exactly one valid encoding), so equal bytes means equal words.
+ * Not thread safe.
+ * @author Darren
+ *
+ */
+class Utf8WordCountTable {
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	private final WordArena words = new WordArena();
+	private int[] keys;
+	private int[] hashes;
+	private long[] counts;
+	private int size;
+	private int threshold;
+
+	Utf8WordCountTable() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		hashes = new int[capacity];
+		counts = new long[capacity];
+		threshold = capacity >>> 1;
+	}
+
+
+	/**
+	 * Add one to the count of the word encoded in bytes[start, end) (absolute positions).
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 */
+	void add(ByteBuffer bytes, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + bytes.get(i);
+		int mask = keys.length - 1;
+		int index = spread(hash) & mask;
+		int key;
+		while((key = keys[index]) != WordArena.NONE) {
+			if(hashes[index] == hash && words.matches(key, bytes, start, end)) {
+				counts[index]++;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = words.add(bytes, start, end);
+		hashes[index] = hash;
+		counts[index] = 1;
+		if(++size >= threshold)
+			resize();
+	}
+
+
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private void resize() {
+		RunStats.tableSize(size);
+		int[] oldKeys = keys;
+		int[] oldHashes = hashes;
+		long[] oldCounts = counts;
+		allocate(oldKeys.length << 1);
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] == WordArena.NONE)
+				continue;
+			int index = spread(oldHashes[i]) & mask;
+			while(keys[index] != WordArena.NONE)
+				index = (index + 1) & mask;
+			keys[index] = oldKeys[i];
+			hashes[index] = oldHashes[i];
+			counts[index] = oldCounts[i];
+		}
+	}
+
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Decode the (distinct) words and copy the counts into a {@link WordCountTable}.
+	 * Each word is decoded into the same char buffer, so there is still no String made for it.
+	 * @return
+	 */
+	WordCountTable toWordCountTable() {
+		WordCountTable table = new WordCountTable();
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.allocate(64);
+		for (int i = 0; i < keys.length; i++) {
+			if(keys[i] == WordArena.NONE)
+				continue;
+			ByteBuffer bytes = words.bytes(keys[i]);
+			//UTF-8 never decodes to more chars than it has bytes.
+			if(chars.capacity() < bytes.remaining())
+				chars = CharBuffer.allocate(bytes.remaining());
+			chars.clear();
+			decoder.reset();
+			decoder.decode(bytes, chars, true);
+			decoder.flush(chars);
+			chars.flip();
+			table.add(chars, 0, chars.length(), counts[i]);
+		}
+		return table;
+	}
+}
@@ -0,0 +1,197 @@
+package com.dfht;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Counting straight from UTF-8 bytes, without decoding to chars or Strings.
+ * Most input is UTF-8, so this is worth a path of its own. ASCII bytes are looked up as they are
+ * and only multi-byte sequences are decoded (to a code point, to look up in the {@link WordDefinition}).
+ * The words are the same as the {@link WordTokenizer} finds in the decoded text (including when it is segmenting).
+ * Invalid UTF-8 is reported with a {@link MalformedInputException}, the same as the JDK decoder
+ * (and so Files.lines) does.
+ * @author Darren
+ *
+ */
+public class Utf8WordCounter {
+
+	//How much of a stream is read at a time.
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+
+	private Utf8WordCounter() {
+	}
+
+
+	/**
+	 * Whether text in this charset can be counted here.
+	 * @param charset
+	 * @return
+	 */
+	public static boolean handles(Charset charset) {
+		return StandardCharsets.UTF_8.equals(charset);
+	}
+
+
+	/**
+	 * Count the words in the UTF-8 bytes between the buffer's position and limit.
+	 * @param bytes
+	 * @return The map of words to the number of occurrences.
+	 * @throws MalformedInputException - If the bytes aren't valid UTF-8.
+	 */
+	public static Map<String, Long> processedCounts(ByteBuffer bytes) throws MalformedInputException {
+		return processedTable(bytes).toMap();
+	}
+
+	/**
+	 * As {@link #processedCounts(ByteBuffer)}, but as a {@link WordCountTable}.
+	 * @param bytes
+	 * @return
+	 * @throws MalformedInputException
+	 */
+	public static WordCountTable processedTable(ByteBuffer bytes) throws MalformedInputException {
+		Utf8WordCountTable table = new Utf8WordCountTable();
+		count(bytes, table);
+		return table.toWordCountTable();
+	}
+
+	/**
+	 * As {@link #processedTable(ByteBuffer)}, for UTF-8 bytes read from a stream a block at a time.
+	 * Each block is counted up to its last '\n' (which can't be in a word) and the rest carried on into the next one.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordCountTable processedTable(InputStream in) throws IOException {
+		Utf8WordCountTable table = new Utf8WordCountTable();
+		byte[] block = new byte[BLOCK_SIZE];
+		int length = 0;
+		while(true) {
+			//A line longer than the block.
+			if(length == block.length)
+				block = Arrays.copyOf(block, block.length * 2);
+			int read = in.read(block, length, block.length - length);
+			if(read < 0)
+				break;
+			int lineEnd = length + read;
+			while(lineEnd > length && block[lineEnd - 1] != '\n')
+				lineEnd--;
+			length += read;
+			if(lineEnd > 0 && block[lineEnd - 1] == '\n') {
+				count(ByteBuffer.wrap(block, 0, lineEnd), table);
+				System.arraycopy(block, lineEnd, block, 0, length - lineEnd);
+				length -= lineEnd;
+			}
+		}
+		count(ByteBuffer.wrap(block, 0, length), table);
+		return table.toWordCountTable();
+	}
+
+
+	/**
+	 * Count the words in the UTF-8 bytes between the buffer's position and limit into the table.
+	 * A word is never continued past the limit, so the caller must make sure it doesn't split a word.
+	 * The bytes should be whole lines (except perhaps for the end of the input), for the count of lines.
+	 * @param bytes
+	 * @param table
+	 * @throws MalformedInputException
+	 */
+	static void count(ByteBuffer bytes, Utf8WordCountTable table) throws MalformedInputException {
+		int limit = bytes.limit();
+		WordDefinition words = WordTokenizer.getDefinition();
+		boolean segment = WordTokenizer.isSegmenting();
+		//The start of the current word, or -1 if I'm in a run of separators.
+		int start = -1;
+		//Whether the current word needs splitting up (only if segmenting).
+		boolean dictionary = false;
+		int i = bytes.position();
+		long lines = limit > i && bytes.get(limit - 1) != '\n' ? 1 : 0;
+		while(i < limit) {
+			int b = bytes.get(i);
+			int codePoint;
+			int width;
+			if(b >= 0) {
+				codePoint = b;
+				width = 1;
+				if(b == '\n')
+					lines++;
+			}
+			else {
+				width = sequenceLength(b & 0xFF);
+				codePoint = decode(bytes, i, width, limit);
+			}
+			if(words.isWordCharacter(codePoint)) {
+				if(start < 0)
+					start = i;
+				if(segment && WordSegmenter.needsDictionary(codePoint))
+					dictionary = true;
+			}
+			else if(start >= 0 && (dictionary && WordSegmenter.isMark(codePoint) 
+					|| words.isJoiner(codePoint) && words.isWordCharacter(codePointAt(bytes, i + width, limit)))) {
+				//Part of the word (e.g. a Thai vowel, or the apostrophe in "don't").
+			}
+			else if(start >= 0) {
+				add(bytes, start, i, dictionary, table);
+				start = -1;
+				dictionary = false;
+			}
+			i += width;
+		}
+		if(start >= 0)
+			add(bytes, start, limit, dictionary, table);
+		RunStats.lines(lines);
+	}
+
+
+	private static void add(ByteBuffer bytes, int start, int end, boolean dictionary, Utf8WordCountTable table) {
+		if(dictionary)
+			WordSegmenter.segment(bytes, start, end, table);
+		else
+			table.add(bytes, start, end);
+	}
+
+	//The code point at i (or -1 at the limit).
+	private static int codePointAt(ByteBuffer bytes, int i, int limit) throws MalformedInputException {
+		if(i >= limit)
+			return -1;
+		int b = bytes.get(i);
+		return b >= 0 ? b : decode(bytes, i, sequenceLength(b & 0xFF), limit);
+	}
+
+	//The number of bytes in the sequence started by this lead byte (which isn't ASCII).
+	//0xC0, 0xC1 and 0xF5 up can only start overlong or out of range sequences so they are always invalid.
+	private static int sequenceLength(int lead) throws MalformedInputException {
+		if(lead >= 0xC2 && lead <= 0xDF)
+			return 2;
+		if(lead >= 0xE0 && lead <= 0xEF)
+			return 3;
+		if(lead >= 0xF0 && lead <= 0xF4)
+			return 4;
+		throw new MalformedInputException(1);
+	}
+
+	//Decode and check the multi-byte sequence at i.
+	private static int decode(ByteBuffer bytes, int i, int width, int limit) throws MalformedInputException {
+		if(i + width > limit)
+			throw new MalformedInputException(limit - i);
+		int codePoint = bytes.get(i) & (0xFF >>> (width + 1));
+		for (int k = 1; k < width; k++) {
+			int b = bytes.get(i + k);
+			if((b & 0xC0) != 0x80)
+				throw new MalformedInputException(k);
+			codePoint = (codePoint << 6) | (b & 0x3F);
+		}
+		//No overlong encodings, no surrogates and nothing past the end of unicode.
+		int smallest = width == 2 ? 0x80 : width == 3 ? 0x800 : 0x10000;
+		if(codePoint < smallest || codePoint > Character.MAX_CODE_POINT
+				|| (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE))
+			throw new MalformedInputException(width);
+		return codePoint;
+	}
+}
@@ -0,0 +1,340 @@
+package com.dfht;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The words of a table packed one after another into large byte[] slabs, each referred to by its int offset.
+ * A String per word is an object header, a hash and a reference to a byte[] with a header and length of its own
+ * (50 or so bytes before the characters), and all those objects are something more for the GC to trace.
+ * Here a word is a varint header (its length, and whether it is wide) and then its characters: one byte each if
+ * they are all Latin-1, otherwise two (UTF-16), the same as a compact String. The encoding depends only on the
+ * characters, so two words are the same exactly when their bytes are.
+ * A word can also just be raw bytes (e.g. undecoded UTF-8), for a table that is looked up by bytes.
+ *
+ * Words are only made into Strings when something asks for them (e.g. the lines of the report actually written).
+ * Nothing is ever removed (a table that removes words copies the rest into a new arena now and again).
+ * Not thread safe (though once nothing more is being added it can be read from several threads at once).
+ * @author Darren
+ *
+ */
+class WordArena {
+
+	//Offset 0 is never a word, so it can mean 'no word'.
+	static final int NONE = 0;
+
+	private static final int SLAB_BITS = 20;
+	private static final int SLAB_SIZE = 1 << SLAB_BITS;
+	private static final int SLAB_MASK = SLAB_SIZE - 1;
+	//Longer words than this can't be counted (2 bytes a character has to fit in an int).
+	private static final int MAX_LENGTH = 1 << 29;
+	//The first slab starts small (and grows up to the slab size) so that a table of a few words stays small.
+	private static final int INITIAL_SIZE = 1 << 10;
+
+	private byte[][] slabs = new byte[4][];
+	//Where the next word goes.
+	private int next = 1;
+
+	WordArena() {
+		slabs[0] = new byte[INITIAL_SIZE];
+	}
+
+
+	/**
+	 * Add the word chars[start, end).
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * @return Its offset.
+	 */
+	int add(CharSequence chars, int start, int end) {
+		int length = checkLength(end - start);
+		boolean wide = false;
+		for (int i = start; i < end && !wide; i++)
+			wide = chars.charAt(i) > 0xFF;
+		int header = length << 1 | (wide ? 1 : 0);
+		int offset = reserve(headerSize(header) + (wide ? 2 * length : length));
+		byte[] slab = slabs[offset >>> SLAB_BITS];
+		int p = writeHeader(slab, offset & SLAB_MASK, header);
+		for (int i = start; i < end; i++) {
+			char c = chars.charAt(i);
+			if(wide)
+				slab[p++] = (byte) (c >>> 8);
+			slab[p++] = (byte) c;
+		}
+		return offset;
+	}
+
+	/**
+	 * Add the raw bytes bytes[start, end) (absolute positions).
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @return Its offset.
+	 */
+	int add(ByteBuffer bytes, int start, int end) {
+		int header = checkLength(end - start) << 1;
+		int offset = reserve(headerSize(header) + end - start);
+		byte[] slab = slabs[offset >>> SLAB_BITS];
+		int p = writeHeader(slab, offset & SLAB_MASK, header);
+		for (int i = start; i < end; i++)
+			slab[p++] = bytes.get(i);
+		return offset;
+	}
+
+	/**
+	 * Add a word from another arena (as it is, without decoding it).
+	 * @param from
+	 * @param word - Its offset in that arena.
+	 * @return Its offset here.
+	 */
+	int copy(WordArena from, int word) {
+		byte[] source = from.slabs[word >>> SLAB_BITS];
+		int p = word & SLAB_MASK;
+		int size = size(source, p);
+		int offset = reserve(size);
+		System.arraycopy(source, p, slabs[offset >>> SLAB_BITS], offset & SLAB_MASK, size);
+		return offset;
+	}
+
+	private int checkLength(int length) {
+		if(length > MAX_LENGTH)
+			throw new IllegalStateException(Messages.WordsFull(next));
+		return length;
+	}
+
+	//Make room for an entry, returning its offset.
+	//An entry never crosses slabs: one too big for the rest of a slab starts the next, and one bigger than a slab
+	//gets an array (and so a range of offsets) of its own.
+	private int reserve(int size) {
+		int index = next >>> SLAB_BITS;
+		int within = next & SLAB_MASK;
+		if(within > 0 && within + size > SLAB_SIZE) {
+			index++;
+			within = 0;
+		}
+		long end = size > SLAB_SIZE ? (long) (index + ((size + SLAB_MASK) >>> SLAB_BITS)) << SLAB_BITS
+				: ((long) index << SLAB_BITS) + within + size;
+		if(end > Integer.MAX_VALUE)
+			throw new IllegalStateException(Messages.WordsFull(next));
+		if(index >= slabs.length)
+			slabs = Arrays.copyOf(slabs, Math.max(index + 1, slabs.length * 2));
+		byte[] slab = slabs[index];
+		if(slab == null)
+			slabs[index] = new byte[Math.max(size, SLAB_SIZE)];
+		else if(slab.length < within + size)
+			slabs[index] = Arrays.copyOf(slab, Math.min(SLAB_SIZE, Math.max(within + size, slab.length * 2)));
+		next = (int) end;
+		return index << SLAB_BITS | within;
+	}
+
+
+	/**
+	 * Whether the word is chars[start, end).
+	 * @param word
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	boolean matches(int word, CharSequence chars, int start, int end) {
+		byte[] slab = slabs[word >>> SLAB_BITS];
+		int p = word & SLAB_MASK;
+		int header = header(slab, p);
+		int length = header >>> 1;
+		if(length != end - start)
+			return false;
+		p += headerSize(header);
+		boolean wide = (header & 1) != 0;
+		for (int i = 0; i < length; i++) {
+			if(charAt(slab, p, wide, i) != chars.charAt(start + i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the word is the raw bytes bytes[start, end) (absolute positions).
+	 * @param word
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	boolean matches(int word, ByteBuffer bytes, int start, int end) {
+		byte[] slab = slabs[word >>> SLAB_BITS];
+		int p = word & SLAB_MASK;
+		int header = header(slab, p);
+		if(header != (end - start) << 1)
+			return false;
+		p += headerSize(header);
+		for (int i = start; i < end; i++) {
+			if(slab[p++] != bytes.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the word is the same as one in another arena.
+	 * @param word
+	 * @param other
+	 * @param otherWord
+	 * @return
+	 */
+	boolean matches(int word, WordArena other, int otherWord) {
+		byte[] slab = slabs[word >>> SLAB_BITS];
+		int p = word & SLAB_MASK;
+		byte[] otherSlab = other.slabs[otherWord >>> SLAB_BITS];
+		int otherP = otherWord & SLAB_MASK;
+		int size = size(slab, p);
+		if(size != size(otherSlab, otherP))
+			return false;
+		for (int i = 0; i < size; i++) {
+			if(slab[p + i] != otherSlab[otherP + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compare two words in the order of String.compareTo, without making them into Strings.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	int compare(int a, int b) {
+		byte[] slabA = slabs[a >>> SLAB_BITS];
+		int pA = a & SLAB_MASK;
+		int headerA = header(slabA, pA);
+		pA += headerSize(headerA);
+		byte[] slabB = slabs[b >>> SLAB_BITS];
+		int pB = b & SLAB_MASK;
+		int headerB = header(slabB, pB);
+		pB += headerSize(headerB);
+		int lengthA = headerA >>> 1;
+		int lengthB = headerB >>> 1;
+		boolean wideA = (headerA & 1) != 0;
+		boolean wideB = (headerB & 1) != 0;
+		int length = Math.min(lengthA, lengthB);
+		for (int i = 0; i < length; i++) {
+			char cA = charAt(slabA, pA, wideA, i);
+			char cB = charAt(slabB, pB, wideB, i);
+			if(cA != cB)
+				return cA - cB;
+		}
+		return lengthA - lengthB;
+	}
+
+	/**
+	 * The first four characters of the word (for a word added from chars), 16 bits each from the top down and 0 after
+	 * its end. Two words compare the same way as their prefixes do (as unsigned longs), unless their prefixes are equal.
+	 * @param word
+	 * @return
+	 */
+	long prefix(int word) {
+		byte[] slab = slabs[word >>> SLAB_BITS];
+		int p = word & SLAB_MASK;
+		int header = header(slab, p);
+		p += headerSize(header);
+		int length = Math.min(header >>> 1, 4);
+		boolean wide = (header & 1) != 0;
+		long prefix = 0;
+		for (int i = 0; i < length; i++)
+			prefix |= (long) charAt(slab, p, wide, i) << (48 - 16 * i);
+		return prefix;
+	}
+
+	/**
+	 * The word as a String (for a word added from chars).
+	 * @param word
+	 * @return
+	 */
+	String word(int word) {
+		byte[] slab = slabs[word >>> SLAB_BITS];
+		int p = word & SLAB_MASK;
+		int header = header(slab, p);
+		p += headerSize(header);
+		int length = header >>> 1;
+		if((header & 1) == 0)
+			return new String(slab, p, length, StandardCharsets.ISO_8859_1);
+		//Not decoded as UTF-16, which would replace an unpaired surrogate (that a String can still have).
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = charAt(slab, p, true, i);
+		return new String(chars);
+	}
+
+	/**
+	 * The bytes of the word (for a word added from bytes), as a buffer from its position to its limit.
+	 * @param word
+	 * @return
+	 */
+	ByteBuffer bytes(int word) {
+		byte[] slab = slabs[word >>> SLAB_BITS];
+		int p = word & SLAB_MASK;
+		int header = header(slab, p);
+		return ByteBuffer.wrap(slab, p + headerSize(header), header >>> 1);
+	}
+
+	/**
+	 * The number of bytes the word takes up.
+	 * @param word
+	 * @return
+	 */
+	int size(int word) {
+		return size(slabs[word >>> SLAB_BITS], word & SLAB_MASK);
+	}
+
+	/**
+	 * The number of bytes used so far (including what is lost at the ends of the slabs).
+	 * @return
+	 */
+	int used() {
+		return next;
+	}
+
+
+	private static char charAt(byte[] slab, int p, boolean wide, int i) {
+		if(!wide)
+			return (char) (slab[p + i] & 0xFF);
+		return (char) ((slab[p + 2 * i] & 0xFF) << 8 | (slab[p + 2 * i + 1] & 0xFF));
+	}
+
+	private static int size(byte[] slab, int p) {
+		int header = header(slab, p);
+		int length = header >>> 1;
+		return headerSize(header) + ((header & 1) == 0 ? length : 2 * length);
+	}
+
+	private static int header(byte[] slab, int p) {
+		int b = slab[p];
+		if(b >= 0)
+			return b;
+		int value = b & 0x7F;
+		int shift = 7;
+		do {
+			b = slab[++p];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while(b < 0);
+		return value;
+	}
+
+	private static int headerSize(int header) {
+		int size = 1;
+		while((header >>>= 7) != 0)
+			size++;
+		return size;
+	}
+
+	private static int writeHeader(byte[] slab, int p, int header) {
+		while((header & ~0x7F) != 0) {
+			slab[p++] = (byte) ((header & 0x7F) | 0x80);
+			header >>>= 7;
+		}
+		slab[p++] = (byte) header;
+		return p;
+	}
+}
@@ -0,0 +1,403 @@
+package com.dfht;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counts words for HTTP requests, so one warm JVM can serve many small counts (each of which would otherwise
+ * pay for starting a JVM, and for running the counting cold, which takes longer than counting a small document).
+ *
+ * A request to {@link #PATH} counts the document in its body, or with file=path (which can be given more than once, and
+ * can be a directory or pattern, as for -file) those files instead. The other parameters are encoding=charset
+ * (the files' charset is guessed if it isn't given, and a body is taken to be UTF-8), top=count and format=text|json.
+ * The response is the report, as the lines it would be on stdout or as JSON: the number of words, the number of
+ * distinct words and the counts in the same order.
+ *
+ * Each request runs on a thread of its own: a virtual thread on a JVM that has them (Java 21 on), otherwise
+ * a pooled one. At most a given number of requests are counted at once, and a request waits for its turn at most
+ * as long as it is allowed to take altogether. One that doesn't get a turn in time is refused (503), and one that
+ * takes too long gets an error (504) straight away and gives up its turn. Its counting stops too, the next time it
+ * checks the time, which is before each block it reads (of a file or of the body). So the files are counted a block
+ * at a time on the request's thread (rather than mapped and split as on the command line).
+ * The server only listens on the loopback address, as it reads whatever files it is asked to.
+ * @author Darren
+ *
+ */
+public class WordCountServer implements Closeable {
+
+	public static final String PATH = "/count";
+
+	private static final String FILE_PARAMETER = "file";
+	private static final String ENCODING_PARAMETER = "encoding";
+	private static final String TOP_PARAMETER = "top";
+	private static final String FORMAT_PARAMETER = "format";
+	private static final String TEXT_FORMAT = "text";
+	private static final String JSON_FORMAT = "json";
+
+	private static final int OK = 200;
+	private static final int BAD_REQUEST = 400;
+	private static final int SERVER_ERROR = 500;
+	private static final int BUSY = 503;
+	private static final int TIMED_OUT = 504;
+	//Seconds for the requests already being answered to finish when the server is closed.
+	private static final int STOP_DELAY = 1;
+
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	//A permit for each request that can be counted at once.
+	private final Semaphore permits;
+	private final long timeoutNanos;
+
+
+	private WordCountServer(HttpServer server, ExecutorService executor, int concurrency, int timeoutSeconds) {
+		this.server = server;
+		this.executor = executor;
+		this.permits = new Semaphore(concurrency, true);
+		this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+	}
+
+
+	/**
+	 * Start serving requests.
+	 * @param port - The port to listen on (0 for any free one, see {@link #port()}).
+	 * @param concurrency - How many requests can be counted at once.
+	 * @param timeoutSeconds - How long a request can take (including waiting for its turn).
+	 * @return The server, which must be closed.
+	 * @throws IOException
+	 */
+	public static WordCountServer start(int port, int concurrency, int timeoutSeconds) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		ExecutorService executor = newExecutor();
+		WordCountServer wordCountServer = new WordCountServer(server, executor, concurrency, timeoutSeconds);
+		server.createContext(PATH, wordCountServer::handle);
+		server.setExecutor(executor);
+		server.start();
+		return wordCountServer;
+	}
+
+	//A virtual thread per task if the JVM has them (asked for by name, as the jar is built for Java 8).
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException ex) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "WordCounter request");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+
+	/**
+	 * The port it is listening on.
+	 * @return
+	 */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+
+	private void handle(HttpExchange exchange) throws IOException {
+		Deadline deadline = new Deadline(timeoutNanos);
+		Request request = null;
+		try {
+			request = new Request(exchange.getRequestURI().getRawQuery());
+			if(!permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+				discard(exchange.getRequestBody());
+				respond(exchange, BUSY, request, request.error(Messages.ServerBusy()));
+				return;
+			}
+			//Given up once, when the counting stops or the request is abandoned (whichever is first).
+			AtomicBoolean held = new AtomicBoolean(true);
+			Runnable release = () -> {
+				if(held.compareAndSet(true, false))
+					permits.release();
+			};
+			Future<byte[]> report;
+			try {
+				Request counted = request;
+				report = executor.submit(() -> {
+					try {
+						return counted.report(exchange.getRequestBody(), deadline);
+					}
+					finally {
+						release.run();
+					}
+				});
+			}
+			catch(RejectedExecutionException ex) {
+				release.run();
+				throw ex;
+			}
+			try {
+				respond(exchange, OK, request, report.get(deadline.remaining(), TimeUnit.NANOSECONDS));
+			}
+			catch(TimeoutException ex) {
+				//Not interrupted, as that would close the connection (if it is still reading the body) before the response.
+				//The counting stops when it next reads a block (which is a short wait for the last one to be counted).
+				report.cancel(false);
+				release.run();
+				respond(exchange, TIMED_OUT, request, request.error(deadline.message()));
+			}
+		}
+		catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			String message = cause.getLocalizedMessage();
+			message = message == null ? cause.getClass().getSimpleName() : message;
+			boolean bad = cause instanceof InputException || cause instanceof IllegalArgumentException
+					|| cause instanceof CharacterCodingException;
+			respond(exchange, bad ? BAD_REQUEST : SERVER_ERROR, request, request.error(message));
+		}
+		catch(InputException | IllegalArgumentException ex) {
+			discard(exchange.getRequestBody());
+			Request defaults = new Request();
+			respond(exchange, BAD_REQUEST, defaults, defaults.error(ex.getLocalizedMessage()));
+		}
+		catch(InterruptedException | RejectedExecutionException ex) {
+			//Closed.
+			Request closed = request == null ? new Request() : request;
+			respond(exchange, BUSY, closed, closed.error(Messages.ServerBusy()));
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	//Read the rest of a body that isn't wanted, as closing the connection with some of it unread can reset it
+	//before the client has read the response.
+	private static void discard(InputStream body) throws IOException {
+		byte[] buffer = new byte[8192];
+		while(body.read(buffer) >= 0);
+	}
+
+	private static void respond(HttpExchange exchange, int status, Request request, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", request.json ? "application/json; charset=UTF-8" 
+				: "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(body);
+		}
+	}
+
+
+	/**
+	 * Stop serving, giving the requests already being answered a moment to finish.
+	 */
+	@Override
+	public void close() {
+		server.stop(STOP_DELAY);
+		executor.shutdownNow();
+	}
+
+
+
+	/**
+	 * When a request has to be answered by.
+	 */
+	private static class Deadline {
+		private final long nanos;
+		private final long end;
+
+		Deadline(long nanos) {
+			this.nanos = nanos;
+			this.end = System.nanoTime() + nanos;
+		}
+
+		long remaining() {
+			return end - System.nanoTime();
+		}
+
+		String message() {
+			return Messages.RequestTimedOut(TimeUnit.NANOSECONDS.toSeconds(nanos));
+		}
+
+		//Stop counting a request that has already been answered (with a 504).
+		void check() throws InterruptedIOException {
+			if(remaining() <= 0)
+				throw new InterruptedIOException(message());
+		}
+	}
+
+	/**
+	 * A body that stops being read once its request is out of time.
+	 */
+	private static class TimedInputStream extends FilterInputStream {
+		private final Deadline deadline;
+
+		TimedInputStream(InputStream in, Deadline deadline) {
+			super(in);
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int read() throws IOException {
+			deadline.check();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			deadline.check();
+			return super.read(bytes, offset, length);
+		}
+	}
+
+
+	/**
+	 * The parameters of a request.
+	 */
+	private static class Request {
+		private final List<String> files = new ArrayList<>();
+		private Charset charset;
+		private int top;
+		private boolean json;
+
+		//The defaults (for a request whose parameters couldn't be parsed).
+		Request() {
+		}
+
+		Request(String query) throws InputException {
+			if(query == null || query.isEmpty())
+				return;
+			for (String parameter : query.split("&")) {
+				int equals = parameter.indexOf('=');
+				String name = decode(equals < 0 ? parameter : parameter.substring(0, equals));
+				String value = equals < 0 ? "" : decode(parameter.substring(equals + 1));
+				switch(name) {
+				case FILE_PARAMETER:
+					files.add(value);
+					break;
+				case ENCODING_PARAMETER:
+					charset = CharsetHelper.checkCharset(value);
+					break;
+				case TOP_PARAMETER:
+					top = Arguments.checkTop(value);
+					break;
+				case FORMAT_PARAMETER:
+					if(!value.equals(TEXT_FORMAT) && !value.equals(JSON_FORMAT))
+						throw new InputException(Messages.InvalidFormat(value));
+					json = value.equals(JSON_FORMAT);
+					break;
+				}
+			}
+		}
+
+		private static String decode(String text) {
+			try {
+				return URLDecoder.decode(text, "UTF-8");
+			}
+			catch(UnsupportedEncodingException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+
+		//Count the files (or the body if there aren't any), and format the report.
+		//Stopping (with an InterruptedIOException) if it runs out of time.
+		byte[] report(InputStream body, Deadline deadline) throws IOException, InputException {
+			WordCountTable counts;
+			if(!files.isEmpty()) {
+				counts = new WordCountTable();
+				for (Path path : InputFiles.expand(files)) {
+					try(SampledFile input = SampledFile.open(path, charset)){
+						counts = WordCountTable.merge(counts, count(new TimedInputStream(input.content(), deadline), input.charset()));
+					}
+				}
+			}
+			else {
+				counts = count(new TimedInputStream(body, deadline), charset == null ? StandardCharsets.UTF_8 : charset);
+			}
+			OrderedCounts ordered = top > 0 ? OrderedCounts.top(counts, top) : OrderedCounts.of(counts);
+			if(json)
+				return json(counts, ordered);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ReportWriter writer = new ReportWriter(Channels.newChannel(out), StandardCharsets.UTF_8);
+			ordered.writeTo(writer);
+			writer.close();
+			return out.toByteArray();
+		}
+
+		//A block at a time (UTF-8 straight from the bytes), as it is read.
+		private static WordCountTable count(InputStream in, Charset charset) throws IOException {
+			if(Utf8WordCounter.handles(charset))
+				return Utf8WordCounter.processedTable(in);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset.newDecoder()));
+			try {
+				return WordCounter.processedTable(reader.lines());
+			}
+			catch(UncheckedIOException ex) {
+				//The lines stream wraps the problems it finds while reading (including running out of time).
+				throw ex.getCause();
+			}
+		}
+
+		private static byte[] json(WordCountTable counts, OrderedCounts ordered) {
+			StringBuilder json = new StringBuilder("{\"words\":").append(counts.total());
+			json.append(",\"distinctWords\":").append(counts.size()).append(",\"counts\":[");
+			for (int i = 0; i < ordered.size(); i++) {
+				if(i > 0)
+					json.append(',');
+				json.append("{\"word\":");
+				quote(json, ordered.word(i));
+				json.append(",\"count\":").append(ordered.count(i)).append('}');
+			}
+			return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		byte[] error(String message) {
+			if(!json)
+				return Messages.ProblemEncountered(message).getBytes(StandardCharsets.UTF_8);
+			StringBuilder error = new StringBuilder("{\"error\":");
+			quote(error, message);
+			return error.append('}').toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		private static void quote(StringBuilder json, String text) {
+			json.append('"');
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if(c == '"' || c == '\\')
+					json.append('\\').append(c);
+				else if(c < 0x20)
+					json.append(String.format("\\u%04x", (int) c));
+				else
+					json.append(c);
+			}
+			json.append('"');
+		}
+	}
+}
@@ -0,0 +1,430 @@
+package com.dfht;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A table of words to the number of times they occurred.
+ * This is what the counting produces instead of a Map&lt;String, Long&gt;. A HashMap needs a Node and a boxed Long
+ * for every distinct word (and re-boxes the Long on every increment), which matters when there are tens of
+ * millions of distinct words. Here there are just three parallel arrays: the keys, their hashes and primitive counts.
+ * The keys aren't Strings either, but offsets of the words packed into a {@link WordArena}, so a word costs its
+ * characters and a few bytes rather than a String's worth of objects. Words are only made into Strings when they
+ * are asked for (e.g. by {@link OrderedCounts}, for the lines of the report that are written).
+ *
+ * It is open addressing with linear probing. It is looked up by a range of characters, so a word is only
+ * copied the first time it is seen (after that it is just a hash, a probe and a character comparison).
+ * The stored hashes mean most mismatches are found without looking at the characters, and that
+ * resizing and merging don't need to rehash.
+ *
+ * Tables can be merged, e.g. one per thread and then added together at the end.
+ * They can also be subtracted (which removes the words that get to 0), e.g. for a sliding window of counts.
+ * Not thread safe.
+ * @author Darren
+ *
+ */
+public class WordCountTable implements WordTokenizer.WordSink {
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	//The most slots an array can have (the largest power of two below the array size limit).
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+	//Removed words are left in the arena, until there is this much of them (and they are half of it).
+	private static final int MIN_COMPACT_BYTES = 1 << 20;
+
+	private WordArena words = new WordArena();
+	//Offsets in the arena (WordArena.NONE for an empty slot).
+	private int[] keys;
+	private int[] hashes;
+	private long[] counts;
+	private int size;
+	//Resize when size reaches this (a load factor of 1/2 keeps the probe sequences short).
+	private int threshold;
+	//Bytes of the arena taken up by removed words.
+	private int removedBytes;
+
+	public WordCountTable() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		hashes = new int[capacity];
+		counts = new long[capacity];
+		threshold = capacity >>> 1;
+	}
+
+
+	@Override
+	public void word(CharSequence chars, int start, int end) {
+		add(chars, start, end, 1);
+	}
+
+	/**
+	 * Add to the count of a word.
+	 * @param word
+	 * @param count
+	 */
+	public void add(String word, long count) {
+		add(word, 0, word.length(), count);
+	}
+
+	/**
+	 * Add to the count of the word chars[start, end).
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * @param count
+	 */
+	public void add(CharSequence chars, int start, int end, long count) {
+		int hash = hash(chars, start, end);
+		int index = find(hash, chars, start, end);
+		if(keys[index] != WordArena.NONE) {
+			counts[index] += count;
+			return;
+		}
+		insert(index, words.add(chars, start, end), hash, count);
+	}
+
+	/**
+	 * Count the word chars[start, end) once, returning its offset in the arena ({@link #words()}).
+	 * A word keeps the same offset for as long as nothing is subtracted, so it can stand for the word (e.g. in an n-gram).
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	int offset(CharSequence chars, int start, int end) {
+		int hash = hash(chars, start, end);
+		int index = find(hash, chars, start, end);
+		int key = keys[index];
+		if(key != WordArena.NONE) {
+			counts[index]++;
+			return key;
+		}
+		key = words.add(chars, start, end);
+		insert(index, key, hash, 1);
+		return key;
+	}
+
+	/**
+	 * The number of times the word occurred (0 if it isn't in the table).
+	 * @param word
+	 * @return
+	 */
+	public long get(String word) {
+		int index = find(hash(word, 0, word.length()), word, 0, word.length());
+		return keys[index] == WordArena.NONE ? 0 : counts[index];
+	}
+
+	/**
+	 * Add all the counts from the other table into this one.
+	 * @param other
+	 */
+	public void merge(WordCountTable other) {
+		int[] otherKeys = other.keys;
+		for (int i = 0; i < otherKeys.length; i++) {
+			int key = otherKeys[i];
+			if(key == WordArena.NONE)
+				continue;
+			//I already have the hash, so no need to recompute it (and the word is copied as it is).
+			int hash = other.hashes[i];
+			int index = find(hash, other.words, key);
+			if(keys[index] != WordArena.NONE)
+				counts[index] += other.counts[i];
+			else
+				insert(index, words.copy(other.words, key), hash, other.counts[i]);
+		}
+	}
+
+	/**
+	 * Take the counts in the other table away from this one.
+	 * Words whose count gets to 0 (or below) are removed.
+	 * @param other
+	 */
+	public void subtract(WordCountTable other) {
+		int[] otherKeys = other.keys;
+		for (int i = 0; i < otherKeys.length; i++) {
+			int key = otherKeys[i];
+			if(key == WordArena.NONE)
+				continue;
+			int index = find(other.hashes[i], other.words, key);
+			if(keys[index] != WordArena.NONE && (counts[index] -= other.counts[i]) <= 0)
+				remove(index);
+		}
+		if(removedBytes >= MIN_COMPACT_BYTES && removedBytes > words.used() / 2)
+			compact();
+	}
+
+	/**
+	 * Merge the smaller of the tables into the larger one.
+	 * @param a
+	 * @param b
+	 * @return The larger table, with the counts of both.
+	 */
+	public static WordCountTable merge(WordCountTable a, WordCountTable b) {
+		WordCountTable into = a.size >= b.size ? a : b;
+		into.merge(into == a ? b : a);
+		return into;
+	}
+
+
+	//The same hash as String.hashCode, so the hash of a new key is already there when it's made.
+	private static int hash(CharSequence chars, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + chars.charAt(i);
+		return hash;
+	}
+
+	//The slot with this key, or the empty slot where it would go.
+	private int find(int hash, CharSequence chars, int start, int end) {
+		int mask = keys.length - 1;
+		int index = spread(hash) & mask;
+		int key;
+		while((key = keys[index]) != WordArena.NONE) {
+			if(hashes[index] == hash && words.matches(key, chars, start, end))
+				return index;
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	//As above, for a word in another table's arena.
+	private int find(int hash, WordArena other, int otherKey) {
+		int mask = keys.length - 1;
+		int index = spread(hash) & mask;
+		int key;
+		while((key = keys[index]) != WordArena.NONE) {
+			if(hashes[index] == hash && words.matches(key, other, otherKey))
+				return index;
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private void insert(int index, int key, int hash, long count) {
+		keys[index] = key;
+		hashes[index] = hash;
+		counts[index] = count;
+		if(++size >= threshold)
+			resize();
+	}
+
+
+	//Empty the slot, moving back any later keys in the probe sequence that would then not be found
+	//(so there is no need for 'deleted' markers).
+	private void remove(int index) {
+		removedBytes += words.size(keys[index]);
+		int mask = keys.length - 1;
+		int next = index;
+		while(keys[next = (next + 1) & mask] != WordArena.NONE) {
+			//The key can fill the gap unless its probe sequence starts after the gap (and so doesn't go through it).
+			int home = spread(hashes[next]) & mask;
+			if(((next - home) & mask) >= ((next - index) & mask)) {
+				keys[index] = keys[next];
+				hashes[index] = hashes[next];
+				counts[index] = counts[next];
+				index = next;
+			}
+		}
+		keys[index] = WordArena.NONE;
+		counts[index] = 0;
+		size--;
+	}
+
+	//Copy the words still in the table into a new arena, leaving the removed ones behind.
+	private void compact() {
+		WordArena compacted = new WordArena();
+		for (int i = 0; i < keys.length; i++) {
+			if(keys[i] != WordArena.NONE)
+				keys[i] = compacted.copy(words, keys[i]);
+		}
+		words = compacted;
+		removedBytes = 0;
+	}
+
+	//Mix the high bits in, as the low bits of String hashes of short words aren't great.
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private void resize() {
+		RunStats.tableSize(size);
+		if(keys.length == MAXIMUM_CAPACITY) {
+			//Carry on filling up rather than failing (it only gets slow when it is nearly full).
+			if(size < MAXIMUM_CAPACITY - 1) {
+				threshold = MAXIMUM_CAPACITY - 1;
+				return;
+			}
+			throw new IllegalStateException(Messages.TableFull(size));
+		}
+		int[] oldKeys = keys;
+		int[] oldHashes = hashes;
+		long[] oldCounts = counts;
+		allocate(oldKeys.length << 1);
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] == WordArena.NONE)
+				continue;
+			int index = spread(oldHashes[i]) & mask;
+			while(keys[index] != WordArena.NONE)
+				index = (index + 1) & mask;
+			keys[index] = oldKeys[i];
+			hashes[index] = oldHashes[i];
+			counts[index] = oldCounts[i];
+		}
+	}
+
+
+	/**
+	 * The number of distinct words.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The number of words counted (the total of the counts).
+	 * @return
+	 */
+	public long total() {
+		long total = 0;
+		for (int i = 0; i < keys.length; i++)
+			total += counts[i];
+		return total;
+	}
+
+	/**
+	 * Pass each word and its count to the action (in no particular order).
+	 * Each word is made into a String for it.
+	 * @param action
+	 */
+	public void forEach(ObjLongConsumer<String> action) {
+		forEach(Long.MIN_VALUE, action);
+	}
+
+	/**
+	 * As {@link #forEach(ObjLongConsumer)}, but just the words with at least the given count
+	 * (the others aren't made into Strings).
+	 * @param minCount
+	 * @param action
+	 */
+	void forEach(long minCount, ObjLongConsumer<String> action) {
+		for (int i = 0; i < keys.length; i++) {
+			if(keys[i] != WordArena.NONE && counts[i] >= minCount)
+				action.accept(words.word(keys[i]), counts[i]);
+		}
+	}
+
+	/**
+	 * The kth highest count (so every word in the top k has at least this count), or Long.MIN_VALUE if there
+	 * aren't more than k words.
+	 * It is a bounded min heap of just the counts.
+	 * @param k
+	 * @return
+	 */
+	long highestCount(int k) {
+		return highestCount(keys, 1, counts, size, k);
+	}
+
+	/**
+	 * As {@link #highestCount(int)}, for any table whose slots have their counts in counts and their keys
+	 * (stride ints each) in keys, where a slot whose first key is WordArena.NONE is empty.
+	 * @param keys
+	 * @param stride
+	 * @param counts
+	 * @param size - The number of slots in use.
+	 * @param k
+	 * @return
+	 */
+	static long highestCount(int[] keys, int stride, long[] counts, int size, int k) {
+		if(size <= k)
+			return Long.MIN_VALUE;
+		if(k <= 0)
+			return Long.MAX_VALUE;
+		long[] heap = new long[k];
+		int n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if(keys[i * stride] == WordArena.NONE)
+				continue;
+			long count = counts[i];
+			if(n < k) {
+				int j = n++;
+				while(j > 0 && heap[(j - 1) >>> 1] > count) {
+					heap[j] = heap[(j - 1) >>> 1];
+					j = (j - 1) >>> 1;
+				}
+				heap[j] = count;
+			}
+			else if(count > heap[0]) {
+				int j = 0;
+				while(true) {
+					int child = 2 * j + 1;
+					if(child >= k)
+						break;
+					if(child + 1 < k && heap[child + 1] < heap[child])
+						child++;
+					if(heap[child] >= count)
+						break;
+					heap[j] = heap[child];
+					j = child;
+				}
+				heap[j] = count;
+			}
+		}
+		return heap[0];
+	}
+
+	/**
+	 * Copy the words and counts into the (dense) arrays, which must have room for {@link #size()} entries.
+	 * @param words
+	 * @param occurrences
+	 */
+	void copyTo(String[] words, long[] occurrences) {
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if(keys[i] != WordArena.NONE) {
+				words[n] = this.words.word(keys[i]);
+				occurrences[n++] = counts[i];
+			}
+		}
+	}
+
+	/**
+	 * As {@link #copyTo(String[], long[])}, but the words are left in the arena ({@link #words()})
+	 * and just their offsets copied.
+	 * @param words
+	 * @param occurrences
+	 */
+	void copyTo(int[] words, long[] occurrences) {
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if(keys[i] != WordArena.NONE) {
+				words[n] = keys[i];
+				occurrences[n++] = counts[i];
+			}
+		}
+	}
+
+	/**
+	 * The arena with the words (which subtracting can replace with a compacted one, so it goes with the offsets
+	 * copied at the same time).
+	 * @return
+	 */
+	WordArena words() {
+		return words;
+	}
+
+	/**
+	 * Copy the counts into a map of words to the number of occurrences.
+	 * @return
+	 */
+	public Map<String, Long> toMap() {
+		Map<String, Long> map = new HashMap<>(size * 2);
+		forEach(map::put);
+		return map;
+	}
+}
@@ -1,15 +1,13 @@
 package com.dfht;
 
-import static java.util.stream.Collectors.counting;
-import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.Function;
 import java.util.stream.Stream;
 /**
  * The big question/ambiguity is 'What is a word?'.
@@ -44,21 +42,23 @@ public class WordCounter {
 	//categories etc.
 	//I could use this for a 'letter' \p{L}\p{M}*+ but I don't think I need this as I deal in strings 
 	//only and Java regex normalises (so I don't ever have the double character representation for 'diacritics' etc.).
-	private static String WORD_SEPARATORS_REGEX = "\\P{L}+"; //(same as [^\\p{L}]+);
-			//"\\W+";
+	//So the separators are \P{L}+ (same as [^\p{L}]+). This used to be done with line.split("\\P{L}+"), but 
+	//the regex and the substrings it makes were the most expensive part of the whole thing, so 
+	//the WordTokenizer now does the same with a hand written scan of the code points.
 		
 	
 	
 	
-	private static int orderEntries(Entry<String, Long> a, Entry<String, Long> b) {
+	//The report order (of words and their counts, so it doesn't need entries or boxed counts).
+	static int compare(String a, long countA, String b, long countB) {
 		//I can now use Java 8 streams to sort it by value as well.......
 		//However, to guarantee identical results (identical reports) regardless of the order of words in the file I 
 		//need a deterministic rule to sort out which comes first when two strings occur an equal number of times.
-		int anInt = b.getValue().compareTo(a.getValue());
+		int anInt = Long.compare(countB, countA);
 		if(anInt == 0) {
 			//For a deterministic ordering, deal with tie-breaks by making the
 			//'first' string in lexicographical order appear first (the default ordering of strings).
-			anInt = a.getKey().compareTo(b.getKey());
+			anInt = a.compareTo(b);
 		};
 		return anInt;
 	}
@@ -92,7 +92,49 @@ public class WordCounter {
 	 * @param lines - A stream with of lines (usually derived from a file).
 	 */
 	public static void wordCountReportToSystemOut(Stream<String> lines)  {
-		processedLines(lines).forEach(System.out::println);
+		wordCountReportToSystemOut(processedTable(lines));
+	}
+	
+	/**
+	 * Output the report for counts that have already been gathered (e.g. by the {@link ChunkedWordCounter}) 
+	 * to System.out.
+	 * @param counts - The table of words to the number of occurrences.
+	 */
+	public static void wordCountReportToSystemOut(WordCountTable counts)  {
+		toSystemOut(OrderedCounts.of(counts));
+	}
+	
+	/**
+	 * Output just the first top lines of the report to System.out.
+	 * @param counts - The table of words to the number of occurrences.
+	 * @param top - The number of lines wanted.
+	 */
+	public static void wordCountReportToSystemOut(WordCountTable counts, int top)  {
+		toSystemOut(OrderedCounts.top(counts, top));
+	}
+	
+	//This used to println each line, but that is a String.format, a lock and a flush per line. 
+	//The ReportWriter buffers the lot and writes it in large blocks.
+	private static void toSystemOut(OrderedCounts ordered) {
+		toSystemOut(ordered, ReportFormat.TEXT);
+	}
+	
+	//In the format given.
+	//Package private so other reports (e.g. of n-grams) are written the same way.
+	static void toSystemOut(OrderedCounts ordered, ReportFormat format) {
+		RunStats.Timer timer = RunStats.time(RunStats.Phase.WRITE);
+		try {
+			ReportWriter writer = new ReportWriter(System.out, format);
+			ordered.writeTo(writer);
+			writer.close();
+		}
+		catch(IOException ex) {
+			//System.out never actually throws (a PrintStream just sets its error flag).
+			throw new UncheckedIOException(ex);
+		}
+		finally {
+			timer.close();
+		}
 	}
 	
 	
@@ -107,9 +149,9 @@ public class WordCounter {
 	private static Stream<String> processedLines(Stream<String> lines) {
 		
 		//First I count the words. 
-		//I do this in processCounts to produce a map of words to the number of occurrences.
+		//I do this in processedTable to produce a table of words to the number of occurrences.
 		//Then I process this into an ordered report stream in orderedlinesToPrint. 
-		Map<String, Long> counts = processedCounts(lines);
+		WordCountTable counts = processedTable(lines);
 		return orderedLinesToPrint(counts);
 		
 		/* 
@@ -118,10 +160,10 @@ public class WordCounter {
 		 *
 		 * With the beauty of Java 8 streams, collectors and lambda expressions this could all be done in a single line,
 		 * which I think is very nice. Here's how the single line would look.
-		return lines.map(line -> line.split(WORD_SEPARATORS_REGEX))
+		return lines.map(line -> line.split("\\P{L}+"))
 			 .flatMap(Arrays::stream)
 			 .collect(groupingBy(Function.identity(), counting()))
-			 .entrySet().stream().sorted((a, b) -> orderEntries(a, b))
+			 .entrySet().stream().sorted((a, b) -> compare(a.getKey(), a.getValue(), b.getKey(), b.getValue()))
 			 .map(entry -> Messages.FormatWordCount(entry));
 		*/
 	}
@@ -135,13 +177,56 @@ public class WordCounter {
 	 * @return
 	 */
 	public static Stream<String> orderedLinesToPrint(Map<String, Long> counts){
-		//Stream the maps entrySet and sort it by number of occurrences, using strings lexicographical ordering 
+		//Sort it by number of occurrences, using strings lexicographical ordering 
 		//to deterministically order 'words' with the same number of occurrences (for consistent output between runs etc.).
-		//Finally I map the sorted entries to output strings. I use a Java resource bundle for 
+		//Finally I map the sorted words to output strings. I use a Java resource bundle for 
 		//this so that the final format can be internationalised AND easily changed.
 		//I output a stream of the lines of the report in the correct order.
-		return counts.entrySet().stream().sorted((a, b) -> orderEntries(a, b))
-		 .map(entry -> Messages.FormatWordCount(entry));	
+		//This used to sort the entrySet with a comparator, unboxing two Longs for every comparison. Now the words and 
+		//counts are copied out once and put into buckets by count (see OrderedCounts), so only words with the same 
+		//count are ever compared.
+		String[] words = new String[counts.size()];
+		long[] occurrences = new long[counts.size()];
+		int i = 0;
+		for (Entry<String, Long> entry : counts.entrySet()) {
+			words[i] = entry.getKey();
+			occurrences[i++] = entry.getValue();
+		}
+		return OrderedCounts.of(words, occurrences).lines();
+	}
+	
+	
+	/**
+	 * As {@link #orderedLinesToPrint(Map)}, but straight from a {@link WordCountTable}.
+	 * The words and counts are copied into two dense arrays and an array of indices is sorted, 
+	 * so there are no entries or boxed counts.
+	 * @param counts
+	 * @return
+	 */
+	public static Stream<String> orderedLinesToPrint(WordCountTable counts){
+		return OrderedCounts.of(counts).lines();
+	}
+	
+	
+	/**
+	 * The same as the first k lines of {@link #orderedLinesToPrint(WordCountTable)}, without sorting everything.
+	 * The words go through a bounded heap of size k (O(n log k)) and only those k get formatted.
+	 * @param counts
+	 * @param k
+	 * @return
+	 */
+	public static Stream<String> topLinesToPrint(WordCountTable counts, int k){
+		return OrderedCounts.top(counts, k).lines();
+	}
+	
+	/**
+	 * As {@link #topLinesToPrint(WordCountTable, int)}, but for a map.
+	 * @param counts
+	 * @param k
+	 * @return
+	 */
+	public static Stream<String> topLinesToPrint(Map<String, Long> counts, int k){
+		return OrderedCounts.top(counts, k).lines();
 	}
 	
 	
@@ -156,20 +241,32 @@ public class WordCounter {
 	 * @return
 	 */
 	public static Map<String, Long> processedCounts(Stream<String> lines) {
+		return processedTable(lines).toMap();
+	}
+	
+	
+	/**
+	 * As {@link #processedCounts(Stream)}, but as a {@link WordCountTable} (which takes far less memory 
+	 * than a map for a large number of distinct words).
+	 * @param lines
+	 * @return
+	 */
+	public static WordCountTable processedTable(Stream<String> lines) {
 		
-		//Lambda expression to map the lines into Stream<String[]> (via split) then flatMap to turn into 
-		//a stream of all the 'words' in the file..
-		//Then I use Collectors.groupingsBy and Collectors.counting to count the occurrences and 
-		//collect into a map keyed by the 'words'(values being the the number of occurrences).
-		
-		//As an aside, I could do parallel to process the lines in parallel via ForkJoin etc.
-		//If so i'd have lines.parallel() instead of lines at the beginning, and change the groupingBy 
-		//to be groupingByConcurrent.
+		//This used to split each line into a String[] and collect the words via Collectors.groupingBy and 
+		//Collectors.counting. That made a String for every word in the file (and the regex was slow).
+		//Now the WordTokenizer scans each line and the WordCountTable looks the word up by its range of 
+		//characters, so a String is only made the first time a word is seen.
 		
-		//With the beauty of Java 8 streams, collectors and lambda expressions this can all be done in a single line,
-		//which I think is very nice.
-		return lines.map(line -> line.split(WORD_SEPARATORS_REGEX))
-			 .flatMap(Arrays::stream)
-			 .collect(groupingBy(Function.identity(), counting()));
+		//The table isn't thread safe, so the lines are counted one at a time. The parallel version for large 
+		//files is in the ChunkedWordCounter, which splits the file itself rather than relying on the stream of lines.
+		WordCountTable table = new WordCountTable();
+		long[] read = new long[1];
+		lines.sequential().forEach(line -> {
+			WordTokenizer.tokenize(line, table);
+			read[0]++;
+		});
+		RunStats.lines(read[0]);
+		return table;
 	}
 }
@@ -0,0 +1,215 @@
+package com.dfht;
+
+import java.util.Arrays;
+
+/**
+ * What the characters of a word are, for the tokenizers (see {@link WordTokenizer#setDefinition(WordDefinition)}).
+ * The comments in {@link WordCounter} go through the choices: letters (\p{L}, the default), only ASCII letters,
+ * anything but white space (\S), with digits or not, and whether apostrophes and hyphens can be part of a word.
+ * A definition is given as a comma separated list of:
+ * <ul>
+ * <li>letters - any letter (\p{L})</li>
+ * <li>ascii - the ASCII letters A-Z and a-z</li>
+ * <li>nonspace - anything but white space</li>
+ * <li>digits - any decimal digit (\p{Nd})</li>
+ * <li>marks - combining marks (\p{M}, e.g. accents not combined with their letter)</li>
+ * <li>apostrophes - ' and U+2019 (the right single quotation mark), but only between two characters of a word (as in "don't")</li>
+ * <li>hyphens - - and U+2010 and U+2011 (the unicode hyphens), only between two characters of a word (as in "well-known")</li>
+ * <li>separators=characters - these characters are never part of a word (this must come last, and takes the rest of the
+ * definition, commas and all)</li>
+ * </ul>
+ * If none of letters, ascii or nonspace is given, it is letters.
+ *
+ * However it is defined, it is worked out once into a bitmap of the BMP (a bit per char) and a sorted table of the
+ * ranges of code points beyond it (made when the first of those comes up), so a character is always looked up the
+ * same way (a shift and a mask for almost every one), rather than with a regex or a chain of Character calls in the
+ * loop over every character of the input.
+ * Immutable (to all intents), so can be shared between threads.
+ * @author Darren
+ *
+ */
+public class WordDefinition {
+
+	private static final String LETTERS = "letters";
+	private static final String ASCII = "ascii";
+	private static final String NON_SPACE = "nonspace";
+	private static final String DIGITS = "digits";
+	private static final String MARKS = "marks";
+	private static final String APOSTROPHES = "apostrophes";
+	private static final String HYPHENS = "hyphens";
+	private static final String SEPARATORS = "separators=";
+
+	private static final String APOSTROPHE_CHARACTERS = "'\u2019";
+	private static final String HYPHEN_CHARACTERS = "-\u2010\u2011";
+
+	private static final int BMP_SIZE = 0x10000;
+
+	//The general categories (as bits, 1 << Character.getType).
+	private static final int LETTER_CATEGORIES = 1 << Character.UPPERCASE_LETTER | 1 << Character.LOWERCASE_LETTER 
+			| 1 << Character.TITLECASE_LETTER | 1 << Character.MODIFIER_LETTER | 1 << Character.OTHER_LETTER;
+	private static final int DIGIT_CATEGORIES = 1 << Character.DECIMAL_DIGIT_NUMBER;
+	private static final int MARK_CATEGORIES = 1 << Character.NON_SPACING_MARK | 1 << Character.COMBINING_SPACING_MARK
+			| 1 << Character.ENCLOSING_MARK;
+	//All but the space separators and surrogates (and the white space controls, which are in the BMP).
+	private static final int NON_SPACE_CATEGORIES = ~(1 << Character.SPACE_SEPARATOR | 1 << Character.LINE_SEPARATOR
+			| 1 << Character.PARAGRAPH_SEPARATOR | 1 << Character.SURROGATE);
+
+	/**
+	 * A word is a run of letters (\p{L}), which is the default.
+	 */
+	public static final WordDefinition DEFAULT = new WordDefinition(LETTERS, LETTER_CATEGORIES, false, "", "");
+
+
+	private final String definition;
+	//A bit for each char that can be in a word, and for each that can join two parts of one.
+	private final long[] characters = new long[BMP_SIZE / 64];
+	private final long[] joiners = new long[BMP_SIZE / 64];
+	private final int categories;
+	private final String separators;
+	//The code points beyond the BMP that can be in a word, as [first, last] pairs in order.
+	//Only worked out if any come up (most text has none, and it takes a while).
+	private volatile int[] ranges;
+
+
+	//Worked out from the general categories (which is all but a few characters in the BMP need).
+	private WordDefinition(String definition, int categories, boolean ascii, String joiners, String separators) {
+		this.definition = definition;
+		this.categories = categories;
+		this.separators = separators;
+		boolean nonSpace = categories == NON_SPACE_CATEGORIES;
+		for (int c = 0; c < BMP_SIZE; c++) {
+			boolean inWord = (categories >>> Character.getType(c) & 1) != 0 || ascii && isAsciiLetter(c);
+			if(inWord && !(nonSpace && Character.isWhitespace(c)) && separators.indexOf(c) < 0)
+				characters[c >>> 6] |= 1L << c;
+		}
+		for (int i = 0; i < joiners.length(); i++) {
+			char c = joiners.charAt(i);
+			if(separators.indexOf(c) < 0 && !isWordCharacter(c))
+				this.joiners[c >>> 6] |= 1L << c;
+		}
+	}
+
+	//There are a million code points beyond the BMP, so this is only done when one comes up.
+	private int[] ranges() {
+		int[] ranges = new int[16];
+		int count = 0;
+		for (int codePoint = BMP_SIZE; codePoint <= Character.MAX_CODE_POINT; codePoint++) {
+			if((categories >>> Character.getType(codePoint) & 1) == 0 || separators.indexOf(codePoint) >= 0)
+				continue;
+			if(count > 0 && ranges[count - 1] == codePoint - 1) {
+				ranges[count - 1] = codePoint;
+				continue;
+			}
+			if(count == ranges.length)
+				ranges = Arrays.copyOf(ranges, count * 2);
+			ranges[count++] = codePoint;
+			ranges[count++] = codePoint;
+		}
+		return Arrays.copyOf(ranges, count);
+	}
+
+	private static boolean isAsciiLetter(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+
+	/**
+	 * The definition given as a comma separated list (see above).
+	 * @param definition
+	 * @return
+	 * @throws InputException - If it isn't one.
+	 */
+	public static WordDefinition parse(String definition) throws InputException {
+		int categories = 0;
+		boolean ascii = false;
+		StringBuilder joiners = new StringBuilder();
+		String separators = "";
+		String rest = definition;
+		while(!rest.isEmpty()) {
+			if(rest.startsWith(SEPARATORS)) {
+				separators = rest.substring(SEPARATORS.length());
+				if(separators.isEmpty())
+					throw new InputException(Messages.InvalidDefinition(definition));
+				break;
+			}
+			int comma = rest.indexOf(',');
+			String item = comma < 0 ? rest : rest.substring(0, comma);
+			rest = comma < 0 ? "" : rest.substring(comma + 1);
+			switch(item) {
+			case LETTERS:
+				categories |= LETTER_CATEGORIES;
+				break;
+			case ASCII:
+				ascii = true;
+				break;
+			case NON_SPACE:
+				categories |= NON_SPACE_CATEGORIES;
+				break;
+			case DIGITS:
+				categories |= DIGIT_CATEGORIES;
+				break;
+			case MARKS:
+				categories |= MARK_CATEGORIES;
+				break;
+			case APOSTROPHES:
+				joiners.append(APOSTROPHE_CHARACTERS);
+				break;
+			case HYPHENS:
+				joiners.append(HYPHEN_CHARACTERS);
+				break;
+			default:
+				throw new InputException(Messages.InvalidDefinition(definition));
+			}
+		}
+		//Letters unless it says otherwise (e.g. just "digits" adds to the letters).
+		if(!ascii && (categories & LETTER_CATEGORIES) == 0)
+			categories |= LETTER_CATEGORIES;
+		//Nothing more can be added to it.
+		if((categories & NON_SPACE_CATEGORIES) == NON_SPACE_CATEGORIES)
+			categories = NON_SPACE_CATEGORIES;
+		return new WordDefinition(definition, categories, ascii, joiners.toString(), separators);
+	}
+
+
+
+	/**
+	 * Whether the character (code point) can be part of a word.
+	 * @param codePoint
+	 * @return
+	 */
+	public boolean isWordCharacter(int codePoint) {
+		if(codePoint < BMP_SIZE)
+			return codePoint >= 0 && (characters[codePoint >>> 6] & 1L << codePoint) != 0;
+		int[] ranges = this.ranges;
+		//Two threads might both work them out, but they get the same.
+		if(ranges == null)
+			this.ranges = ranges = ranges();
+		int low = 0;
+		int high = ranges.length / 2 - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			if(codePoint < ranges[2 * middle])
+				high = middle - 1;
+			else if(codePoint > ranges[2 * middle + 1])
+				low = middle + 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the character (code point) is part of a word when it is between two characters that are.
+	 * @param codePoint
+	 * @return
+	 */
+	public boolean isJoiner(int codePoint) {
+		return codePoint >= 0 && codePoint < BMP_SIZE && (joiners[codePoint >>> 6] & 1L << codePoint) != 0;
+	}
+
+
+	@Override
+	public String toString() {
+		return definition;
+	}
+}
@@ -0,0 +1,321 @@
+package com.dfht;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A compact binary index of word counts, for answering 'how many times does x occur' without counting again.
+ * The index is memory mapped for queries, so it doesn't have to be loaded into the heap.
+ *
+ * The layout is:
+ * <ul>
+ * <li>A header: magic, version, number of words, words per block, number of blocks and where the block offsets start.</li>
+ * <li>The words (as UTF-8) sorted by their bytes, in blocks of {@link #BLOCK_SIZE}. The first word in a block is stored
+ * whole and the rest are front coded (the length shared with the previous word, then the rest of the word).
+ * Lengths and counts are varints, so most words only take a few bytes more than their differing suffix.</li>
+ * <li>The offset of each block (the sparse table a lookup binary searches, comparing with each block's first word).</li>
+ * </ul>
+ * A point lookup is a binary search of the blocks then a scan of at most one block. A prefix lookup starts the same
+ * way and then scans forward for as long as the words have the prefix.
+ * Not thread safe (each thread should open its own).
+ * @author Darren
+ *
+ */
+public class WordIndex implements Closeable {
+
+	//"WCIX".
+	private static final int MAGIC = 0x57434958;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+
+	//Words per block: bigger blocks compress better, smaller ones are quicker to scan.
+	static final int BLOCK_SIZE = 16;
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final long words;
+	private final int blocks;
+	private final long offsetsPosition;
+
+	//Reused while scanning a block (the current word, front decoded).
+	private byte[] word = new byte[64];
+	private int wordLength;
+	private int position;
+
+
+	private WordIndex(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+		this.channel = channel;
+		this.buffer = buffer;
+		if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException(Messages.NotAnIndex());
+		words = buffer.getLong(8);
+		if(buffer.getInt(16) != BLOCK_SIZE)
+			throw new IOException(Messages.NotAnIndex());
+		blocks = buffer.getInt(20);
+		offsetsPosition = buffer.getLong(24);
+	}
+
+
+	/**
+	 * Open (memory map) an index written by {@link #write(WordCountTable, Path)}.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static WordIndex open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			//A single mapping can't be more than 2GB, which is a lot of front coded words.
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(Messages.IndexTooLarge(path.toString()));
+			return new WordIndex(channel, channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+		catch(IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+
+	/**
+	 * The number of distinct words in the index.
+	 * @return
+	 */
+	public long size() {
+		return words;
+	}
+
+
+	/**
+	 * The number of times the word occurred (0 if it isn't in the index).
+	 * @param word
+	 * @return
+	 */
+	public long count(String word) {
+		byte[] key = word.getBytes(StandardCharsets.UTF_8);
+		for (int block = startBlock(key), i = 0; block >= 0 && i < BLOCK_SIZE && startEntry(block, i); i++) {
+			long count = readEntry();
+			int compared = compare(this.word, wordLength, key, key.length);
+			if(compared == 0)
+				return count;
+			if(compared > 0)
+				break;
+		}
+		return 0;
+	}
+
+	/**
+	 * Pass each word starting with the prefix (and its count) to the action, in the index's order.
+	 * @param prefix
+	 * @param action
+	 */
+	public void prefix(String prefix, ObjLongConsumer<String> action) {
+		byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+		int block = Math.max(0, startBlock(key));
+		for (; block < blocks; block++) {
+			for (int i = 0; i < BLOCK_SIZE && startEntry(block, i); i++) {
+				long count = readEntry();
+				int compared = compare(word, Math.min(wordLength, key.length), key, key.length);
+				if(compared == 0)
+					action.accept(new String(word, 0, wordLength, StandardCharsets.UTF_8), count);
+				else if(compared > 0)
+					return;
+			}
+		}
+	}
+
+
+	//The last block whose first word is <= key (or -1 if the key is before them all).
+	private int startBlock(byte[] key) {
+		int low = 0;
+		int high = blocks - 1;
+		int found = -1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			startEntry(middle, 0);
+			readEntry();
+			if(compare(word, wordLength, key, key.length) <= 0) {
+				found = middle;
+				low = middle + 1;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		return found;
+	}
+
+	//Get ready to read entry i of the block (false if it is past the last word).
+	private boolean startEntry(int block, int i) {
+		if((long) block * BLOCK_SIZE + i >= words)
+			return false;
+		if(i == 0) {
+			position = (int) buffer.getLong((int) (offsetsPosition + 8L * block));
+			wordLength = 0;
+		}
+		return true;
+	}
+
+	//Decode the entry at position into word/wordLength and return its count.
+	private long readEntry() {
+		int shared = (int) readVarint();
+		int suffix = (int) readVarint();
+		if(shared + suffix > word.length)
+			word = Arrays.copyOf(word, Math.max(shared + suffix, word.length * 2));
+		for (int i = 0; i < suffix; i++)
+			word[shared + i] = buffer.get(position++);
+		wordLength = shared + suffix;
+		return readVarint();
+	}
+
+	private long readVarint() {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get(position++);
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while(b < 0);
+		return value;
+	}
+
+
+	//Unsigned lexicographic comparison of byte strings (which for UTF-8 is the code point order).
+	static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+		int length = Math.min(aLength, bLength);
+		for (int i = 0; i < length; i++) {
+			int compared = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if(compared != 0)
+				return compared;
+		}
+		return aLength - bLength;
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		//The mapping itself goes when it is garbage collected.
+		channel.close();
+	}
+
+
+
+	/**
+	 * Write the counts as an index.
+	 * @param counts
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void write(WordCountTable counts, Path path) throws IOException {
+		int size = counts.size();
+		byte[][] keys = new byte[size][];
+		long[] occurrences = new long[size];
+		String[] words = new String[size];
+		counts.copyTo(words, occurrences);
+		for (int i = 0; i < size; i++) {
+			keys[i] = words[i].getBytes(StandardCharsets.UTF_8);
+			words[i] = null;
+		}
+		int[] order = OrderedCounts.sortedIndices(size, (a, b) -> compare(keys[a], keys[a].length, keys[b], keys[b].length));
+
+		int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		long[] offsets = new long[blocks];
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			Output out = new Output(channel, HEADER_SIZE);
+			byte[] previous = new byte[0];
+			for (int i = 0; i < size; i++) {
+				byte[] key = keys[order[i]];
+				int shared = 0;
+				if(i % BLOCK_SIZE == 0)
+					offsets[i / BLOCK_SIZE] = out.position();
+				else
+					while(shared < previous.length && shared < key.length && previous[shared] == key[shared])
+						shared++;
+				out.varint(shared);
+				out.varint(key.length - shared);
+				out.bytes(key, shared, key.length - shared);
+				out.varint(occurrences[order[i]]);
+				previous = key;
+			}
+			long offsetsPosition = out.position();
+			for (long offset : offsets)
+				out.longValue(offset);
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(size).putInt(BLOCK_SIZE).putInt(blocks).putLong(offsetsPosition);
+			header.flip();
+			while(header.hasRemaining())
+				channel.write(header, header.position());
+		}
+	}
+
+
+	/**
+	 * Buffered writing to a channel, keeping track of the position.
+	 */
+	private static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+		private long written;
+
+		Output(FileChannel channel, long start) {
+			this.channel = channel;
+			this.written = start;
+		}
+
+		long position() {
+			return written + buffer.position();
+		}
+
+		void varint(long value) throws IOException {
+			ensure(10);
+			while((value & ~0x7FL) != 0) {
+				buffer.put((byte) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			buffer.put((byte) value);
+		}
+
+		void longValue(long value) throws IOException {
+			ensure(8);
+			buffer.putLong(value);
+		}
+
+		void bytes(byte[] bytes, int from, int length) throws IOException {
+			while(length > 0) {
+				ensure(1);
+				int n = Math.min(length, buffer.remaining());
+				buffer.put(bytes, from, n);
+				from += n;
+				length -= n;
+			}
+		}
+
+		private void ensure(int space) throws IOException {
+			if(buffer.remaining() < space)
+				flush();
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining())
+				written += channel.write(buffer, written);
+			buffer.clear();
+		}
+	}
+}
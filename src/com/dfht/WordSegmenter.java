@@ -0,0 +1,202 @@
+package com.dfht;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import com.ibm.icu.lang.UCharacter;
+import com.ibm.icu.lang.UProperty;
+import com.ibm.icu.text.BreakIterator;
+import com.ibm.icu.util.ULocale;
+
+/**
+ * Splits the runs of letters of scripts that are written without spaces (Chinese, Japanese, Thai, Lao, Khmer and
+ * Myanmar) into words with icu4j's dictionary based word BreakIterator, as otherwise a whole sentence (or line) of
+ * them is one 'word'. See {@link WordTokenizer#setSegmenting(boolean)}.
+ *
+ * The tokenizer still finds the runs of letters, and only a run with such characters in comes here at all.
+ * Those scripts write vowels and tones with combining marks, so (only) after such a letter a mark carries the run on.
+ * A run is split where the script changes, so the rest of it (e.g. Latin letters next to Chinese ones) is passed on
+ * just as it is, and only the parts that need it go through the BreakIterator. Making a BreakIterator (and loading its
+ * dictionaries) is slow, so each thread has one of its own that it uses for every run.
+ * @author Darren
+ *
+ */
+class WordSegmenter {
+
+	//Nothing below this (Thai) is written without spaces.
+	private static final int FIRST_DICTIONARY_CHARACTER = 0x0E00;
+
+	//A thread's BreakIterator, and what it is given the text in.
+	private static final ThreadLocal<WordSegmenter> SEGMENTERS = ThreadLocal.withInitial(WordSegmenter::new);
+
+	private final BreakIterator words = BreakIterator.getWordInstance(ULocale.ROOT);
+	private final Slice text = new Slice();
+	//For decoding UTF-8 runs: the chars and the byte offset each one starts at (and where the last ends).
+	private char[] chars = new char[64];
+	private int[] offsets = new int[65];
+
+
+	private WordSegmenter() {
+	}
+
+
+	/**
+	 * Whether a letter is in a script written without spaces (which is quick to rule out for Latin etc.).
+	 * Those are the scripts where lines can break between any letters (ideographs and kana) or only where a dictionary
+	 * says (Thai etc.).
+	 * @param codePoint
+	 * @return
+	 */
+	static boolean needsDictionary(int codePoint) {
+		if(codePoint < FIRST_DICTIONARY_CHARACTER)
+			return false;
+		int lineBreak = UCharacter.getIntPropertyValue(codePoint, UProperty.LINE_BREAK);
+		return lineBreak == UCharacter.LineBreak.IDEOGRAPHIC || lineBreak == UCharacter.LineBreak.COMPLEX_CONTEXT
+				|| lineBreak == UCharacter.LineBreak.CONDITIONAL_JAPANESE_STARTER;
+	}
+
+	/**
+	 * Whether a character is a combining mark (e.g. a Thai vowel or tone mark, or a Japanese voicing mark).
+	 * @param codePoint
+	 * @return
+	 */
+	static boolean isMark(int codePoint) {
+		int type = Character.getType(codePoint);
+		return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+	}
+
+
+	/**
+	 * Pass the words in the run of letters (and marks) chars[start, end) on to the sink.
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * @param sink
+	 */
+	static void segment(CharSequence chars, int start, int end, WordTokenizer.WordSink sink) {
+		SEGMENTERS.get().split(chars, start, end, sink);
+	}
+
+	/**
+	 * As {@link #segment(CharSequence, int, int, WordTokenizer.WordSink)} for a run of letters in valid UTF-8,
+	 * bytes[start, end) (absolute positions), adding the words to the table.
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @param table
+	 */
+	static void segment(ByteBuffer bytes, int start, int end, Utf8WordCountTable table) {
+		WordSegmenter segmenter = SEGMENTERS.get();
+		int length = segmenter.decode(bytes, start, end);
+		int[] offsets = segmenter.offsets;
+		segmenter.split(CharBuffer.wrap(segmenter.chars, 0, length), 0, length,
+				(chars, wordStart, wordEnd) -> table.add(bytes, offsets[wordStart], offsets[wordEnd]));
+	}
+
+
+	//Split the run into parts that do and don't need the dictionary.
+	private void split(CharSequence chars, int start, int end, WordTokenizer.WordSink sink) {
+		int partStart = start;
+		boolean dictionary = false;
+		int i = start;
+		while(i < end) {
+			int codePoint = Character.codePointAt(chars, i);
+			//A mark goes with the letter before it.
+			boolean needsDictionary = i > start && isMark(codePoint) ? dictionary : needsDictionary(codePoint);
+			if(i > start && needsDictionary != dictionary) {
+				part(chars, partStart, i, dictionary, sink);
+				partStart = i;
+			}
+			dictionary = needsDictionary;
+			i += Character.charCount(codePoint);
+		}
+		part(chars, partStart, end, dictionary, sink);
+	}
+
+	private void part(CharSequence chars, int start, int end, boolean dictionary, WordTokenizer.WordSink sink) {
+		if(!dictionary) {
+			sink.word(chars, start, end);
+			return;
+		}
+		text.set(chars, start, end);
+		try {
+			words.setText(text);
+			//The part is all letters, so every piece of it is a word.
+			int from = words.first();
+			for (int to = words.next(); to != BreakIterator.DONE; from = to, to = words.next())
+				sink.word(chars, start + from, start + to);
+		}
+		finally {
+			//Don't keep hold of the text (which could be a large buffer).
+			text.set(null, 0, 0);
+			words.setText("");
+		}
+	}
+
+	//Decode the UTF-8 (which has already been checked) into chars, returning how many.
+	private int decode(ByteBuffer bytes, int start, int end) {
+		if(chars.length < end - start) {
+			chars = new char[end - start];
+			offsets = new int[end - start + 1];
+		}
+		int length = 0;
+		int i = start;
+		while(i < end) {
+			int b = bytes.get(i) & 0xFF;
+			int width = b < 0x80 ? 1 : b < 0xE0 ? 2 : b < 0xF0 ? 3 : 4;
+			int codePoint = width == 1 ? b : b & (0xFF >>> (width + 1));
+			for (int k = 1; k < width; k++)
+				codePoint = (codePoint << 6) | (bytes.get(i + k) & 0x3F);
+			offsets[length] = i;
+			if(width == 4) {
+				chars[length++] = Character.highSurrogate(codePoint);
+				//Never the start of a word (a word can't start in the middle of a surrogate pair).
+				offsets[length] = i;
+				chars[length++] = Character.lowSurrogate(codePoint);
+			}
+			else {
+				chars[length++] = (char) codePoint;
+			}
+			i += width;
+		}
+		offsets[length] = end;
+		return length;
+	}
+
+
+
+	/**
+	 * A range of some characters, as the BreakIterator's text (without copying them).
+	 */
+	private static class Slice implements CharSequence {
+		private CharSequence chars;
+		private int start;
+		private int length;
+
+		void set(CharSequence chars, int start, int end) {
+			this.chars = chars;
+			this.start = start;
+			this.length = end - start;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return chars.charAt(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return chars.subSequence(start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return chars.subSequence(start, start + length).toString();
+		}
+	}
+}
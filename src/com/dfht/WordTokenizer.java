@@ -0,0 +1,134 @@
+package com.dfht;
+
+/**
+ * Finds the 'words' in a sequence of characters.
+ * By default a word is a maximal run of letters (code points for which {@link Character#isLetter(int)} is true,
+ * i.e. the same as the regex \p{L}), so everything else is a separator (\P{L}+).
+ * What a word is can be changed (see {@link #setDefinition(WordDefinition)}).
+ * This is a hand written scanner rather than String.split because it runs for every character of the input.
+ * It doesn't allocate anything. The words are passed on as a range of the characters, so it is up to the
+ * {@link WordSink} whether it ever needs to make a String of them.
+ * Optionally the runs of letters in scripts written without spaces (e.g. Chinese or Thai) are split into words
+ * with a dictionary (see {@link #setSegmenting(boolean)}).
+ * @author Darren
+ *
+ */
+public class WordTokenizer {
+
+	/**
+	 * Receives each word found as a range of the characters being scanned.
+	 * The range is only valid during the call (e.g. a buffer may be reused afterwards).
+	 */
+	@FunctionalInterface
+	public interface WordSink {
+		void word(CharSequence chars, int start, int end);
+	}
+
+
+	//Whether runs of Chinese, Thai etc. are split into words (see WordSegmenter).
+	private static volatile boolean segmenting = false;
+	private static volatile WordDefinition definition = WordDefinition.DEFAULT;
+
+
+	private WordTokenizer() {
+	}
+
+
+	/**
+	 * Whether the runs of letters in scripts written without spaces (Chinese, Japanese, Thai, Lao, Khmer and Myanmar)
+	 * are split into words with icu4j's dictionaries, rather than each run being a word.
+	 * This is for all the counting (whichever way it is done), so it should be set before any starts.
+	 * @param segmenting
+	 */
+	public static void setSegmenting(boolean segmenting) {
+		WordTokenizer.segmenting = segmenting;
+	}
+
+	public static boolean isSegmenting() {
+		return segmenting;
+	}
+
+	/**
+	 * What a word is made of (for all the counting, so it should be set before any starts).
+	 * @param definition
+	 */
+	public static void setDefinition(WordDefinition definition) {
+		WordTokenizer.definition = definition;
+	}
+
+	public static WordDefinition getDefinition() {
+		return definition;
+	}
+
+
+	/**
+	 * Pass each word in the characters on to the sink.
+	 * @param chars
+	 * @param sink
+	 */
+	public static void tokenize(CharSequence chars, WordSink sink) {
+		tokenize(chars, 0, chars.length(), sink);
+	}
+
+	/**
+	 * Pass each word in chars[from, to) on to the sink.
+	 * A word is never continued past to, so the caller must make sure it doesn't split a word.
+	 * @param chars
+	 * @param from
+	 * @param to
+	 * @param sink
+	 */
+	public static void tokenize(CharSequence chars, int from, int to, WordSink sink) {
+		WordDefinition words = definition;
+		boolean segment = segmenting;
+		//The start of the current word, or -1 if I'm in a run of separators.
+		int start = -1;
+		//Whether the current word needs splitting up (only if segmenting).
+		boolean dictionary = false;
+		int i = from;
+		while(i < to) {
+			int codePoint = codePointAt(chars, i, to);
+			int width = Character.charCount(codePoint);
+			if(words.isWordCharacter(codePoint)) {
+				if(start < 0)
+					start = i;
+				if(segment && WordSegmenter.needsDictionary(codePoint))
+					dictionary = true;
+			}
+			else if(start >= 0 && (dictionary && WordSegmenter.isMark(codePoint) 
+					|| words.isJoiner(codePoint) && words.isWordCharacter(codePointAt(chars, i + width, to)))) {
+				//Part of the word (e.g. a Thai vowel, or the apostrophe in "don't").
+			}
+			else if(start >= 0) {
+				word(chars, start, i, dictionary, sink);
+				start = -1;
+				dictionary = false;
+			}
+			i += width;
+		}
+		if(start >= 0)
+			word(chars, start, to, dictionary, sink);
+	}
+
+	//The code point at i (or -1 at to).
+	//Characters outside the BMP (e.g. some CJK ideographs) come as a surrogate pair.
+	//An unpaired surrogate is just itself (which is never part of a word, just as for the regex).
+	private static int codePointAt(CharSequence chars, int i, int to) {
+		if(i >= to)
+			return -1;
+		char c = chars.charAt(i);
+		if(Character.isHighSurrogate(c) && i + 1 < to) {
+			char low = chars.charAt(i + 1);
+			if(Character.isLowSurrogate(low))
+				return Character.toCodePoint(c, low);
+		}
+		return c;
+	}
+
+	private static void word(CharSequence chars, int start, int end, boolean dictionary, WordSink sink) {
+		if(dictionary)
+			WordSegmenter.segment(chars, start, end, sink);
+		else
+			sink.word(chars, start, end);
+	}
+}
@@ -2,13 +2,30 @@ package com.dfht.tests;
 
 import static java.util.stream.Collectors.toList;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -18,16 +35,43 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.dfht.ApproximateWordCounter;
 import com.dfht.Arguments;
+import com.dfht.BinaryReport;
 import com.dfht.CharsetHelper;
+import com.dfht.ChunkedWordCounter;
+import com.dfht.ExternalWordCounter;
+import com.dfht.FileWordCounter;
+import com.dfht.IncrementalWordCounter;
+import com.dfht.InputFiles;
 import com.dfht.InputException;
+import com.dfht.NgramTable;
+import com.dfht.OrderedCounts;
+import com.dfht.PipelinedWordCounter;
+import com.dfht.ReportFormat;
+import com.dfht.ReportWriter;
+import com.dfht.RunFile;
+import com.dfht.RunStats;
+import com.dfht.StreamingWordCounter;
+import com.dfht.Utf8WordCounter;
+import com.dfht.WordCountServer;
+import com.dfht.WordCountTable;
+import com.dfht.WordDefinition;
 import com.dfht.WordCounter;
+import com.dfht.WordIndex;
+import com.dfht.WordTokenizer;
 
 /**
  * A few tests.
@@ -89,6 +133,55 @@ public class Tests {
 		//These should be null as I intend it to short-circuit and ignore them in this case.
 		assert expectedPath.equals(args.getFilePath()): "Incorrect argument parsing";
 		assert Charset.forName(expectedEncoding).equals(args.getEncoding()) : "Incorrect argument parsing";
+		
+		
+		args = Arguments.from(false, "-file=a.txt", "-file=logs", "-file=logs/**.log", "-perFile");
+		assert Arrays.asList("a.txt", "logs", "logs/**.log").equals(args.getFilePaths()) : "Incorrect argument parsing";
+		assert "a.txt".equals(args.getFilePath()) : "Incorrect argument parsing";
+		assert args.isPerFile() : "Incorrect argument parsing";
+	}
+	
+	/**
+	 * Test arguments that can't be done together are refused rather than some of them being ignored.
+	 * @throws InputException
+	 */
+	@Test
+	public void testArgumentConflicts() throws InputException {
+		String[][] conflicting = {
+				{"-file=a.txt", "-memory=1m", "-index=a.index"},
+				{"-file=a.txt", "-memory=1m", "-approximate=1m"},
+				{"-file=a.txt", "-ngram=2", "-index=a.index"},
+				{"-file=a.txt", "-ngram=2", "-memory=1m"},
+				{"-file=a.txt", "-ngram=2", "-approximate=1m"},
+				{"-file=a.txt", "-ngram=2", "-threads=4"},
+				{"-file=a.txt", "-ngram=2", "-perFile"},
+				{"-file=a.txt", "-ngram=2", "-incremental"},
+				{"-merge=a.partial", "-index=a.index"},
+				{"-file=a.txt", "-approximate=1m", "-threads=4"},
+				{"-file=a.txt", "-approximate=1m", "-perFile"},
+				{"-file=a.txt", "-approximate=1m", "-incremental"},
+				{"-file=a.txt", "-memory=1m", "-threads=4"},
+				{"-file=a.txt", "-memory=1m", "-perFile"},
+				{"-file=a.txt", "-memory=1m", "-incremental"},
+		};
+		for (String[] args : conflicting) {
+			try {
+				Arguments.from(false, args).checkConflicts();
+				Assert.fail("Conflicting arguments were accepted: " + Arrays.toString(args));
+			}
+			catch(InputException ex) {
+				//Expected.
+			}
+		}
+		String[][] compatible = {
+				{"-file=a.txt", "-memory=1m", "-top=10"},
+				{"-file=a.txt", "-approximate=1m", "-index=a.index"},
+				{"-file=a.txt", "-threads=4", "-index=a.index"},
+				{"-file=a.txt", "-ngram=2", "-top=10", "-threads=1"},
+				{"-file=a.txt", "-partial=a.partial", "-index=a.index"},
+		};
+		for (String[] args : compatible)
+			Arguments.from(false, args).checkConflicts();
 	}
 	
 	
@@ -275,6 +368,1212 @@ public class Tests {
 	
 	
 	
+	/**
+	 * Test the tokenizer finds the same words as splitting on the regex \P{L}+ (which is what it replaced).
+	 * The regex also gives an empty 'word' when a line starts with a separator, which isn't a word.
+	 */
+	@Test
+	public void testTokenizerMatchesRegex() {
+		String[] lines = {"", "   ", "hello", " hello, world! ", "it's a dog-eat-dog world", "\u00e6bler og p\u00e6rer",
+				"\u4e2d\u6587 \u5b57", "\ud840\udc0b\ud840\udc0bx \ud840", "a1b2c3", "\ud83d\ude00smile\ud83d\ude00", "\udc00abc\ud800"};
+		for (String line : lines) {
+			List<String> expected = Arrays.stream(line.split("\\P{L}+")).filter(word -> !word.isEmpty()).collect(toList());
+			List<String> words = new ArrayList<>();
+			WordTokenizer.tokenize(line, (chars, start, end) -> words.add(chars.subSequence(start, end).toString()));
+			Assert.assertEquals(line, expected, words);
+		}
+	}
+	
+	/**
+	 * Test each word definition finds the same words as the regex for it, in chars and in UTF-8.
+	 * @throws InputException
+	 * @throws IOException
+	 */
+	@Test
+	public void testWordDefinitions() throws InputException, IOException {
+		String[] lines = {"", "   ", " hello, world! ", "it's a dog-eat-dog world", "don't 'quoted' rock'n'roll well--known -x- a-b- b\u2019c",
+				"\u00e6bler og p\u00e6rer", "\u4e2d\u6587 \u5b57", "\ud840\udc0b\ud840\udc0bx", "a1b2c3 x_y 2024", "\ud83d\ude00smile\ud83d\ude00",
+				"tab\there\u00a0nbsp\u2028line\u3000wide \uff15\u0663", "e\u0301t\u00e9 \ud835\udfce\ud835\udd04"};
+		String[][] definitions = {
+				{"letters", "\\p{L}+"},
+				{"ascii,digits", "[A-Za-z\\p{Nd}]+"},
+				{"digits", "[\\p{L}\\p{Nd}]+"},
+				{"nonspace", "[^\\s\\p{Z}]+"},
+				{"letters,marks", "[\\p{L}\\p{M}]+"},
+				{"letters,apostrophes,hyphens", "\\p{L}+(?:['\u2019\\-\u2010\u2011]\\p{L}+)*"},
+				{"nonspace,digits,hyphens,separators=,.!'-x", "[^\\s\\p{Z},.!'\\-x]+"},
+		};
+		try {
+			for (String[] definition : definitions) {
+				WordTokenizer.setDefinition(WordDefinition.parse(definition[0]));
+				Pattern word = Pattern.compile(definition[1]);
+				for (String line : lines) {
+					List<String> expected = new ArrayList<>();
+					Matcher matcher = word.matcher(line);
+					while(matcher.find())
+						expected.add(matcher.group());
+					List<String> words = new ArrayList<>();
+					WordTokenizer.tokenize(line, (chars, start, end) -> words.add(chars.subSequence(start, end).toString()));
+					Assert.assertEquals(definition[0] + ": " + line, expected, words);
+					Assert.assertEquals(definition[0] + ": " + line, expected.stream().collect(Collectors.groupingBy(text -> text, Collectors.counting())), 
+							Utf8WordCounter.processedCounts(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8))));
+				}
+			}
+		}
+		finally {
+			WordTokenizer.setDefinition(WordDefinition.DEFAULT);
+		}
+		for (String invalid : new String[] {"words", "letters,,digits", "separators=", "Letters"}) {
+			try {
+				WordDefinition.parse(invalid);
+				Assert.fail(invalid);
+			}
+			catch(InputException ex) {
+				//Expected.
+			}
+		}
+	}
+	
+	
+	/**
+	 * Test counting straight from UTF-8 bytes gives the same counts as decoding the lines first.
+	 * @throws IOException
+	 */
+	@Test
+	public void testUtf8MatchesDecoded() throws IOException{
+		for (String path : new String[] {DANISH_UTF8, CHINESE_UTF8, MIXED_UTF8}) {
+			byte[] bytes;
+			try(InputStream stream = Tests.class.getResourceAsStream(path)){
+				bytes = readAll(stream);
+			}
+			Map<String, Long> expected;
+			try(BufferedReader reader = new BufferedReader(new StringReader(new String(bytes, StandardCharsets.UTF_8)))){
+				expected = WordCounter.processedCounts(reader.lines());
+			}
+			Assert.assertEquals(path, expected, Utf8WordCounter.processedCounts(ByteBuffer.wrap(bytes)));
+		}
+	}
+	
+	/**
+	 * Test segmenting splits Chinese, Japanese and Thai into words (leaving other words alone), and gives the same 
+	 * words from UTF-8, decoded text and chunks counted on several threads.
+	 * @throws IOException
+	 */
+	@Test
+	public void testSegmentation() throws IOException{
+		WordTokenizer.setSegmenting(true);
+		try {
+			List<String> words = new ArrayList<>();
+			WordTokenizer.tokenize("ภาษาไทยง่ายนิดเดียว, helloWorld日本語の文章です", (chars, start, end) -> words.add(chars.subSequence(start, end).toString()));
+			Assert.assertEquals(Arrays.asList("ภาษา", "ไทย", "ง่าย", "นิด", "เดียว", "helloWorld", "日本語", "の", "文章", "です"), words);
+			for (String path : new String[] {DANISH_UTF8, CHINESE_UTF8, MIXED_UTF8}) {
+				byte[] bytes;
+				try(InputStream stream = Tests.class.getResourceAsStream(path)){
+					bytes = readAll(stream);
+				}
+				Map<String, Long> expected;
+				try(BufferedReader reader = new BufferedReader(new StringReader(new String(bytes, StandardCharsets.UTF_8)))){
+					expected = WordCounter.processedCounts(reader.lines());
+				}
+				Assert.assertEquals(path, expected, Utf8WordCounter.processedCounts(ByteBuffer.wrap(bytes)));
+				Path file = Files.createTempFile("wordCounter", ".txt");
+				try {
+					Files.write(file, bytes);
+					Assert.assertEquals(path, expected, ChunkedWordCounter.processedCounts(file, StandardCharsets.UTF_8, 4, 1024).toMap());
+					for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.UTF_16BE}) {
+						Files.write(file, new String(bytes, StandardCharsets.UTF_8).getBytes(charset));
+						Assert.assertEquals(path, expected, FileWordCounter.processedCounts(Arrays.asList(file, file, file), charset, 3, false, 
+								null).toMap().entrySet().stream().collect(Collectors.toMap(Entry::getKey, entry -> entry.getValue() / 3)));
+					}
+				}
+				finally {
+					Files.delete(file);
+				}
+				//The words are split up, but it is the same letters.
+				WordTokenizer.setSegmenting(false);
+				Map<String, Long> unsegmented = Utf8WordCounter.processedCounts(ByteBuffer.wrap(bytes));
+				WordTokenizer.setSegmenting(true);
+				if(path == DANISH_UTF8)
+					Assert.assertEquals(unsegmented, expected);
+				Assert.assertEquals(letters(unsegmented), letters(expected));
+				if(path == CHINESE_UTF8)
+					Assert.assertTrue(expected.size() > unsegmented.size());
+			}
+		}
+		finally {
+			WordTokenizer.setSegmenting(false);
+		}
+	}
+	
+	private static long letters(Map<String, Long> counts) {
+		return counts.entrySet().stream().mapToLong(entry -> entry.getKey().length() * entry.getValue()).sum();
+	}
+	
+	/**
+	 * Test invalid UTF-8 is rejected (as the JDK decoder would) rather than counted.
+	 */
+	@Test
+	public void testUtf8Malformed() {
+		byte[][] malformed = {
+				{'a', (byte) 0xC3},						//Truncated.
+				{(byte) 0xC0, (byte) 0xAF},				//Overlong.
+				{(byte) 0xED, (byte) 0xA0, (byte) 0x80},	//Surrogate.
+				{(byte) 0xE6, 'a', 'b'},					//Missing continuation.
+				{(byte) 0xF5, (byte) 0x80, (byte) 0x80, (byte) 0x80},	//Past the end of unicode.
+		};
+		for (byte[] bytes : malformed) {
+			try {
+				Utf8WordCounter.processedCounts(ByteBuffer.wrap(bytes));
+				Assert.fail("Malformed input was accepted: " + Arrays.toString(bytes));
+			}
+			catch(CharacterCodingException ex) {
+				//Expected.
+			}
+		}
+	}
+	
+	
+	/**
+	 * Test counting a stream as it is read (by chunks handed to several threads) gives the same counts as a line at a
+	 * time, whatever the size of the chunks (down to a byte, so every line is longer than a chunk) and of the reads.
+	 * Counted as bytes for UTF-8 and Latin-1, and as chars (decoded as it is read) for UTF-16.
+	 * @throws IOException
+	 */
+	@Test
+	public void testPipelined() throws IOException {
+		for (String path : new String[] {DANISH_UTF8, MIXED_UTF8}) {
+			String text;
+			try(InputStream stream = Tests.class.getResourceAsStream(path)){
+				text = new String(readAll(stream), StandardCharsets.UTF_8);
+			}
+			Map<String, Long> expected;
+			try(BufferedReader reader = new BufferedReader(new StringReader(text))){
+				expected = WordCounter.processedCounts(reader.lines());
+			}
+			List<Charset> charsets = new ArrayList<>(Arrays.asList(StandardCharsets.UTF_8, StandardCharsets.UTF_16BE));
+			if(path == DANISH_UTF8)
+				charsets.add(StandardCharsets.ISO_8859_1);
+			for (Charset charset : charsets) {
+				byte[] bytes = text.getBytes(charset);
+				for (int chunkSize : new int[] {1, 7, 64, 1024, 1 << 20}) {
+					for (int threads : new int[] {1, 3}) {
+						//A few bytes a read, as from a pipe.
+						InputStream trickle = new ByteArrayInputStream(bytes) {
+							@Override
+							public synchronized int read(byte[] buffer, int offset, int length) {
+								return super.read(buffer, offset, Math.min(length, 5));
+							}
+						};
+						Assert.assertEquals(path + " " + charset + " " + chunkSize, expected, 
+								PipelinedWordCounter.processedTable(trickle, charset, threads, chunkSize).toMap());
+					}
+				}
+			}
+		}
+		//A problem in one of the workers is reported (and the reader stops).
+		byte[] malformed = new byte[100000];
+		Arrays.fill(malformed, (byte) 'a');
+		malformed[50000] = '\n';
+		malformed[60000] = (byte) 0xC3;
+		try {
+			PipelinedWordCounter.processedTable(new ByteArrayInputStream(malformed), StandardCharsets.UTF_8, 3, 64);
+			Assert.fail("Malformed input was accepted");
+		}
+		catch(CharacterCodingException ex) {
+			//Expected.
+		}
+	}
+	
+	
+	//A copy of the resource in a temporary file (to count as a file), which the caller deletes.
+	private static Path copyResourceToTempFile(String resource) throws IOException{
+		Path file = Files.createTempFile("wordCounter", ".txt");
+		try(InputStream stream = Tests.class.getResourceAsStream(resource)){
+			Files.copy(stream, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return file;
+	}
+	
+	
+	private static byte[] readAll(InputStream stream) throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = stream.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+	
+	
+	/**
+	 * Test the table gives the same counts and report as a map, including after merging.
+	 * Lots of small random counts give plenty of ties to check the ordering with.
+	 */
+	@Test
+	public void testWordCountTable() {
+		Random random = new Random();
+		Map<String, Long> expected = new HashMap<>();
+		WordCountTable a = new WordCountTable();
+		WordCountTable b = new WordCountTable();
+		for (int i = 0; i < 20000; i++) {
+			String word = Integer.toString(random.nextInt(5000), Character.MAX_RADIX);
+			long count = random(random, 1, 3);
+			expected.merge(word, count, Long::sum);
+			(random.nextBoolean() ? a : b).add(word, count);
+		}
+		WordCountTable merged = WordCountTable.merge(a, b);
+		Assert.assertEquals(expected, merged.toMap());
+		Assert.assertEquals(expected.size(), merged.size());
+		expected.forEach((word, count) -> Assert.assertEquals(count.longValue(), merged.get(word)));
+		Assert.assertEquals(0, merged.get("not there"));
+		Assert.assertEquals(WordCounter.orderedLinesToPrint(expected).collect(toList()), 
+				WordCounter.orderedLinesToPrint(merged).collect(toList()));
+	}
+	
+	
+	/**
+	 * Test words of every width (Latin-1, other BMP, surrogate pairs and ones bigger than an arena slab) are kept,
+	 * ordered and removed the same as Strings would be.
+	 */
+	@Test
+	public void testPackedWords() {
+		Random random = new Random();
+		String[] alphabets = {"abcæøå", "Ωωλ日本語", "\uD835\uDD18\uD835\uDD1Ba"};
+		StringBuilder huge = new StringBuilder();
+		for (int i = 0; i < 600000; i++)
+			huge.append(i % 2 == 0 ? 'a' : '語');
+		Map<String, Long> expected = new HashMap<>();
+		WordCountTable table = new WordCountTable();
+		for (int i = 0; i < 100000; i++) {
+			StringBuilder word = new StringBuilder();
+			String alphabet = alphabets[random.nextInt(alphabets.length)];
+			for (int length = random(random, 1, 8); word.length() < length;)
+				word.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			String text = i % 20000 == 0 ? huge.toString() + i : word.toString();
+			expected.merge(text, 1L, Long::sum);
+			table.add(text, 0, text.length(), 1);
+		}
+		Assert.assertEquals(expected, table.toMap());
+		Assert.assertEquals(WordCounter.orderedLinesToPrint(expected).collect(toList()), 
+				WordCounter.orderedLinesToPrint(table).collect(toList()));
+		Assert.assertEquals(WordCounter.orderedLinesToPrint(expected).limit(50).collect(toList()), 
+				WordCounter.topLinesToPrint(table, 50).collect(toList()));
+		//Take away all but a few words (which leaves most of the arena as removed words, so it is compacted).
+		WordCountTable removed = new WordCountTable();
+		List<String> kept = new ArrayList<>(expected.keySet()).subList(0, 10);
+		expected.forEach((word, count) -> removed.add(word, kept.contains(word) ? count - 1 : count));
+		table.subtract(removed);
+		Assert.assertEquals(kept.size(), table.size());
+		for (String word : kept)
+			Assert.assertEquals(1, table.get(word));
+		table.add(huge.toString(), 2);
+		Assert.assertEquals(2, table.get(huge.toString()));
+	}
+	
+	
+	/**
+	 * Test the top k lines are the same as the start of the full report (including where k cuts through ties).
+	 */
+	@Test
+	public void testTopLines() {
+		Random random = new Random();
+		WordCountTable counts = new WordCountTable();
+		for (int i = 0; i < 5000; i++)
+			counts.add(Integer.toString(random.nextInt(2000), Character.MAX_RADIX), random(random, 1, 4));
+		List<String> report = WordCounter.orderedLinesToPrint(counts).collect(toList());
+		Map<String, Long> map = counts.toMap();
+		for (int k : new int[] {1, 2, 3, 10, 100, 1000, report.size(), report.size() + 10}) {
+			List<String> expected = report.subList(0, Math.min(k, report.size()));
+			Assert.assertEquals(expected, WordCounter.topLinesToPrint(counts, k).collect(toList()));
+			Assert.assertEquals(expected, WordCounter.topLinesToPrint(map, k).collect(toList()));
+		}
+	}
+	
+	
+	/**
+	 * Test the bucketed ordering of the whole report is exactly the same as sorting the entries by count then word:
+	 * Zipf like counts (enough words occurring once to be sorted in parallel), counts too high for a bucket,
+	 * and counts of 0 or below (which a table can be given).
+	 */
+	@Test
+	public void testReportOrder() {
+		Random random = new Random();
+		WordCountTable counts = new WordCountTable();
+		for (int i = 0; i < 100000; i++) {
+			String word = Integer.toString(random.nextInt(1 << 30), Character.MAX_RADIX);
+			int rank = 1 + random.nextInt(100000);
+			counts.add(random.nextInt(100) == 0 ? word + "\u00e6\u4e2d" : word, Math.max(1, 20000 / rank));
+		}
+		for (int i = 0; i < 50; i++)
+			counts.add("z" + i, random(random, -3, 0));
+		Map<String, Long> map = counts.toMap();
+		List<String> expected = map.entrySet().stream().sorted((a, b) -> {
+			int anInt = b.getValue().compareTo(a.getValue());
+			return anInt != 0 ? anInt : a.getKey().compareTo(b.getKey());
+		}).map(entry -> entry.getKey() + "=" + entry.getValue()).collect(toList());
+		OrderedCounts ordered = OrderedCounts.of(counts);
+		List<String> actual = new ArrayList<>();
+		for (int i = 0; i < ordered.size(); i++)
+			actual.add(ordered.word(i) + "=" + ordered.count(i));
+		Assert.assertEquals(expected, actual);
+		Assert.assertEquals(ordered.lines().collect(toList()), WordCounter.orderedLinesToPrint(map).collect(toList()));
+		//Too few words for more than a few buckets, and words the same for their first few characters.
+		WordCountTable few = new WordCountTable();
+		few.add("b", 7);
+		few.add("abcd\u0000", 7);
+		few.add("abcd", 7);
+		few.add("a", 7);
+		few.add("c", 2);
+		Assert.assertEquals(Arrays.asList("a", "abcd", "abcd\u0000", "b", "c"), OrderedCounts.of(few).lines().map(line -> line.split("'")[1]).collect(toList()));
+		Assert.assertEquals(0, OrderedCounts.of(new WordCountTable()).size());
+	}
+	
+	
+	/**
+	 * Test the report writer writes exactly the same as printing each formatted line would.
+	 * Enough (and long enough) words to go round its buffers a few times.
+	 * @throws IOException
+	 */
+	@Test
+	public void testReportWriter() throws IOException {
+		Random random = new Random();
+		WordCountTable counts = new WordCountTable();
+		StringBuilder longWord = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			longWord.append((char) ('a' + random.nextInt(26)));
+		counts.add(longWord.toString(), 2);
+		counts.add("\u4e2d\ud840\udc0b\u00e6", 1);
+		for (int i = 0; i < 20000; i++)
+			counts.add(Integer.toString(random.nextInt(10000), Character.MAX_RADIX), random(random, 1, 3));
+		OrderedCounts ordered = OrderedCounts.of(counts);
+		StringBuilder expected = new StringBuilder();
+		ordered.lines().forEach(line -> expected.append(line).append(System.lineSeparator()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(ReportWriter writer = new ReportWriter(Channels.newChannel(out), StandardCharsets.UTF_8)){
+			ordered.writeTo(writer);
+		}
+		Assert.assertEquals(expected.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+	
+	
+	/**
+	 * Test the CSV, JSON Lines and binary reports have exactly the words and counts of the report, in its order,
+	 * whatever characters the words have (quotes, commas, line breaks, backslashes, control characters, characters
+	 * beyond the BMP), with enough words to go round the buffers (including the binary's record positions).
+	 * @throws IOException
+	 * @throws InputException
+	 */
+	@Test
+	public void testReportFormats() throws IOException, InputException {
+		Random random = new Random();
+		WordCountTable counts = new WordCountTable();
+		for (String word : new String[] {"say \"hi\"", "a,b", "two\nlines", "back\\slash", "\u0001", "\u4e2d\ud840\udc0b\u00e6", "'"})
+			counts.add(word, random(random, 1, 5));
+		for (int i = 0; i < 20000; i++)
+			counts.add(Integer.toString(random.nextInt(100000), Character.MAX_RADIX) + "\u00e9", random(random, 1, 3));
+		OrderedCounts ordered = OrderedCounts.of(counts);
+		//CSV, parsed the RFC 4180 way.
+		String csv = new String(write(ordered, ReportFormat.CSV), StandardCharsets.UTF_8);
+		Assert.assertTrue(csv.startsWith("word,count\n"));
+		int position = "word,count\n".length();
+		for (int i = 0; i < ordered.size(); i++) {
+			StringBuilder word = new StringBuilder();
+			if(csv.charAt(position) == '"') {
+				position++;
+				while(!(csv.charAt(position) == '"' && csv.charAt(position + 1) != '"')) {
+					word.append(csv.charAt(position));
+					position += csv.charAt(position) == '"' ? 2 : 1;
+				}
+				position++;
+			}
+			else {
+				while(csv.charAt(position) != ',')
+					word.append(csv.charAt(position++));
+			}
+			int end = csv.indexOf('\n', position);
+			Assert.assertEquals(ordered.word(i), word.toString());
+			Assert.assertEquals(ordered.word(i), "," + ordered.count(i), csv.substring(position, end));
+			position = end + 1;
+		}
+		Assert.assertEquals(csv.length(), position);
+		//JSON Lines, each line as it would be escaped by hand.
+		String[] json = new String(write(ordered, ReportFormat.JSONL), StandardCharsets.UTF_8).split("\n");
+		Assert.assertEquals(ordered.size(), json.length);
+		for (int i = 0; i < ordered.size(); i++) {
+			StringBuilder expected = new StringBuilder("{\"word\":\"");
+			for (char c : ordered.word(i).toCharArray())
+				expected.append(c == '"' || c == '\\' ? "\\" + c : c < 0x20 ? String.format("\\u%04x", (int) c) : String.valueOf(c));
+			Assert.assertEquals(expected.append("\",\"count\":").append(ordered.count(i)).append('}').toString(), json[i]);
+		}
+		//Binary, read from where it is mapped.
+		Path file = Files.createTempFile("wordCounter", ".bin");
+		try {
+			Files.write(file, write(ordered, ReportFormat.BIN));
+			try(BinaryReport report = BinaryReport.open(file)){
+				Assert.assertEquals(ordered.size(), report.size());
+				for (int i = ordered.size() - 1; i >= 0; i--) {
+					Assert.assertEquals(ordered.word(i), report.word(i));
+					Assert.assertEquals(ordered.count(i), report.count(i));
+				}
+			}
+			Files.write(file, write(OrderedCounts.of(new WordCountTable()), ReportFormat.BIN));
+			try(BinaryReport report = BinaryReport.open(file)){
+				Assert.assertEquals(0, report.size());
+			}
+			Files.write(file, write(ordered, ReportFormat.CSV));
+			try {
+				BinaryReport.open(file).close();
+				Assert.fail();
+			}
+			catch(IOException ex) {
+				//Expected.
+			}
+		}
+		finally {
+			Files.delete(file);
+		}
+		Assert.assertEquals(ReportFormat.JSONL, Arguments.from(false, "-format=jsonl").getFormat());
+		try {
+			Arguments.from(false, "-format=xml");
+			Assert.fail();
+		}
+		catch(InputException ex) {
+			//Expected.
+		}
+	}
+	
+	private static byte[] write(OrderedCounts ordered, ReportFormat format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(ReportWriter writer = new ReportWriter(Channels.newChannel(out), StandardCharsets.ISO_8859_1, format)){
+			ordered.writeTo(writer);
+		}
+		return out.toByteArray();
+	}
+	
+	
+	/**
+	 * Test counting a directory of files (each with its own charset) concurrently gives the same as 
+	 * counting them one at a time, and that patterns pick out the right files.
+	 * @throws IOException
+	 * @throws InputException
+	 */
+	@Test
+	public void testMultipleFiles() throws IOException, InputException {
+		Path directory = Files.createTempDirectory("wordCounter");
+		String[] resources = {EXAMPLE_FILE, EXAMPLE_UF16_FILE, DANISH_UTF8, CHINESE_UTF8, MIXED_UTF8};
+		List<Path> files = new ArrayList<>();
+		try {
+			Path sub = Files.createDirectory(directory.resolve("sub"));
+			for (int i = 0; i < resources.length; i++) {
+				Path file = (i % 2 == 0 ? directory : sub).resolve(resources[i]);
+				try(InputStream stream = Tests.class.getResourceAsStream(resources[i])){
+					Files.copy(stream, file);
+				}
+				files.add(file);
+			}
+			WordCountTable expected = new WordCountTable();
+			for (Path file : files)
+				expected.merge(FileWordCounter.processedCounts(file, null, 1));
+			
+			List<Path> expanded = InputFiles.expand(Arrays.asList(directory.toString()));
+			Assert.assertEquals(new HashSet<>(files), new HashSet<>(expanded));
+			Map<Path, Map<String, Long>> perFile = new HashMap<>();
+			WordCountTable counts = FileWordCounter.processedCounts(expanded, null, 3, false, (file, fileCounts) -> perFile.put(file, fileCounts.toMap()));
+			Assert.assertEquals(expected.toMap(), counts.toMap());
+			for (Path file : files)
+				Assert.assertEquals(FileWordCounter.processedCounts(file, null, 1).toMap(), perFile.get(file));
+			
+			List<Path> utf8 = InputFiles.expand(Arrays.asList(directory + "/**UTF8.txt"));
+			Assert.assertEquals(3, utf8.size());
+			List<Path> top = InputFiles.expand(Arrays.asList(directory + "/*.txt"));
+			Assert.assertEquals(3, top.size());
+		}
+		finally {
+			try(Stream<Path> paths = Files.walk(directory)){
+				for (Path path : paths.sorted(Collections.reverseOrder()).collect(toList()))
+					Files.delete(path);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Test the quick charset guesses (BOMs and UTF-8, including a sample cut off part way through a character),
+	 * that anything else still goes to icu4j, and that the stream is left where it was.
+	 * Then that counting a file with its charset guessed from the bytes it starts counting with gives the same
+	 * counts as being told the charset.
+	 * @throws IOException
+	 */
+	@Test
+	public void testCharsetGuessing() throws IOException {
+		Assert.assertEquals(StandardCharsets.UTF_8, guess(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a'}));
+		Assert.assertEquals(StandardCharsets.UTF_16LE, guess(new byte[] {(byte) 0xFF, (byte) 0xFE, 'a', 0}));
+		Assert.assertEquals(StandardCharsets.UTF_16BE, guess(new byte[] {(byte) 0xFE, (byte) 0xFF, 0, 'a'}));
+		Assert.assertEquals(StandardCharsets.UTF_8, guess("plain old ASCII".getBytes(StandardCharsets.US_ASCII)));
+		Assert.assertEquals(StandardCharsets.UTF_8, guess("Fotografering på én gang".getBytes(StandardCharsets.UTF_8)));
+		//A sample that ends part way through a character is still UTF-8.
+		byte[] big = new byte[CharsetHelper.SAMPLE_SIZE + 16];
+		Arrays.fill(big, (byte) 'a');
+		byte[] euro = "€".getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(euro, 0, big, CharsetHelper.SAMPLE_SIZE - 1, euro.length);
+		Assert.assertEquals(StandardCharsets.UTF_8, guess(big));
+		Assert.assertNotEquals(StandardCharsets.UTF_8, 
+				guess("Fotografering på én gang, så hvad med æblerne?".getBytes(StandardCharsets.ISO_8859_1)));
+		
+		String[] resources = {EXAMPLE_FILE, DANISH_UTF8, CHINESE_UTF8, MIXED_UTF8, EXAMPLE_UF16_FILE};
+		Charset[] charsets = {StandardCharsets.US_ASCII, StandardCharsets.UTF_8, StandardCharsets.UTF_8, 
+				StandardCharsets.UTF_8, StandardCharsets.UTF_16LE};
+		for (int i = 0; i < resources.length; i++) {
+			Path file = copyResourceToTempFile(resources[i]);
+			try {
+				Map<String, Long> expected = FileWordCounter.processedCounts(file, charsets[i], 1).toMap();
+				for (int threads : new int[] {1, 3})
+					Assert.assertEquals(resources[i], expected, FileWordCounter.processedCounts(file, null, threads).toMap());
+			}
+			finally {
+				Files.delete(file);
+			}
+		}
+	}
+	
+	private static Charset guess(byte[] bytes) throws IOException {
+		try(InputStream stream = new BufferedInputStream(new ByteArrayInputStream(bytes))){
+			Charset charset = CharsetHelper.guessCharset(stream);
+			Assert.assertEquals(bytes.length == 0 ? -1 : bytes[0] & 0xFF, stream.read());
+			return charset;
+		}
+	}
+	
+	
+	/**
+	 * Test gzip (one member, several members and BGZF) and zlib files are counted the same as the file uncompressed.
+	 * @throws IOException
+	 */
+	@Test
+	public void testCompressed() throws IOException {
+		for (String resource : new String[] {MIXED_UTF8, EXAMPLE_UF16_FILE}) {
+			byte[] content;
+			try(InputStream stream = Tests.class.getResourceAsStream(resource)){
+				content = readAll(stream);
+			}
+			//Big enough for a lot of blocks.
+			ByteArrayOutputStream repeated = new ByteArrayOutputStream();
+			for (int i = 0; i < 8; i++)
+				repeated.write(content);
+			content = repeated.toByteArray();
+			Path file = Files.createTempFile("wordCounter", ".txt");
+			try {
+				Files.write(file, content);
+				Map<String, Long> expected = FileWordCounter.processedCounts(file, null, 1).toMap();
+				
+				ByteArrayOutputStream members = new ByteArrayOutputStream();
+				ByteArrayOutputStream bgzf = new ByteArrayOutputStream();
+				for (int start = 0; start < content.length; start += 40000) {
+					int length = Math.min(40000, content.length - start);
+					try(GZIPOutputStream out = new GZIPOutputStream(members)){
+						out.write(content, start, length);
+					}
+					bgzfMember(bgzf, content, start, length);
+				}
+				//bgzip ends with an empty member.
+				bgzfMember(bgzf, content, 0, 0);
+				ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+				try(GZIPOutputStream out = new GZIPOutputStream(gzip)){
+					out.write(content);
+				}
+				ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+				try(DeflaterOutputStream out = new DeflaterOutputStream(zlib)){
+					out.write(content);
+				}
+				for (ByteArrayOutputStream compressed : Arrays.asList(gzip, members, bgzf, zlib)) {
+					Files.write(file, compressed.toByteArray());
+					for (int threads : new int[] {1, 4})
+						Assert.assertEquals(resource, expected, FileWordCounter.processedCounts(file, null, threads).toMap());
+				}
+			}
+			finally {
+				Files.delete(file);
+			}
+		}
+	}
+	
+	//A gzip member with the BGZF extra field (its size).
+	private static void bgzfMember(ByteArrayOutputStream out, byte[] bytes, int start, int length) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(bytes, start, length);
+		deflater.finish();
+		byte[] deflated = new byte[length + 1024];
+		int deflatedLength = deflater.deflate(deflated);
+		deflater.end();
+		CRC32 crc = new CRC32();
+		crc.update(bytes, start, length);
+		int size = 18 + deflatedLength + 8;
+		out.write(new byte[] {0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0, (byte) 0xFF, 6, 0, 'B', 'C', 2, 0,
+				(byte) (size - 1), (byte) ((size - 1) >>> 8)}, 0, 18);
+		out.write(deflated, 0, deflatedLength);
+		for (long value : new long[] {crc.getValue(), length})
+			for (int i = 0; i < 4; i++)
+				out.write((int) (value >>> (8 * i)));
+	}
+	
+	
+	/**
+	 * Test the stats of a run count every byte and line, however the file is counted, and time the phases.
+	 * @throws IOException
+	 */
+	@Test
+	public void testRunStats() throws IOException {
+		Path file = copyResourceToTempFile(MIXED_UTF8);
+		try {
+			long lines;
+			try(Stream<String> stream = Files.lines(file)){
+				lines = stream.count();
+			}
+			for (int threads : new int[] {1, 4}) {
+				for (Charset charset : new Charset[] {null, StandardCharsets.ISO_8859_1}) {
+					RunStats stats = RunStats.start();
+					OrderedCounts.of(FileWordCounter.processedCounts(file, charset, threads));
+					String json = stats.stop().toJson();
+					Assert.assertTrue(json, json.startsWith("{\"phases\":{\"detect\":"));
+					Assert.assertTrue(json, json.contains(",\"bytes\":" + Files.size(file) + ","));
+					Assert.assertTrue(json, json.contains(",\"lines\":" + lines + ","));
+					Assert.assertFalse(json, json.contains("\"order\":0.000"));
+				}
+			}
+			//Nothing is gathered when nothing is being measured.
+			RunStats stats = RunStats.start().stop();
+			FileWordCounter.processedCounts(file, null, 1);
+			Assert.assertTrue(stats.toJson(), stats.toJson().contains(",\"bytes\":0,\"bytesPerSecond\":0,\"lines\":0,"));
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+	
+	
+	/**
+	 * Test n-grams are counted the same as joining the words of every run of n into a String and counting those,
+	 * and are reported in the same order (all of them or just the top ones), and that no n-gram spans a break.
+	 * @throws IOException
+	 * @throws InputException
+	 */
+	@Test
+	public void testNgrams() throws IOException, InputException {
+		String text;
+		try(InputStream stream = Tests.class.getResourceAsStream(MIXED_UTF8)){
+			text = new String(readAll(stream), StandardCharsets.UTF_8);
+		}
+		List<String> words = new ArrayList<>();
+		WordTokenizer.tokenize(text, (chars, start, end) -> words.add(chars.subSequence(start, end).toString()));
+		for (int n = 2; n <= 4; n++) {
+			Map<String, Long> expected = new HashMap<>();
+			for (int i = 0; i + n <= words.size(); i++)
+				expected.merge(String.join(" ", words.subList(i, i + n)), 1L, Long::sum);
+			NgramTable ngrams = new NgramTable(n);
+			WordTokenizer.tokenize(text, ngrams);
+			Assert.assertEquals(expected.size(), ngrams.size());
+			Assert.assertEquals(words.size() - n + 1, ngrams.total());
+			List<String> report = WordCounter.orderedLinesToPrint(expected).collect(toList());
+			Assert.assertEquals(report, ngrams.ordered().lines().collect(toList()));
+			Assert.assertEquals(report.subList(0, 10), ngrams.top(10).lines().collect(toList()));
+		}
+		NgramTable ngrams = new NgramTable(2);
+		WordTokenizer.tokenize("the cat sat", ngrams);
+		ngrams.reset();
+		WordTokenizer.tokenize("on the cat", ngrams);
+		Assert.assertEquals(3, ngrams.size());
+		Assert.assertEquals(2, ngrams.get("the", "cat"));
+		Assert.assertEquals(0, ngrams.get("sat", "on"));
+		Assert.assertEquals(3, Arguments.from(false, "-ngram=3").getNgram());
+		for (String n : new String[] {"1", "11", "two"}) {
+			try {
+				Arguments.from(false, "-ngram=" + n);
+				Assert.fail(n);
+			}
+			catch(InputException ex) {
+				//Expected.
+			}
+		}
+	}
+	
+	
+	/**
+	 * Test the server gives the same report for a document or a file as counting it here, as text or JSON, and that
+	 * it refuses bad requests, requests that take too long and requests beyond how many it counts at once.
+	 * @throws IOException
+	 */
+	@Test
+	public void testServer() throws IOException {
+		byte[] document;
+		try(InputStream stream = Tests.class.getResourceAsStream(MIXED_UTF8)){
+			document = readAll(stream);
+		}
+		WordCountTable counts = Utf8WordCounter.processedTable(ByteBuffer.wrap(document));
+		String report = WordCounter.orderedLinesToPrint(counts).map(line -> line + System.lineSeparator()).collect(Collectors.joining());
+		Path file = Files.createTempFile("wordCounter", ".txt");
+		try(WordCountServer server = WordCountServer.start(0, 1, 1)){
+			Files.write(file, document);
+			String url = "http://localhost:" + server.port() + WordCountServer.PATH;
+			Assert.assertEquals(report, request(url, document, 200));
+			Assert.assertEquals(report, request(url + "?file=" + file.toUri().getPath(), null, 200));
+			OrderedCounts top = OrderedCounts.top(counts, 2);
+			Assert.assertEquals("{\"words\":" + counts.total() + ",\"distinctWords\":" + counts.size() + ",\"counts\":[{\"word\":\"" 
+					+ top.word(0) + "\",\"count\":" + top.count(0) + "},{\"word\":\"" + top.word(1) + "\",\"count\":" + top.count(1) + "}]}",
+					request(url + "?format=json&top=2", document, 200));
+			Assert.assertTrue(request(url + "?top=0", document, 400).contains("0"));
+			Assert.assertTrue(request(url + "?format=json&file=" + file.toUri().getPath() + ".missing", null, 400).startsWith("{\"error\":"));
+			//A request whose body never arrives takes too long, and gives up the only turn, so the next one is counted.
+			try(Socket slow = new Socket(InetAddress.getLoopbackAddress(), server.port())){
+				OutputStream out = slow.getOutputStream();
+				out.write(("POST " + WordCountServer.PATH + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: 100\r\n\r\nthe").getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+				Assert.assertTrue(new BufferedReader(new InputStreamReader(slow.getInputStream(), StandardCharsets.US_ASCII)).readLine().contains("504"));
+				Assert.assertEquals(report, request(url, document, 200));
+			}
+			Assert.assertEquals(report, request(url, document, 200));
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+	
+	//The response (checking its status).
+	private static String request(String url, byte[] body, int status) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		if(body != null) {
+			connection.setDoOutput(true);
+			try(OutputStream out = connection.getOutputStream()){
+				out.write(body);
+			}
+		}
+		Assert.assertEquals(status, connection.getResponseCode());
+		try(InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream()){
+			return new String(readAll(in), StandardCharsets.UTF_8);
+		}
+	}
+	
+	
+	/**
+	 * Test counting with spilling to disk gives exactly the same counts and report (whole and top) as counting in memory.
+	 * @throws IOException
+	 */
+	@Test
+	public void testExternal() throws IOException {
+		Path file = copyResourceToTempFile(MIXED_UTF8);
+		try {
+			WordCountTable expected = FileWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1);
+			for (int words : new int[] {16, 500, 1_000_000}) {
+				long memory = (long) words * ExternalWordCounter.ENTRY_BYTES;
+				try(ExternalWordCounter counter = new ExternalWordCounter(memory)){
+					counter.count(file, StandardCharsets.UTF_8);
+					assert (counter.spills() > 0) == (words < expected.size()) : counter.spills();
+					Assert.assertEquals(report(OrderedCounts.of(expected)), report(counter, 0));
+				}
+				try(ExternalWordCounter counter = new ExternalWordCounter(memory)){
+					counter.count(file, StandardCharsets.UTF_8);
+					Assert.assertEquals(report(OrderedCounts.top(expected, 20)), report(counter, 20));
+				}
+				try(ExternalWordCounter counter = new ExternalWordCounter(memory)){
+					counter.count(file, StandardCharsets.UTF_8);
+					Map<String, Long> merged = new HashMap<>();
+					List<String> order = new ArrayList<>();
+					counter.merged((word, count) -> {
+						merged.put(word, count);
+						order.add(word);
+					});
+					Assert.assertEquals(expected.toMap(), merged);
+					List<String> sorted = new ArrayList<>(order);
+					Collections.sort(sorted);
+					Assert.assertEquals(sorted, order);
+				}
+			}
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+	
+	/**
+	 * Test partial counts of several shards (each written by a different counter) merge to the same report as counting
+	 * them all at once, whether the merge fits in memory or not, and when some of them are merged into partial counts
+	 * first, or when there are more of them than are merged at once. Counts that aren't in word order are refused rather
+	 * than merged wrongly.
+	 * @throws IOException
+	 */
+	@Test
+	public void testPartialCounts() throws IOException {
+		List<Path> shards = new ArrayList<>();
+		List<Path> partials = new ArrayList<>();
+		try {
+			for (String path : new String[] {DANISH_UTF8, CHINESE_UTF8, MIXED_UTF8, MIXED_UTF8}) {
+				Path shard = copyResourceToTempFile(path);
+				shards.add(shard);
+				Path partial = Files.createTempFile("wordCounter", ".partial");
+				partials.add(partial);
+				WordCountTable counts = FileWordCounter.processedCounts(shard, StandardCharsets.UTF_8, 1);
+				Assert.assertEquals(counts.size(), ExternalWordCounter.writePartial(counts, partial));
+			}
+			WordCountTable expected = FileWordCounter.processedCounts(shards, StandardCharsets.UTF_8, 1, false, null);
+			for (int words : new int[] {16, 1_000_000}) {
+				long memory = (long) words * ExternalWordCounter.ENTRY_BYTES;
+				for (int top : new int[] {0, 20}) {
+					try(ExternalWordCounter counter = new ExternalWordCounter(memory)){
+						for (Path partial : partials.subList(0, shards.size()))
+							counter.merge(partial);
+						Assert.assertEquals(report(top > 0 ? OrderedCounts.top(expected, top) : OrderedCounts.of(expected)), 
+								report(counter, top));
+					}
+				}
+				//The first two merged (with the third counted again) into partial counts, then merged with the last.
+				Path merged = Files.createTempFile("wordCounter", ".partial");
+				partials.add(merged);
+				try(ExternalWordCounter counter = new ExternalWordCounter(memory)){
+					counter.merge(partials.get(0));
+					counter.merge(partials.get(1));
+					counter.count(shards.get(2), StandardCharsets.UTF_8);
+					counter.writePartial(merged);
+				}
+				try(ExternalWordCounter counter = new ExternalWordCounter(memory)){
+					counter.merge(merged);
+					counter.merge(partials.get(3));
+					Assert.assertEquals(report(OrderedCounts.of(expected)), report(counter, 0));
+				}
+			}
+			//Far more partial counts than the budget has room to merge at once.
+			int copies = 300;
+			try(ExternalWordCounter counter = new ExternalWordCounter(1 << 20)){
+				for (int i = 0; i < copies; i++)
+					counter.merge(partials.get(0));
+				Map<String, Long> merged = new HashMap<>();
+				counter.merged(merged::put);
+				Map<String, Long> once = FileWordCounter.processedCounts(shards.get(0), StandardCharsets.UTF_8, 1).toMap();
+				Assert.assertEquals(once.keySet(), merged.keySet());
+				once.forEach((word, count) -> Assert.assertEquals(word, copies * count, merged.get(word).longValue()));
+			}
+			Path unsorted = Files.createTempFile("wordCounter", ".partial");
+			partials.add(unsorted);
+			try(RunFile.Writer writer = new RunFile.Writer(unsorted)){
+				writer.write("zebra", 1);
+				writer.write("apple", 1);
+			}
+			try(ExternalWordCounter counter = new ExternalWordCounter(1 << 20)){
+				counter.merge(partials.get(0));
+				counter.merge(unsorted);
+				report(counter, 0);
+				Assert.fail("Unsorted partial counts were merged");
+			}
+			catch(IOException ex) {
+				//Expected.
+			}
+		}
+		finally {
+			for (Path file : shards)
+				Files.delete(file);
+			for (Path file : partials)
+				Files.delete(file);
+		}
+	}
+	
+	private static String report(OrderedCounts ordered) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ReportWriter writer = new ReportWriter(Channels.newChannel(bytes), StandardCharsets.UTF_8);
+		ordered.writeTo(writer);
+		writer.close();
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	private static String report(ExternalWordCounter counter, int top) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ReportWriter writer = new ReportWriter(Channels.newChannel(bytes), StandardCharsets.UTF_8);
+		counter.writeReport(writer, top);
+		writer.close();
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	
+	/**
+	 * Test approximate counting is exact when there is room for every word, and otherwise keeps to its bounds:
+	 * no count too low or too high by more than the bound, and no word that occurs more often than the bound left out.
+	 * @throws IOException
+	 */
+	@Test
+	public void testApproximate() throws IOException {
+		Map<String, Long> expected;
+		try(InputStream stream = Tests.class.getResourceAsStream(MIXED_UTF8)){
+			expected = Utf8WordCounter.processedCounts(ByteBuffer.wrap(readAll(stream)));
+		}
+		Path file = copyResourceToTempFile(MIXED_UTF8);
+		try {
+			ApproximateWordCounter roomy = new ApproximateWordCounter(64 * 1024 * 1024);
+			roomy.count(file, StandardCharsets.UTF_8);
+			Assert.assertEquals(0, roomy.errorBound());
+			Assert.assertEquals(expected, roomy.counts().toMap());
+	
+			ApproximateWordCounter tight = new ApproximateWordCounter(64 * 1024);
+			tight.count(file, StandardCharsets.UTF_8);
+			long bound = tight.errorBound();
+			assert bound > 0 : "Expected there not to be room for every word";
+			Map<String, Long> counts = tight.counts().toMap();
+			assert counts.size() < expected.size();
+			for (Entry<String, Long> entry : counts.entrySet()) {
+				long actual = expected.get(entry.getKey());
+				assert entry.getValue() >= actual && entry.getValue() <= actual + bound : entry;
+			}
+			for (Entry<String, Long> entry : expected.entrySet()) {
+				assert entry.getValue() <= bound || counts.containsKey(entry.getKey()) : entry;
+				Assert.assertTrue(tight.estimate(entry.getKey()) >= entry.getValue());
+			}
+			Assert.assertEquals(expected.values().stream().mapToLong(Long::longValue).sum(), tight.words());
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+	
+	
+	/**
+	 * Test the streaming totals and sliding window (which has buckets subtracted as they drop out of it) always match
+	 * counting the lines from scratch, and that words leave the window completely.
+	 * @throws IOException
+	 */
+	@Test
+	public void testStreamingWindow() throws IOException {
+		List<String> lines;
+		try(InputStream stream = Tests.class.getResourceAsStream(MIXED_UTF8)){
+			lines = Arrays.asList(new String(readAll(stream), StandardCharsets.UTF_8).split("\n"));
+		}
+		int windowBuckets = 3;
+		StreamingWordCounter counter = new StreamingWordCounter(windowBuckets);
+		Random random = new Random();
+		//Where each tick was (as a line number).
+		List<Integer> ticks = new ArrayList<>();
+		ticks.add(0);
+		int line = 0;
+		while(line < lines.size()) {
+			//Sometimes an empty interval.
+			int end = Math.min(lines.size(), line + random(random, 0, 20));
+			for (; line < end; line++)
+				counter.line(lines.get(line));
+			counter.tick();
+			ticks.add(line);
+			Assert.assertEquals(line, counter.lines());
+			Assert.assertEquals(WordCounter.processedCounts(lines.subList(0, line).stream()), counter.total().toMap());
+			int windowStart = ticks.get(Math.max(0, ticks.size() - 1 - windowBuckets));
+			Map<String, Long> window = WordCounter.processedCounts(lines.subList(windowStart, line).stream());
+			Assert.assertEquals(window, counter.window().toMap());
+			Assert.assertEquals(window.size(), counter.window().size());
+		}
+		//Nothing more, so everything drops out of the window.
+		for (int i = 0; i < windowBuckets; i++)
+			counter.tick();
+		Assert.assertEquals(0, counter.window().size());
+		Assert.assertEquals(WordCounter.processedCounts(lines.stream()), counter.total().toMap());
+	}
+	
+	
+	/**
+	 * Test every word can be looked up in an index of the counts, that words that aren't there have no count,
+	 * and that a prefix finds exactly the words starting with it.
+	 * @throws IOException
+	 */
+	@Test
+	public void testWordIndex() throws IOException {
+		Map<String, Long> expected;
+		try(InputStream stream = Tests.class.getResourceAsStream(MIXED_UTF8)){
+			expected = Utf8WordCounter.processedCounts(ByteBuffer.wrap(readAll(stream)));
+		}
+		WordCountTable counts = new WordCountTable();
+		expected.forEach(counts::add);
+		Path file = Files.createTempFile("wordCounter", ".index");
+		try {
+			WordIndex.write(counts, file);
+			try(WordIndex index = WordIndex.open(file)){
+				Assert.assertEquals(expected.size(), index.size());
+				for (Entry<String, Long> entry : expected.entrySet()) {
+					Assert.assertEquals(entry.getKey(), (long) entry.getValue(), index.count(entry.getKey()));
+					Assert.assertEquals(0, index.count(entry.getKey() + "\u0000"));
+				}
+				Assert.assertEquals(0, index.count(""));
+				Assert.assertEquals(0, index.count("\uFFFF"));
+				for (String word : expected.keySet()) {
+					String prefix = word.substring(0, word.offsetByCodePoints(0, 1));
+					Map<String, Long> found = new HashMap<>();
+					index.prefix(prefix, found::put);
+					Map<String, Long> starting = expected.entrySet().stream().filter(entry -> entry.getKey().startsWith(prefix))
+							.collect(Collectors.toMap(Entry::getKey, Entry::getValue));
+					Assert.assertEquals(starting, found);
+				}
+				Map<String, Long> all = new HashMap<>();
+				index.prefix("", all::put);
+				Assert.assertEquals(expected, all);
+			}
+			//An empty index works too.
+			WordIndex.write(new WordCountTable(), file);
+			try(WordIndex index = WordIndex.open(file)){
+				Assert.assertEquals(0, index.size());
+				Assert.assertEquals(0, index.count("word"));
+			}
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+	
+	
+	/**
+	 * Test incremental counting of a growing file always gives the same as counting the whole file, 
+	 * including when a line is only partly written and when the file is replaced.
+	 * @throws IOException
+	 */
+	@Test
+	public void testIncremental() throws IOException {
+		byte[] content;
+		try(InputStream stream = Tests.class.getResourceAsStream(MIXED_UTF8)){
+			content = readAll(stream);
+		}
+		Path file = Files.createTempFile("wordCounter", ".log");
+		Path checkpoint = IncrementalWordCounter.checkpointFor(file);
+		try {
+			Files.write(file, new byte[0]);
+			Random random = new Random();
+			int written = 0;
+			while(written < content.length) {
+				//Append a 'random' amount, which will usually stop part way through a line (or even a character).
+				int more = Math.min(content.length - written, random(random, 1, content.length / 5));
+				int end = written + more;
+				//Don't stop part way through a UTF-8 sequence though (that's malformed input for either way of counting).
+				while(end < content.length && (content[end] & 0xC0) == 0x80)
+					end++;
+				Files.write(file, Arrays.copyOfRange(content, written, end), StandardOpenOption.APPEND);
+				written = end;
+				Map<String, Long> expected = ChunkedWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1).toMap();
+				WordCountTable counts = IncrementalWordCounter.processedCounts(file, checkpoint, StandardCharsets.UTF_8, 2, 512);
+				Assert.assertEquals(expected, counts.toMap());
+				assert Files.exists(checkpoint) : "No checkpoint saved";
+			}
+			//A different file in the same place must be counted from scratch.
+			Files.write(file, "completely different\n".getBytes(StandardCharsets.UTF_8));
+			Map<String, Long> expected = ChunkedWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1).toMap();
+			Assert.assertEquals(expected, IncrementalWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1).toMap());
+		}
+		finally {
+			Files.deleteIfExists(checkpoint);
+			Files.delete(file);
+		}
+	}
+	
+	/**
+	 * Test a checkpoint counted with one word definition (or without segmenting) isn't added to with another.
+	 * @throws IOException
+	 * @throws InputException
+	 */
+	@Test
+	public void testIncrementalDefinition() throws IOException, InputException {
+		Path file = Files.createTempFile("wordCounter", ".log");
+		Path checkpoint = IncrementalWordCounter.checkpointFor(file);
+		try {
+			Files.write(file, "don't stop\n".getBytes(StandardCharsets.UTF_8));
+			IncrementalWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1);
+			Files.write(file, "can't go\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			WordTokenizer.setDefinition(WordDefinition.parse("letters,apostrophes"));
+			Map<String, Long> expected = ChunkedWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1).toMap();
+			Assert.assertEquals(expected, IncrementalWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1).toMap());
+			Assert.assertEquals(Long.valueOf(1), expected.get("don't"));
+			WordTokenizer.setDefinition(WordDefinition.DEFAULT);
+			Files.write(file, "日本語の文章です\n".getBytes(StandardCharsets.UTF_8));
+			IncrementalWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1);
+			Files.write(file, "文章です\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			WordTokenizer.setSegmenting(true);
+			expected = ChunkedWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1).toMap();
+			Assert.assertEquals(expected, IncrementalWordCounter.processedCounts(file, StandardCharsets.UTF_8, 1).toMap());
+			Assert.assertEquals(Long.valueOf(2), expected.get("文章"));
+		}
+		finally {
+			WordTokenizer.setSegmenting(false);
+			WordTokenizer.setDefinition(WordDefinition.DEFAULT);
+			Files.deleteIfExists(checkpoint);
+			Files.delete(file);
+		}
+	}
+	
+	/**
+	 * Test counting a directory incrementally again (with the checkpoints of the last run next to its files) counts
+	 * just its files, not the checkpoints, whether the charset is given or guessed.
+	 * @throws IOException
+	 * @throws InputException
+	 */
+	@Test
+	public void testIncrementalDirectory() throws IOException, InputException {
+		Path directory = Files.createTempDirectory("wordCounter");
+		try {
+			for (String resource : new String[] {DANISH_UTF8, MIXED_UTF8}) {
+				try(InputStream stream = Tests.class.getResourceAsStream(resource)){
+					Files.copy(stream, directory.resolve(resource));
+				}
+			}
+			List<Path> files = InputFiles.expand(Arrays.asList(directory.toString()));
+			Map<String, Long> expected = FileWordCounter.processedCounts(files, StandardCharsets.UTF_8, 1, false, null).toMap();
+			for (Charset charset : new Charset[] {StandardCharsets.UTF_8, null}) {
+				for (int run = 0; run < 2; run++) {
+					List<Path> expanded = InputFiles.expand(Arrays.asList(directory.toString()));
+					Assert.assertEquals(files, expanded);
+					Assert.assertEquals(expected, FileWordCounter.processedCounts(expanded, charset, 1, true, null).toMap());
+					Assert.assertEquals(files, InputFiles.expand(Arrays.asList(directory + "/*")));
+				}
+			}
+			for (Path file : files)
+				assert Files.exists(IncrementalWordCounter.checkpointFor(file)) : "No checkpoint saved";
+		}
+		finally {
+			try(Stream<Path> paths = Files.list(directory)){
+				for (Path path : (Iterable<Path>) paths::iterator)
+					Files.delete(path);
+			}
+			Files.delete(directory);
+		}
+	}
+	
+	
+	/**
+	 * Test the parallel chunked counting gives the same report as the sequential stream of lines.
+	 * The files are small, so I use a tiny chunk size to make sure they are really split up.
+	 * @throws IOException
+	 */
+	@Test
+	public void testChunkedMatchesSequential() throws IOException{
+		testChunked(EXAMPLE_FILE);
+		testChunked(DANISH_UTF8);
+		testChunked(CHINESE_UTF8);
+		testChunked(MIXED_UTF8);
+	}
+	
+	
+	private void testChunked(String path) throws IOException{
+		Path file = copyResourceToTempFile(path);
+		try {
+			Charset charset;
+			try(InputStream stream = Files.newInputStream(file);
+				BufferedInputStream buffered = new BufferedInputStream(stream)){
+				charset = CharsetHelper.guessCharset(buffered);
+			}
+			List<String> report;
+			try(Stream<String> lines = Files.lines(file, charset)){
+				report = WordCounter.wordCountReportCollection(lines);
+			}
+			for (int minChunkSize : new int[] {1, 7, 64, 1024}) {
+				WordCountTable counts = ChunkedWordCounter.processedCounts(file, charset, 4, minChunkSize);
+				List<String> chunkedReport = WordCounter.orderedLinesToPrint(counts).collect(toList());
+				assert report.equals(chunkedReport) : "The chunked report gives a different result for " + path;
+			}
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+	
+	
+	
+	
 	private  static int random(Random random, int min, int max) {
 		return min + random.nextInt(max - min + 1);
 	}